@@ -9,7 +9,7 @@ OPENCV_INSTALL_MODULES:=on
 OPENCV_LIB_TYPE:=SHARED
 include ${OPENCVROOT}/sdk/native/jni/OpenCV.mk
 
-LOCAL_SRC_FILES := com_asav_processimage_OpenCVNativeCaller.cpp
+LOCAL_SRC_FILES := com_asav_processimage_OpenCVNativeCaller.cpp com_asav_processimage_FilterEngine.cpp
 LOCAL_CFLAGS += -mfloat-abi=softfp -mfpu=neon -std=c++11 #-march=armv64
 LOCAL_ARM_NEON  := true
 LOCAL_LDLIBS += -llog
@@ -0,0 +1,249 @@
+#include <com_asav_processimage_FilterEngine.h>
+#include <opencv2/core.hpp>
+#include <opencv2/imgproc.hpp>
+
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <mutex>
+#include <vector>
+
+#include <android/log.h>
+
+#define LOG_TAG "ImageProcessing"
+#define LOGD(...) ((void)__android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__))
+
+using namespace std;
+using namespace cv;
+
+// must be the same as the order of FilterEngine.Filter
+enum Filter{
+    CONTRAST=0,
+    GAMMA,
+    EQUALIZE_HISTO,
+    BLUR,
+    MEDIAN,
+    BILATERAL
+};
+
+/*
+ * Runs a chain of filters over RGB images.
+ * Contrast, gamma correction and histogram equalization of S and V channels are look-up tables, so a sequence of them
+ * is composed into one table per channel from a single histogram and applied in one HSV pass.
+ * Blur, median and bilateral filters process horizontal stripes with halo rows in parallel.
+ * Buffers are kept between calls and reallocated only if the image size changes.
+ */
+class FilterEngine{
+public:
+    FilterEngine():cancelled(false){
+    }
+    void cancel(){
+        cancelled=true;
+    }
+    bool process(const cv::Mat& mIn, cv::Mat& mOut, const vector<int>& filters, double gammaValue){
+        cancelled=false;
+        if(mIn.channels()==4)
+            cv::cvtColor(mIn,buffers[0],cv::COLOR_RGBA2RGB);
+        else
+            mIn.copyTo(buffers[0]);
+        buffers[1].create(buffers[0].size(),buffers[0].type());
+        int current=0;
+        for(size_t i=0;i<filters.size() && !cancelled;){
+            size_t end=i;
+            while(end<filters.size() && filters[end]<=EQUALIZE_HISTO)
+                ++end;
+            if(end>i){
+                applyLookUpTables(buffers[current],buffers[1-current],filters,i,end,gammaValue);
+                i=end;
+            }
+            else{
+                applyNeighborhoodFilter(buffers[current],buffers[1-current],filters[i]);
+                ++i;
+            }
+            current=1-current;
+        }
+        if(cancelled)
+            return false;
+        buffers[current].copyTo(mOut);
+        return true;
+    }
+
+private:
+    std::atomic<bool> cancelled;
+    cv::Mat buffers[2];
+    cv::Mat hsv;
+
+    int getNumStripes(int rows){
+        return std::max(1,std::min(rows,cv::getNumThreads()*4));
+    }
+
+    static void getContrastTable(const int* hist, uchar* lut){
+        int minVal=0, maxVal=255;
+        while(minVal<255 && hist[minVal]==0)
+            ++minVal;
+        while(maxVal>0 && hist[maxVal]==0)
+            --maxVal;
+        for(int i=0;i<256;++i)
+            lut[i]=(maxVal>minVal)?saturate_cast<uchar>((i-minVal)*255.0/(maxVal-minVal)):(uchar)i;
+    }
+    static void getGammaTable(double gammaValue, uchar* lut){
+        for(int i=0;i<256;++i)
+            lut[i]=saturate_cast<uchar>(std::pow(i/255.0,gammaValue)*255.0);
+    }
+    // the same table as cv::equalizeHist
+    static void getEqualizationTable(const int* hist, uchar* lut){
+        int total=0, first=0;
+        for(int i=0;i<256;++i)
+            total+=hist[i];
+        while(first<255 && hist[first]==0)
+            ++first;
+        if(hist[first]==total){
+            for(int i=0;i<256;++i)
+                lut[i]=(uchar)first;
+            return;
+        }
+        float scale=255.f/(total-hist[first]);
+        int sum=0;
+        for(int i=0;i<256;++i)
+            lut[i]=0;
+        for(int i=first+1;i<256;++i){
+            sum+=hist[i];
+            lut[i]=saturate_cast<uchar>(sum*scale);
+        }
+    }
+
+    void applyLookUpTables(const cv::Mat& src, cv::Mat& dst, const vector<int>& filters, size_t begin, size_t end, double gammaValue){
+        hsv.create(src.size(),src.type());
+        // histograms of S and V channels
+        int hist[2][256]={{0}};
+        std::mutex histMutex;
+        int numStripes=getNumStripes(src.rows);
+        cv::parallel_for_(cv::Range(0,numStripes),[&](const cv::Range& range){
+            int localHist[2][256]={{0}};
+            for(int stripe=range.start;stripe<range.end && !cancelled;++stripe){
+                int r0=src.rows*stripe/numStripes, r1=src.rows*(stripe+1)/numStripes;
+                cv::Mat hsvStripe=hsv.rowRange(r0,r1);
+                cv::cvtColor(src.rowRange(r0,r1),hsvStripe,cv::COLOR_RGB2HSV);
+                for(int r=0;r<hsvStripe.rows;++r){
+                    const uchar* row=hsvStripe.ptr<uchar>(r);
+                    for(int c=0;c<hsvStripe.cols;++c){
+                        ++localHist[0][row[3*c+1]];
+                        ++localHist[1][row[3*c+2]];
+                    }
+                }
+            }
+            std::lock_guard<std::mutex> lock(histMutex);
+            for(int ch=0;ch<2;++ch)
+                for(int i=0;i<256;++i)
+                    hist[ch][i]+=localHist[ch][i];
+        });
+        if(cancelled)
+            return;
+
+        // compose tables, the histogram of every output is obtained by mapping the histogram of its input
+        uchar total[2][256];
+        for(int ch=0;ch<2;++ch){
+            for(int i=0;i<256;++i)
+                total[ch][i]=(uchar)i;
+            for(size_t f=begin;f<end;++f){
+                uchar lut[256];
+                switch(filters[f]){
+                    case CONTRAST:
+                        getContrastTable(hist[ch],lut);
+                        break;
+                    case GAMMA:
+                        getGammaTable(gammaValue,lut);
+                        break;
+                    default:
+                        getEqualizationTable(hist[ch],lut);
+                        break;
+                }
+                int mapped[256]={0};
+                for(int i=0;i<256;++i){
+                    mapped[lut[i]]+=hist[ch][i];
+                    total[ch][i]=lut[total[ch][i]];
+                }
+                std::copy(mapped,mapped+256,hist[ch]);
+            }
+        }
+
+        dst.create(src.size(),src.type());
+        cv::parallel_for_(cv::Range(0,numStripes),[&](const cv::Range& range){
+            for(int stripe=range.start;stripe<range.end && !cancelled;++stripe){
+                int r0=src.rows*stripe/numStripes, r1=src.rows*(stripe+1)/numStripes;
+                cv::Mat hsvStripe=hsv.rowRange(r0,r1);
+                for(int r=0;r<hsvStripe.rows;++r){
+                    uchar* row=hsvStripe.ptr<uchar>(r);
+                    for(int c=0;c<hsvStripe.cols;++c){
+                        row[3*c+1]=total[0][row[3*c+1]];
+                        row[3*c+2]=total[1][row[3*c+2]];
+                    }
+                }
+                cv::Mat dstStripe=dst.rowRange(r0,r1);
+                cv::cvtColor(hsvStripe,dstStripe,cv::COLOR_HSV2RGB);
+            }
+        });
+    }
+
+    void applyNeighborhoodFilter(const cv::Mat& src, cv::Mat& dst, int filter){
+        int halo=(filter==BILATERAL)?4:3;
+        dst.create(src.size(),src.type());
+        int numStripes=getNumStripes(src.rows);
+        cv::parallel_for_(cv::Range(0,numStripes),[&](const cv::Range& range){
+            cv::Mat tmp;
+            for(int stripe=range.start;stripe<range.end && !cancelled;++stripe){
+                int r0=src.rows*stripe/numStripes, r1=src.rows*(stripe+1)/numStripes;
+                int h0=std::max(0,r0-halo), h1=std::min(src.rows,r1+halo);
+                cv::Mat srcStripe=src.rowRange(h0,h1);
+                switch(filter){
+                    case BLUR:
+                        cv::GaussianBlur(srcStripe,tmp,cv::Size(7,7),0,0);
+                        break;
+                    case MEDIAN:
+                        cv::medianBlur(srcStripe,tmp,7);
+                        break;
+                    default:
+                        cv::bilateralFilter(srcStripe,tmp,9,75,75);
+                        break;
+                }
+                tmp.rowRange(r0-h0,r1-h0).copyTo(dst.rowRange(r0,r1));
+            }
+        });
+    }
+};
+
+JNIEXPORT jlong JNICALL Java_com_asav_processimage_FilterEngine_engineInit
+        (JNIEnv *, jclass){
+    return (jlong)new FilterEngine();
+}
+
+JNIEXPORT jboolean JNICALL Java_com_asav_processimage_FilterEngine_engineProcess
+        (JNIEnv * env, jclass, jlong thiz, jlong addrMatIn, jlong addrMatOut, jintArray jfilters, jdouble gammaValue){
+    LOGD("Java_com_asav_processimage_FilterEngine_engineProcess");
+    auto t1 = std::chrono::high_resolution_clock::now();
+    bool res=false;
+    if(thiz != 0)
+    {
+        cv::Mat& mIn = *(cv::Mat*)addrMatIn;
+        cv::Mat& mOut = *(cv::Mat*)addrMatOut;
+        jsize numFilters=env->GetArrayLength(jfilters);
+        vector<int> filters(numFilters);
+        env->GetIntArrayRegion(jfilters,0,numFilters,filters.data());
+        res=((FilterEngine*)thiz)->process(mIn,mOut,filters,gammaValue);
+    }
+    auto int_ms = std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::high_resolution_clock::now() - t1);
+    LOGD("Java_com_asav_processimage_FilterEngine_engineProcess end total time: %d ms, completed: %d",(int)int_ms.count(),res);
+    return res;
+}
+
+JNIEXPORT void JNICALL Java_com_asav_processimage_FilterEngine_engineCancel
+        (JNIEnv *, jclass, jlong thiz){
+    if(thiz != 0)
+        ((FilterEngine*)thiz)->cancel();
+}
+
+JNIEXPORT void JNICALL Java_com_asav_processimage_FilterEngine_engineRelease
+        (JNIEnv *, jclass, jlong thiz){
+    if(thiz != 0)
+        delete (FilterEngine*)thiz;
+}
@@ -5,6 +5,10 @@
 #include <opencv2/ximgproc.hpp>
 #include<opencv2/features2d/features2d.hpp>
 
+#include <chrono>
+#include <cmath>
+#include <cstring>
+#include <mutex>
 #include <string>
 #include <vector>
 
@@ -27,3 +31,182 @@ JNIEXPORT void JNICALL Java_com_asav_processimage_OpenCVNativeCaller_niBlackThre
     LOGD("Java_com_asav_processimage_MainActivity_niBlackThreshold -- END");
 }
 
+
+// must be the same as the order of OpenCVNativeCaller.BinarizationMethod
+enum BinarizationMethod{
+    NIBLACK=0,
+    SAUVOLA,
+    WOLF
+};
+
+/*
+ * Local thresholding with the formulas of cv::ximgproc::niBlackThreshold.
+ * Local mean and variance are obtained in O(1) per pixel from integral images of the image padded by
+ * replicated borders. Integrals are stored as 32-bit unsigned values, they overflow for large images,
+ * but window sums are computed modulo 2^32 and are exact for windows up to 255x255.
+ * Buffers are kept between calls, all passes are parallel over stripes of rows.
+ */
+class Binarizer{
+public:
+    void binarize(const cv::Mat& mIn, cv::Mat& mOut, int method, int windowSize, double k, double r){
+        windowSize=std::max(3,std::min(255,windowSize|1));
+        int radius=windowSize/2;
+        const cv::Mat* gray=&mIn;
+        if(mIn.channels()==4){
+            cv::cvtColor(mIn,grayBuffer,cv::COLOR_RGBA2GRAY);
+            gray=&grayBuffer;
+        }
+        else if(mIn.channels()==3){
+            cv::cvtColor(mIn,grayBuffer,cv::COLOR_RGB2GRAY);
+            gray=&grayBuffer;
+        }
+        // the input is not used after padding, so mOut may be the same gray image
+        cv::copyMakeBorder(*gray,padded,radius,radius,radius,radius,cv::BORDER_REPLICATE);
+        computeIntegrals();
+        int rows=padded.rows-2*radius, cols=padded.cols-2*radius;
+        mOut.create(rows,cols,CV_8UC1);
+
+        double minVal=0, maxStd=0;
+        if(method==WOLF){
+            cv::minMaxLoc(padded,&minVal);
+            maxStd=getMaxStd(rows,cols,windowSize);
+        }
+        const double area=(double)windowSize*windowSize;
+        int numStripes=getNumStripes(rows);
+        cv::parallel_for_(cv::Range(0,numStripes),[&](const cv::Range& range){
+            for(int stripe=range.start;stripe<range.end;++stripe){
+                int r0=rows*stripe/numStripes, r1=rows*(stripe+1)/numStripes;
+                for(int y=r0;y<r1;++y){
+                    const uint32_t* sumTop=sum.ptr<uint32_t>(y), *sumBottom=sum.ptr<uint32_t>(y+windowSize);
+                    const uint32_t* sqTop=sqsum.ptr<uint32_t>(y), *sqBottom=sqsum.ptr<uint32_t>(y+windowSize);
+                    const uchar* src=padded.ptr<uchar>(y+radius)+radius;
+                    uchar* dst=mOut.ptr<uchar>(y);
+                    for(int x=0;x<cols;++x){
+                        uint32_t s=sumBottom[x+windowSize]-sumTop[x+windowSize]-sumBottom[x]+sumTop[x];
+                        uint32_t sq=sqBottom[x+windowSize]-sqTop[x+windowSize]-sqBottom[x]+sqTop[x];
+                        double mean=s/area;
+                        double variance=sq/area-mean*mean;
+                        double stddev=variance>0?std::sqrt(variance):0;
+                        double threshold;
+                        switch(method){
+                            case SAUVOLA:
+                                threshold=mean*(1+k*(stddev/r-1));
+                                break;
+                            case WOLF:
+                                threshold=mean-k*(mean-minVal-stddev*(mean-minVal)/maxStd);
+                                break;
+                            default:
+                                threshold=mean+k*stddev;
+                                break;
+                        }
+                        dst[x]=(src[x]>threshold)?255:0;
+                    }
+                }
+            }
+        });
+    }
+
+private:
+    cv::Mat grayBuffer, padded;
+    // CV_32S matrices accessed as uint32_t
+    cv::Mat sum, sqsum;
+
+    int getNumStripes(int rows){
+        return std::max(1,std::min(rows,cv::getNumThreads()*4));
+    }
+
+    // row prefix sums in parallel over rows, then column accumulation in parallel over column blocks
+    void computeIntegrals(){
+        int rows=padded.rows+1, cols=padded.cols+1;
+        sum.create(rows,cols,CV_32SC1);
+        sqsum.create(rows,cols,CV_32SC1);
+        memset(sum.ptr(0),0,cols*sizeof(uint32_t));
+        memset(sqsum.ptr(0),0,cols*sizeof(uint32_t));
+        int numStripes=getNumStripes(padded.rows);
+        cv::parallel_for_(cv::Range(0,numStripes),[&](const cv::Range& range){
+            for(int stripe=range.start;stripe<range.end;++stripe){
+                int r0=padded.rows*stripe/numStripes, r1=padded.rows*(stripe+1)/numStripes;
+                for(int y=r0;y<r1;++y){
+                    const uchar* src=padded.ptr<uchar>(y);
+                    uint32_t* sumRow=sum.ptr<uint32_t>(y+1);
+                    uint32_t* sqRow=sqsum.ptr<uint32_t>(y+1);
+                    uint32_t s=0, sq=0;
+                    sumRow[0]=sqRow[0]=0;
+                    for(int x=0;x<padded.cols;++x){
+                        uint32_t v=src[x];
+                        s+=v;
+                        sq+=v*v;
+                        sumRow[x+1]=s;
+                        sqRow[x+1]=sq;
+                    }
+                }
+            }
+        });
+        const int blockSize=64;
+        int numBlocks=(cols+blockSize-1)/blockSize;
+        cv::parallel_for_(cv::Range(0,numBlocks),[&](const cv::Range& range){
+            for(int block=range.start;block<range.end;++block){
+                int c0=block*blockSize, c1=std::min(cols,c0+blockSize);
+                for(int y=2;y<rows;++y){
+                    const uint32_t* sumPrev=sum.ptr<uint32_t>(y-1), *sqPrev=sqsum.ptr<uint32_t>(y-1);
+                    uint32_t* sumRow=sum.ptr<uint32_t>(y), *sqRow=sqsum.ptr<uint32_t>(y);
+                    for(int x=c0;x<c1;++x){
+                        sumRow[x]+=sumPrev[x];
+                        sqRow[x]+=sqPrev[x];
+                    }
+                }
+            }
+        });
+    }
+
+    double getMaxStd(int rows, int cols, int windowSize){
+        const double area=(double)windowSize*windowSize;
+        double maxVariance=0;
+        std::mutex maxMutex;
+        int numStripes=getNumStripes(rows);
+        cv::parallel_for_(cv::Range(0,numStripes),[&](const cv::Range& range){
+            double localMax=0;
+            for(int stripe=range.start;stripe<range.end;++stripe){
+                int r0=rows*stripe/numStripes, r1=rows*(stripe+1)/numStripes;
+                for(int y=r0;y<r1;++y){
+                    const uint32_t* sumTop=sum.ptr<uint32_t>(y), *sumBottom=sum.ptr<uint32_t>(y+windowSize);
+                    const uint32_t* sqTop=sqsum.ptr<uint32_t>(y), *sqBottom=sqsum.ptr<uint32_t>(y+windowSize);
+                    for(int x=0;x<cols;++x){
+                        uint32_t s=sumBottom[x+windowSize]-sumTop[x+windowSize]-sumBottom[x]+sumTop[x];
+                        uint32_t sq=sqBottom[x+windowSize]-sqTop[x+windowSize]-sqBottom[x]+sqTop[x];
+                        double mean=s/area;
+                        localMax=std::max(localMax,sq/area-mean*mean);
+                    }
+                }
+            }
+            std::lock_guard<std::mutex> lock(maxMutex);
+            maxVariance=std::max(maxVariance,localMax);
+        });
+        return maxVariance>0?std::sqrt(maxVariance):1;
+    }
+};
+
+JNIEXPORT jlong JNICALL Java_com_asav_processimage_OpenCVNativeCaller_binarizationInit
+        (JNIEnv *, jclass){
+    return (jlong)new Binarizer();
+}
+
+JNIEXPORT void JNICALL Java_com_asav_processimage_OpenCVNativeCaller_binarize
+        (JNIEnv *, jclass, jlong thiz, jlong addrMatIn, jlong addrMatOut, jint method, jint windowSize, jdouble k, jdouble r){
+    LOGD("Java_com_asav_processimage_OpenCVNativeCaller_binarize -- BEGIN");
+    auto t1 = std::chrono::high_resolution_clock::now();
+    if(thiz != 0)
+    {
+        cv::Mat& mIn = *(cv::Mat*)addrMatIn;
+        cv::Mat& mOut = *(cv::Mat*)addrMatOut;
+        ((Binarizer*)thiz)->binarize(mIn,mOut,method,windowSize,k,r);
+    }
+    auto int_ms = std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::high_resolution_clock::now() - t1);
+    LOGD("Java_com_asav_processimage_OpenCVNativeCaller_binarize -- END, total time: %d ms",(int)int_ms.count());
+}
+
+JNIEXPORT void JNICALL Java_com_asav_processimage_OpenCVNativeCaller_binarizationRelease
+        (JNIEnv *, jclass, jlong thiz){
+    if(thiz != 0)
+        delete (Binarizer*)thiz;
+}
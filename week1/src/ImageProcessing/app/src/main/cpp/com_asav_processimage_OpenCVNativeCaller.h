@@ -15,6 +15,30 @@ extern "C" {
 JNIEXPORT void JNICALL Java_com_asav_processimage_OpenCVNativeCaller_niBlackThreshold
   (JNIEnv *, jclass, jlong, jlong);
 
+/*
+ * Class:     com_asav_processimage_OpenCVNativeCaller
+ * Method:    binarizationInit
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_asav_processimage_OpenCVNativeCaller_binarizationInit
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     com_asav_processimage_OpenCVNativeCaller
+ * Method:    binarize
+ * Signature: (JJJIIDD)V
+ */
+JNIEXPORT void JNICALL Java_com_asav_processimage_OpenCVNativeCaller_binarize
+  (JNIEnv *, jclass, jlong, jlong, jlong, jint, jint, jdouble, jdouble);
+
+/*
+ * Class:     com_asav_processimage_OpenCVNativeCaller
+ * Method:    binarizationRelease
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_asav_processimage_OpenCVNativeCaller_binarizationRelease
+  (JNIEnv *, jclass, jlong);
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,246 @@
+package com.asav.processimage;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a filter chain and optional Niblack binarization to every image of a directory.
+ * Every worker decodes, processes and encodes one image at a time, so at most numWorkers images are in memory.
+ * Results are written as PNG files into the output directory, the name of the source with its extension is kept,
+ * e.g., page1.jpg.png, so sources which differ only in extensions do not share an output. A file is renamed to its
+ * final name only after it is completely written, so an interrupted run is resumed by skipping existing outputs.
+ */
+public class BatchProcessor {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "BatchProcessor";
+
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".tif", ".tiff", ".webp"};
+    private static final String PARTIAL_SUFFIX = ".part.png";
+
+    public static class Progress {
+        public final int total, processed, skipped, failed;
+        public final long elapsedMs;
+        public final double megapixels;
+
+        Progress(int total, int processed, int skipped, int failed, long elapsedMs, double megapixels) {
+            this.total = total;
+            this.processed = processed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.elapsedMs = elapsedMs;
+            this.megapixels = megapixels;
+        }
+
+        public int getDone() {
+            return processed + skipped + failed;
+        }
+
+        public double getImagesPerSecond() {
+            return elapsedMs > 0 ? processed * 1000.0 / elapsedMs : 0;
+        }
+
+        public double getMegapixelsPerSecond() {
+            return elapsedMs > 0 ? megapixels * 1000.0 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d images (%d skipped, %d failed), %.2f images/s, %.1f MP/s",
+                    getDone(), total, skipped, failed, getImagesPerSecond(), getMegapixelsPerSecond());
+        }
+    }
+
+    public interface Listener {
+        /** Called in worker threads after every image. */
+        void onProgress(Progress progress);
+        void onFinished(Progress progress, boolean cancelled);
+    }
+
+    private final List<FilterEngine.Filter> filters;
+    private final boolean binarize;
+    private final double gammaValue;
+    private final int numWorkers;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private ExecutorService executor = null;
+    private final List<Worker> workers = new ArrayList<>();
+
+    /** Native contexts with buffers of one worker thread. */
+    private static class Worker {
+        final FilterEngine engine = new FilterEngine();
+        final Binarizer binarizer = new Binarizer();
+
+        void release() {
+            engine.release();
+            binarizer.release();
+        }
+    }
+
+    public BatchProcessor(List<FilterEngine.Filter> filters, boolean binarize, double gammaValue, int numWorkers) {
+        this.filters = new ArrayList<>(filters);
+        this.binarize = binarize;
+        this.gammaValue = gammaValue;
+        this.numWorkers = Math.max(1, numWorkers);
+    }
+
+    private static boolean isImage(String name) {
+        String lowerName = name.toLowerCase();
+        if (lowerName.endsWith(PARTIAL_SUFFIX))
+            return false;
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lowerName.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+
+    private static String getOutputName(String name) {
+        return name + ".png";
+    }
+
+    /**
+     * Starts processing in background, listener.onFinished is called in the last worker or in the calling thread.
+     * Throws IOException if the input directory cannot be read, e.g., it does not exist or the storage is not accessible.
+     */
+    public synchronized void start(File inputDir, final File outputDir, final Listener listener) throws IOException {
+        cancelled.set(false);
+        File[] files = inputDir.listFiles((dir, name) -> isImage(name));
+        if (files == null)
+            throw new IOException("Cannot read " + inputDir);
+        Arrays.sort(files);
+        if (!outputDir.exists() && !outputDir.mkdirs())
+            throw new IOException("Cannot create " + outputDir);
+
+        final int total = files.length;
+        final AtomicInteger processed = new AtomicInteger(0), skipped = new AtomicInteger(0), failed = new AtomicInteger(0);
+        final AtomicInteger remaining = new AtomicInteger(total);
+        final AtomicLong pixels = new AtomicLong(0);
+        final long startTime = SystemClock.uptimeMillis();
+        if (total == 0) {
+            listener.onFinished(new Progress(0, 0, 0, 0, 0, 0), false);
+            return;
+        }
+
+        final AtomicInteger threadIndex = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread thread = new Thread(r, "batch-processor-" + threadIndex.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                Worker newWorker = new Worker();
+                synchronized (workers) {
+                    workers.add(newWorker);
+                }
+                return newWorker;
+            }
+        };
+        for (final File file : files) {
+            executor.execute(() -> {
+                if (!cancelled.get()) {
+                    File outputFile = new File(outputDir, getOutputName(file.getName()));
+                    if (outputFile.exists()) {
+                        skipped.incrementAndGet();
+                    } else {
+                        long numPixels = processFile(file, outputFile, worker.get());
+                        if (numPixels > 0) {
+                            processed.incrementAndGet();
+                            pixels.addAndGet(numPixels);
+                        } else if (!cancelled.get()) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+                Progress progress = new Progress(total, processed.get(), skipped.get(), failed.get(),
+                        SystemClock.uptimeMillis() - startTime, pixels.get() / 1e6);
+                if (!cancelled.get())
+                    listener.onProgress(progress);
+                if (remaining.decrementAndGet() == 0) {
+                    Log.i(TAG, "Finished: " + progress);
+                    synchronized (workers) {
+                        for (Worker finishedWorker : workers)
+                            finishedWorker.release();
+                        workers.clear();
+                    }
+                    listener.onFinished(progress, cancelled.get());
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /** Returns the number of pixels of the processed image or 0 if the image is not processed. */
+    private long processFile(File inputFile, File outputFile, Worker worker) {
+        Mat image = Imgcodecs.imread(inputFile.getAbsolutePath(), Imgcodecs.IMREAD_COLOR);
+        if (image.empty()) {
+            Log.w(TAG, "Cannot decode " + inputFile);
+            return 0;
+        }
+        long numPixels = image.total();
+        Mat rgb = new Mat(), out = new Mat();
+        try {
+            Imgproc.cvtColor(image, rgb, Imgproc.COLOR_BGR2RGB);
+            image.release();
+            if (!filters.isEmpty()) {
+                if (!worker.engine.apply(rgb, out, filters, gammaValue))
+                    return 0;
+            } else {
+                rgb.copyTo(out);
+            }
+            if (binarize) {
+                worker.binarizer.binarize(out, out);
+            } else {
+                Imgproc.cvtColor(out, out, Imgproc.COLOR_RGB2BGR);
+            }
+            String outputName = outputFile.getName();
+            File partialFile = new File(outputFile.getParentFile(), outputName.substring(0, outputName.length() - 4) + PARTIAL_SUFFIX);
+            if (!Imgcodecs.imwrite(partialFile.getAbsolutePath(), out) || !partialFile.renameTo(outputFile)) {
+                Log.w(TAG, "Cannot write " + outputFile);
+                partialFile.delete();
+                return 0;
+            }
+            return numPixels;
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing " + inputFile + ": " + e, e);
+            return 0;
+        } finally {
+            image.release();
+            rgb.release();
+            out.release();
+        }
+    }
+
+    /** Queued images are skipped and running native filters are stopped, completed outputs are kept. */
+    public synchronized void cancel() {
+        cancelled.set(true);
+        synchronized (workers) {
+            for (Worker runningWorker : workers)
+                runningWorker.engine.cancel();
+        }
+    }
+
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        ExecutorService currentExecutor;
+        synchronized (this) {
+            currentExecutor = executor;
+        }
+        return currentExecutor == null || currentExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,34 @@
+package com.asav.processimage;
+
+import org.opencv.core.Mat;
+
+/**
+ * Niblack, Sauvola and Wolf local thresholding with integral images in a native context,
+ * which keeps its buffers between calls. The input may be gray, RGB or RGBA,
+ * the output may be the same Mat as a gray input. An instance must not be used by several threads at once.
+ */
+public class Binarizer {
+    // the same parameters as the previous call of cv::ximgproc::niBlackThreshold
+    public static final int DEFAULT_WINDOW_SIZE = 25;
+    public static final double DEFAULT_K = 0;
+    public static final double SAUVOLA_R = 128;
+
+    public Binarizer(){
+        handler=OpenCVNativeCaller.binarizationInit();
+    }
+    public void binarize(Mat in, Mat out, OpenCVNativeCaller.BinarizationMethod method, int windowSize, double k){
+        if (handler != 0)
+            OpenCVNativeCaller.binarize(handler, in.getNativeObjAddr(), out.getNativeObjAddr(), method.ordinal(), windowSize, k, SAUVOLA_R);
+    }
+    public void binarize(Mat in, Mat out){
+        binarize(in, out, OpenCVNativeCaller.BinarizationMethod.NIBLACK, DEFAULT_WINDOW_SIZE, DEFAULT_K);
+    }
+    public void release(){
+        if (handler != 0) {
+            OpenCVNativeCaller.binarizationRelease(handler);
+            handler = 0;
+        }
+    }
+
+    private long handler=0;
+}
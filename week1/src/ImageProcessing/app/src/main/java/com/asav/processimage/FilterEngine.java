@@ -0,0 +1,87 @@
+package com.asav.processimage;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a chain of filters to an RGB(A) image in a background thread.
+ * The native engine keeps its buffers between calls, composes consecutive contrast, gamma and equalization
+ * into one look-up table pass over HSV, and processes the image in parallel stripes.
+ * A new request cancels the running one, so only the latest result is delivered.
+ */
+public class FilterEngine {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "FilterEngine";
+
+    // the order must be the same as in com_asav_processimage_FilterEngine.cpp
+    public enum Filter {CONTRAST, GAMMA, EQUALIZE_HISTO, BLUR, MEDIAN, BILATERAL}
+
+    public interface Callback {
+        /** Called in the engine thread, out is reused by the next request. */
+        void onFiltered(Mat out, long timeMs);
+    }
+
+    private final long handler;
+    private final Mat out = new Mat();
+    private final AtomicInteger generation = new AtomicInteger(0);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "filter-engine"));
+
+    /** The native library must be loaded. */
+    public FilterEngine() {
+        handler = engineInit();
+    }
+
+    /** The input image must not be modified until the callback is called. */
+    public void process(final Mat in, List<Filter> filters, final double gammaValue, final Callback callback) {
+        final int[] filterIds = new int[filters.size()];
+        for (int i = 0; i < filterIds.length; ++i)
+            filterIds[i] = filters.get(i).ordinal();
+        final int requestGeneration = generation.incrementAndGet();
+        engineCancel(handler);
+        executor.submit(() -> {
+            if (requestGeneration != generation.get())
+                return;
+            long startTime = SystemClock.uptimeMillis();
+            boolean completed = engineProcess(handler, in.getNativeObjAddr(), out.getNativeObjAddr(), filterIds, gammaValue);
+            long timeMs = SystemClock.uptimeMillis() - startTime;
+            if (completed && requestGeneration == generation.get())
+                callback.onFiltered(out, timeMs);
+            else
+                Log.d(TAG, "Request " + requestGeneration + " cancelled after " + timeMs + " ms");
+        });
+    }
+
+    /** Processes the image in the calling thread, an engine must not be used by several threads at once. */
+    public boolean apply(Mat in, Mat out, List<Filter> filters, double gammaValue) {
+        int[] filterIds = new int[filters.size()];
+        for (int i = 0; i < filterIds.length; ++i)
+            filterIds[i] = filters.get(i).ordinal();
+        return engineProcess(handler, in.getNativeObjAddr(), out.getNativeObjAddr(), filterIds, gammaValue);
+    }
+
+    public void cancel() {
+        generation.incrementAndGet();
+        engineCancel(handler);
+    }
+
+    public void release() {
+        cancel();
+        executor.submit(() -> {
+            engineRelease(handler);
+            out.release();
+        });
+        executor.shutdown();
+    }
+
+    private static native long engineInit();
+    private static native boolean engineProcess(long handler, long matAddrIn, long matAddrOut, int[] filters, double gammaValue);
+    private static native void engineCancel(long handler);
+    private static native void engineRelease(long handler);
+}
@@ -13,6 +13,7 @@ import android.graphics.BitmapFactory;
 import androidx.exifinterface.media.ExifInterface;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -34,6 +35,8 @@ import org.opencv.features2d.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.utils.Converters;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -41,7 +44,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static org.opencv.core.Core.DFT_SCALE;
 import static org.opencv.core.CvType.CV_8U;
 
 public class MainActivity extends AppCompatActivity {
@@ -50,6 +52,18 @@ public class MainActivity extends AppCompatActivity {
     private final int REQUEST_CODE_ASK_MULTIPLE_PERMISSIONS = 124;
     private ImageView imageView;
     private Mat sampledImage=null;
+    private FilterEngine filterEngine=null;
+    private Binarizer binarizer=null;
+    private final OpenCVNativeCaller.BinarizationMethod binarizationMethod=OpenCVNativeCaller.BinarizationMethod.NIBLACK;
+    private final boolean useFilterEngine=true;
+    private boolean chainFilters=false;
+    private final List<FilterEngine.Filter> filterChain=new ArrayList<>();
+    private final SpectrumCache spectrumCache=new SpectrumCache();
+    //normalized radii of frequency filters (1 is the Nyquist frequency), the low-pass filter keeps a disk of radius 1/16
+    private final double fftCutoff=1.0/16, fftHighCutoff=0.25;
+    private BatchProcessor batchProcessor=null;
+    private static final String BATCH_INPUT_DIR="scans", BATCH_OUTPUT_DIR="scans_processed";
+    private static final int BATCH_NUM_WORKERS=2;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -96,6 +110,22 @@ public class MainActivity extends AppCompatActivity {
     private void init(){
     }
     @Override
+    protected void onDestroy() {
+        if(batchProcessor!=null) {
+            batchProcessor.cancel();
+            batchProcessor=null;
+        }
+        if(binarizer!=null) {
+            binarizer.release();
+            binarizer=null;
+        }
+        if(filterEngine!=null) {
+            filterEngine.release();
+            filterEngine=null;
+        }
+        super.onDestroy();
+    }
+    @Override
     public void onResume()
     {
         super.onResume();
@@ -186,22 +216,34 @@ public class MainActivity extends AppCompatActivity {
                 return true;
             case R.id.action_contrast:
                 if(isImageLoaded()) {
-                    contrast();
+                    if(useFilterEngine)
+                        applyFilter(FilterEngine.Filter.CONTRAST);
+                    else
+                        contrast();
                 }
                 return true;
             case R.id.action_gamma:
                 if(isImageLoaded()) {
-                    gammaCorrection();
+                    if(useFilterEngine)
+                        applyFilter(FilterEngine.Filter.GAMMA);
+                    else
+                        gammaCorrection();
                 }
                 return true;
             case R.id.action_equalizehisto:
                 if(isImageLoaded()) {
-                    equalizeHisto();
+                    if(useFilterEngine)
+                        applyFilter(FilterEngine.Filter.EQUALIZE_HISTO);
+                    else
+                        equalizeHisto();
                 }
                 return true;
             case R.id.action_blur:
                 if(isImageLoaded()) {
-                    blur();
+                    if(useFilterEngine)
+                        applyFilter(FilterEngine.Filter.BLUR);
+                    else
+                        blur();
                 }
                 return true;
             case R.id.action_fft:
@@ -211,7 +253,17 @@ public class MainActivity extends AppCompatActivity {
                 return true;
             case R.id.action_fft_filter:
                 if(isImageLoaded()) {
-                    fftFilter();
+                    fftFilter(SpectrumCache.FilterType.LOW_PASS);
+                }
+                return true;
+            case R.id.action_fft_highpass:
+                if(isImageLoaded()) {
+                    fftFilter(SpectrumCache.FilterType.HIGH_PASS);
+                }
+                return true;
+            case R.id.action_fft_bandpass:
+                if(isImageLoaded()) {
+                    fftFilter(SpectrumCache.FilterType.BAND_PASS);
                 }
                 return true;
             case R.id.action_addnoise:
@@ -221,14 +273,28 @@ public class MainActivity extends AppCompatActivity {
                 return true;
             case R.id.action_median:
                 if(isImageLoaded()) {
-                    median();
+                    if(useFilterEngine)
+                        applyFilter(FilterEngine.Filter.MEDIAN);
+                    else
+                        median();
                 }
                 return true;
             case R.id.action_bilateral:
                 if(isImageLoaded()) {
-                    bilateral();
+                    if(useFilterEngine)
+                        applyFilter(FilterEngine.Filter.BILATERAL);
+                    else
+                        bilateral();
                 }
                 return true;
+            case R.id.action_batch:
+                processFolder();
+                return true;
+            case R.id.action_chain_filters:
+                chainFilters=!chainFilters;
+                item.setChecked(chainFilters);
+                filterChain.clear();
+                return true;
 
             default:
                 // If we got here, the user's action was not recognized.
@@ -286,6 +352,9 @@ public class MainActivity extends AppCompatActivity {
             int width = size.x;
             int height = size.y;
             double downSampleRatio= calculateSubSampleSize(rgbImage,width,height);
+            if(filterEngine!=null)
+                filterEngine.cancel();
+            filterChain.clear();
             sampledImage=new Mat();
             Imgproc.resize(rgbImage, sampledImage, new
                     Size(),downSampleRatio,downSampleRatio,Imgproc.INTER_AREA);
@@ -324,9 +393,14 @@ public class MainActivity extends AppCompatActivity {
             //Imgproc.threshold(grayImage,binImage,128,255,Imgproc.THRESH_BINARY);
             Imgproc.threshold(grayImage,binImage,0,255,Imgproc.THRESH_BINARY+Imgproc.THRESH_OTSU);
         }
-        else{
+        else if(false){
             OpenCVNativeCaller.niBlackThreshold(sampledImage.getNativeObjAddr(),binImage.getNativeObjAddr());
         }
+        else{
+            if(binarizer==null)
+                binarizer=new Binarizer();
+            binarizer.binarize(sampledImage,binImage,binarizationMethod,Binarizer.DEFAULT_WINDOW_SIZE,Binarizer.DEFAULT_K);
+        }
         displayImage(binImage);
     }
     private final boolean useColor=true;
@@ -426,118 +500,15 @@ public class MainActivity extends AppCompatActivity {
 
     //https://docs.opencv.org/3.4/d8/d01/tutorial_discrete_fourier_transform.html
     private void fft(){
-        Mat grayImage = new Mat();
-        Imgproc.cvtColor(sampledImage, grayImage, Imgproc.COLOR_RGB2GRAY);
-        grayImage.convertTo(grayImage, CvType.CV_64FC1);
-
-        int m = Core.getOptimalDFTSize(grayImage.rows());
-        int n = Core.getOptimalDFTSize(grayImage.cols()); // on the border
-
-        Mat padded = new Mat(new Size(n, m), CvType.CV_64FC1); // expand input
-
-        Core.copyMakeBorder(grayImage, padded, 0, m - grayImage.rows(), 0,
-                n - grayImage.cols(), Core.BORDER_CONSTANT);
-
-        List<Mat> planes = new ArrayList<Mat>();
-        planes.add(padded);
-        planes.add(Mat.zeros(padded.rows(), padded.cols(), CvType.CV_64FC1));
-        Mat complexI = new Mat();
-        Core.merge(planes, complexI); // Add to the expanded another plane with zeros
-        Mat complexI2=new Mat();
-        Core.dft(complexI, complexI2); // this way the result may fit in the source matrix
-
-        // compute the magnitude and switch to logarithmic scale
-        // => log(1 + sqrt(Re(DFT(I))^2 + Im(DFT(I))^2))
-        Core.split(complexI2, planes); // planes[0] = Re(DFT(I), planes[1] =Im(DFT(I))
-        Mat spectrum = new Mat();
-        if(true) {
-            Core.magnitude(planes.get(0), planes.get(1), spectrum);
-            Core.add(spectrum, new Scalar(1), spectrum);
-            Core.log(spectrum, spectrum);
-        }
-        else{
-            Core.phase(planes.get(1), planes.get(0), spectrum);
-        }
-
-        Mat crop = new Mat(spectrum, new Rect(0, 0, spectrum.cols() & -2,
-                spectrum.rows() & -2));
-
-        Mat out = crop.clone();
-
-        // rearrange the quadrants of Fourier image so that the origin is at the
-        // image center
-        int cx = out.cols() / 2;
-        int cy = out.rows() / 2;
-
-        Rect q0Rect = new Rect(0, 0, cx, cy);
-        Rect q1Rect = new Rect(cx, 0, cx, cy);
-        Rect q2Rect = new Rect(0, cy, cx, cy);
-        Rect q3Rect = new Rect(cx, cy, cx, cy);
-
-        Mat q0 = new Mat(out, q0Rect); // Top-Left - Create a ROI per quadrant
-        Mat q1 = new Mat(out, q1Rect); // Top-Right
-        Mat q2 = new Mat(out, q2Rect); // Bottom-Left
-        Mat q3 = new Mat(out, q3Rect); // Bottom-Right
-
-        Mat tmp = new Mat(); // swap quadrants (Top-Left with Bottom-Right)
-        q0.copyTo(tmp);
-        q3.copyTo(q0);
-        tmp.copyTo(q3);
-
-        q1.copyTo(tmp); // swap quadrant (Top-Right with Bottom-Left)
-        q2.copyTo(q1);
-        tmp.copyTo(q2);
-
-        Core.normalize(out, out, 0, 255, Core.NORM_MINMAX);
-        out.convertTo(out, CvType.CV_8UC1);
-        displayImage(out);
+        spectrumCache.setImage(sampledImage);
+        displayImage(spectrumCache.getMagnitudeSpectrum());
     }
     //https://docs.opencv.org/master/de/dbc/tutorial_py_fourier_transform.html
-    private void fftFilter(){
-        Mat grayImage = new Mat();
-        Imgproc.cvtColor(sampledImage, grayImage, Imgproc.COLOR_RGB2GRAY);
-        grayImage.convertTo(grayImage, CvType.CV_64FC1);
-
-        int m = Core.getOptimalDFTSize(grayImage.rows());
-        int n = Core.getOptimalDFTSize(grayImage.cols()); // on the border
-
-        Mat padded = new Mat(new Size(n, m), CvType.CV_64FC1); // expand input
-
-        Core.copyMakeBorder(grayImage, padded, 0, m - grayImage.rows(), 0,
-                n - grayImage.cols(), Core.BORDER_CONSTANT);
-
-        List<Mat> planes = new ArrayList<Mat>();
-        planes.add(padded);
-        planes.add(Mat.zeros(padded.rows(), padded.cols(), CvType.CV_64FC1));
-        Mat complexI = new Mat();
-        Core.merge(planes, complexI); // Add to the expanded another plane with zeros
-        Mat complexI2=new Mat();
-        Core.dft(complexI, complexI2); // this way the result may fit in the source matrix
-
-        //Mat mask=Mat.zeros(padded.rows(), padded.cols(), CvType.CV_64FC2);
-        if(false){
-            int cropSizeX=8;
-            int cropSizeY=8;
-            Mat mask=Mat.zeros(complexI2.size(),CV_8U);
-            Mat crop = new Mat(mask, new Rect(cropSizeX, cropSizeY, complexI2.cols() - 2 * cropSizeX, complexI2.rows() - 2 * cropSizeY));
-            crop.setTo(new Scalar(1));
-            Mat tmp=new Mat();
-            complexI2.copyTo(tmp, mask);
-            complexI2=tmp;
-        }
-        else {
-            int cropSizeX=complexI2.cols()/32;
-            int cropSizeY=complexI2.rows()/32;
-            Mat crop = new Mat(complexI2, new Rect(cropSizeX, cropSizeY, complexI2.cols() - 2 * cropSizeX, complexI2.rows() - 2 * cropSizeY));
-            crop.setTo(new Scalar(0, 0));
-        }
-        Mat complexII=new Mat();
-        Core.idft(complexI2, complexII,DFT_SCALE);
-        Core.split(complexII, planes);
-        Mat out = planes.get(0);
-
-        Core.normalize(out, out, 0, 255, Core.NORM_MINMAX);
-        out.convertTo(out, CvType.CV_8UC1);
+    private void fftFilter(SpectrumCache.FilterType filterType){
+        long startTime = SystemClock.uptimeMillis();
+        spectrumCache.setImage(sampledImage);
+        Mat out=spectrumCache.filter(filterType,fftCutoff,fftHighCutoff);
+        Log.i(TAG, "FFT "+filterType+" filtering time: "+(SystemClock.uptimeMillis()-startTime)+" ms");
         displayImage(out);
     }
 
@@ -576,6 +547,80 @@ public class MainActivity extends AppCompatActivity {
         displayImage(outImage);
     }
 
+    private void applyFilter(FilterEngine.Filter filter){
+        if(filterEngine==null)
+            filterEngine=new FilterEngine();
+        Mat input=sampledImage;
+        if(chainFilters) {
+            filterChain.add(filter);
+        }
+        else{
+            filterChain.clear();
+            filterChain.add(filter);
+            if(filter==FilterEngine.Filter.MEDIAN)
+                input=getNoisyImage(true);
+        }
+        Log.i(TAG,"Filters "+filterChain);
+        filterEngine.process(input, filterChain, 1.3, (out, timeMs) -> {
+            Log.i(TAG, "Filters processed in " + timeMs + " ms");
+            final Bitmap bitmap = Bitmap.createBitmap(out.cols(),
+                    out.rows(),Bitmap.Config.RGB_565);
+            Utils.matToBitmap(out, bitmap);
+            runOnUiThread(() -> displayImage(bitmap));
+        });
+    }
+
+    /*
+     * Processes all images of Pictures/scans into Pictures/scans_processed with the current filter chain
+     * or with histogram equalization and bilateral filter followed by Niblack binarization.
+     * Already processed images are skipped, the second click cancels the processing.
+     */
+    private void processFolder(){
+        if(batchProcessor!=null){
+            batchProcessor.cancel();
+            batchProcessor=null;
+            return;
+        }
+        List<FilterEngine.Filter> filters=(chainFilters && !filterChain.isEmpty())?filterChain:
+                Arrays.asList(FilterEngine.Filter.EQUALIZE_HISTO, FilterEngine.Filter.BILATERAL);
+        File picturesDir=Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        File inputDir=new File(picturesDir,BATCH_INPUT_DIR);
+        File outputDir=new File(picturesDir,BATCH_OUTPUT_DIR);
+        Log.i(TAG,"Batch processing of "+inputDir+" with "+filters);
+        final BatchProcessor processor=new BatchProcessor(filters,true,1.3,BATCH_NUM_WORKERS);
+        batchProcessor=processor;
+        try {
+            startBatch(processor, inputDir, outputDir);
+        } catch (IOException e) {
+            Log.e(TAG, "Batch processing failed: "+e);
+            batchProcessor=null;
+            Toast.makeText(getApplicationContext(),
+                    "Batch processing failed: "+e.getMessage(),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void startBatch(final BatchProcessor processor, File inputDir, File outputDir) throws IOException {
+        processor.start(inputDir, outputDir, new BatchProcessor.Listener() {
+            @Override
+            public void onProgress(BatchProcessor.Progress progress) {
+                runOnUiThread(() -> getSupportActionBar().setSubtitle(progress.toString()));
+            }
+
+            @Override
+            public void onFinished(BatchProcessor.Progress progress, boolean cancelled) {
+                runOnUiThread(() -> {
+                    if(batchProcessor==processor)
+                        batchProcessor=null;
+                    getSupportActionBar().setSubtitle(null);
+                    Toast.makeText(getApplicationContext(),
+                            (cancelled?"Cancelled: ":"Processed: ")+progress,
+                            Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+    }
+
     private void displayImage(Mat image)
     {
         Bitmap bitmap = Bitmap.createBitmap(image.cols(),
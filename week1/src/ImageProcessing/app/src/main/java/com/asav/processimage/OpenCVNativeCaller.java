@@ -2,4 +2,11 @@ package com.asav.processimage;
 
 public class OpenCVNativeCaller {
     public static native void niBlackThreshold(long matAddrIn, long matAddrOut);
+
+    // the order must be the same as in com_asav_processimage_OpenCVNativeCaller.cpp
+    public enum BinarizationMethod {NIBLACK, SAUVOLA, WOLF}
+
+    public static native long binarizationInit();
+    public static native void binarize(long handler, long matAddrIn, long matAddrOut, int method, int windowSize, double k, double r);
+    public static native void binarizationRelease(long handler);
 }
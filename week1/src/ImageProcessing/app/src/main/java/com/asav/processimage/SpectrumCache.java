@@ -0,0 +1,128 @@
+package com.asav.processimage;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Forward DFT of the grayscale image computed once per loaded image.
+ * The real-input single-precision transform and all planes are kept, so changing a filter
+ * only builds a new mask and runs one inverse transform.
+ * Cutoffs are normalized radii in the frequency domain, 1 corresponds to the Nyquist frequency along each axis.
+ */
+public class SpectrumCache {
+    public enum FilterType {LOW_PASS, HIGH_PASS, BAND_PASS}
+
+    private Mat image = null;
+    private final Mat gray = new Mat();
+    private final Mat padded = new Mat();
+    private final Mat spectrum = new Mat();
+    private final Mat radius = new Mat();
+    private final Mat mask = new Mat();
+    private final Mat filtered = new Mat();
+    private final Mat inverse = new Mat();
+    private Mat magnitude = null;
+
+    /** Recomputes the spectrum only if another image is passed. */
+    public void setImage(Mat rgbImage) {
+        if (rgbImage == image)
+            return;
+        image = rgbImage;
+        magnitude = null;
+        Imgproc.cvtColor(rgbImage, gray, Imgproc.COLOR_RGB2GRAY);
+        int m = Core.getOptimalDFTSize(gray.rows());
+        int n = Core.getOptimalDFTSize(gray.cols());
+        Mat gray32f = new Mat();
+        gray.convertTo(gray32f, CvType.CV_32FC1);
+        Core.copyMakeBorder(gray32f, padded, 0, m - gray.rows(), 0, n - gray.cols(), Core.BORDER_CONSTANT);
+        gray32f.release();
+        Core.dft(padded, spectrum, Core.DFT_COMPLEX_OUTPUT);
+        if (radius.rows() != m || radius.cols() != n)
+            computeRadius(m, n);
+    }
+
+    /** Normalized distance of every frequency to the origin of the unshifted spectrum. */
+    private void computeRadius(int m, int n) {
+        float[] fy = new float[m], fx = new float[n];
+        for (int y = 0; y < m; ++y)
+            fy[y] = 2.0f * Math.min(y, m - y) / m;
+        for (int x = 0; x < n; ++x)
+            fx[x] = 2.0f * Math.min(x, n - x) / n;
+        radius.create(m, n, CvType.CV_32FC1);
+        float[] row = new float[n];
+        for (int y = 0; y < m; ++y) {
+            for (int x = 0; x < n; ++x)
+                row[x] = (float) Math.sqrt(fx[x] * fx[x] + fy[y] * fy[y]);
+            radius.put(y, 0, row);
+        }
+    }
+
+    /** Log-magnitude with the origin at the image center, the result is cached and must not be modified. */
+    public Mat getMagnitudeSpectrum() {
+        if (magnitude == null) {
+            Mat spectrumPlanes = new Mat();
+            Core.magnitude(getPlane(0), getPlane(1), spectrumPlanes);
+            Core.add(spectrumPlanes, new Scalar(1), spectrumPlanes);
+            Core.log(spectrumPlanes, spectrumPlanes);
+
+            Mat out = new Mat(spectrumPlanes, new Rect(0, 0, spectrumPlanes.cols() & -2, spectrumPlanes.rows() & -2)).clone();
+            int cx = out.cols() / 2;
+            int cy = out.rows() / 2;
+            Mat q0 = new Mat(out, new Rect(0, 0, cx, cy));
+            Mat q1 = new Mat(out, new Rect(cx, 0, cx, cy));
+            Mat q2 = new Mat(out, new Rect(0, cy, cx, cy));
+            Mat q3 = new Mat(out, new Rect(cx, cy, cx, cy));
+            Mat tmp = new Mat();
+            q0.copyTo(tmp);
+            q3.copyTo(q0);
+            tmp.copyTo(q3);
+            q1.copyTo(tmp);
+            q2.copyTo(q1);
+            tmp.copyTo(q2);
+
+            Core.normalize(out, out, 0, 255, Core.NORM_MINMAX);
+            out.convertTo(out, CvType.CV_8UC1);
+            magnitude = out;
+        }
+        return magnitude;
+    }
+
+    private Mat getPlane(int channel) {
+        Mat plane = new Mat();
+        Core.extractChannel(spectrum, plane, channel);
+        return plane;
+    }
+
+    /**
+     * Keeps frequencies with normalized radius below cutoff (LOW_PASS), above it (HIGH_PASS),
+     * or in [cutoff, highCutoff] (BAND_PASS). The DC component is kept by HIGH_PASS and BAND_PASS,
+     * so that the mean brightness is preserved.
+     */
+    public Mat filter(FilterType type, double cutoff, double highCutoff) {
+        switch (type) {
+            case LOW_PASS:
+                Core.inRange(radius, new Scalar(0), new Scalar(cutoff), mask);
+                break;
+            case HIGH_PASS:
+                Core.inRange(radius, new Scalar(cutoff), new Scalar(Double.MAX_VALUE), mask);
+                break;
+            case BAND_PASS:
+                Core.inRange(radius, new Scalar(cutoff), new Scalar(highCutoff), mask);
+                break;
+        }
+        if (type != FilterType.LOW_PASS)
+            mask.put(0, 0, 255);
+        filtered.create(spectrum.size(), spectrum.type());
+        filtered.setTo(new Scalar(0, 0));
+        spectrum.copyTo(filtered, mask);
+        Core.idft(filtered, inverse, Core.DFT_SCALE | Core.DFT_REAL_OUTPUT);
+
+        Mat out = new Mat();
+        Core.normalize(new Mat(inverse, new Rect(0, 0, gray.cols(), gray.rows())), out, 0, 255, Core.NORM_MINMAX);
+        out.convertTo(out, CvType.CV_8UC1);
+        return out;
+    }
+}
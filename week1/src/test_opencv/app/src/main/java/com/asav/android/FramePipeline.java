@@ -0,0 +1,263 @@
+package com.asav.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Processes camera frames by a chain of stages in a worker thread, so the camera callback only copies
+ * the frame and returns the last processed result.
+ * If the worker is busy, the waiting frame is replaced by the newer one, so stale frames are dropped.
+ * Input frames are double-buffered, processed frames use three buffers, so the camera thread
+ * and the worker never touch the same Mat. Latencies of stages and frame rates are drawn over the output.
+ */
+public class FramePipeline {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "FramePipeline";
+
+    public interface Stage {
+        String getName();
+        /** out may be the same as in. */
+        void process(Mat in, Mat out);
+    }
+
+    public static Stage grayscale() {
+        return stage("Grayscale", (in, out) -> Imgproc.cvtColor(in, out, Imgproc.COLOR_RGBA2GRAY));
+    }
+
+    public static Stage gaussianBlur(final int kernelSize) {
+        return stage("Gaussian blur", (in, out) -> Imgproc.GaussianBlur(in, out, new Size(kernelSize, kernelSize), 0, 0));
+    }
+
+    public static Stage median(final int kernelSize) {
+        return stage("Median", (in, out) -> Imgproc.medianBlur(in, out, kernelSize));
+    }
+
+    /** Histogram equalization of V channel in HSV color space or of a gray image. */
+    public static Stage equalizeHisto() {
+        final Mat hsv = new Mat(), value = new Mat();
+        return stage("Equalize histogram", (in, out) -> {
+            if (in.channels() == 1) {
+                Imgproc.equalizeHist(in, out);
+                return;
+            }
+            Imgproc.cvtColor(in, hsv, Imgproc.COLOR_RGB2HSV);
+            Core.extractChannel(hsv, value, 2);
+            Imgproc.equalizeHist(value, value);
+            Core.insertChannel(value, hsv, 2);
+            Imgproc.cvtColor(hsv, out, Imgproc.COLOR_HSV2RGB);
+        });
+    }
+
+    public static Stage bilateral(final int diameter, final double sigma) {
+        final Mat rgb = new Mat(), res = new Mat();
+        return stage("Bilateral", (in, out) -> {
+            Mat src = in;
+            if (in.channels() == 4) {
+                Imgproc.cvtColor(in, rgb, Imgproc.COLOR_RGBA2RGB);
+                src = rgb;
+            }
+            Imgproc.bilateralFilter(src, res, diameter, sigma, sigma);
+            res.copyTo(out);
+        });
+    }
+
+    public static Stage canny(final double threshold1, final double threshold2) {
+        final Mat gray = new Mat();
+        return stage("Canny", (in, out) -> {
+            if (in.channels() == 1)
+                in.copyTo(gray);
+            else
+                Imgproc.cvtColor(in, gray, Imgproc.COLOR_RGBA2GRAY);
+            Imgproc.Canny(gray, out, threshold1, threshold2);
+        });
+    }
+
+    private interface Operation {
+        void process(Mat in, Mat out);
+    }
+
+    private static Stage stage(final String name, final Operation operation) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void process(Mat in, Mat out) {
+                operation.process(in, out);
+            }
+        };
+    }
+
+    private static final double SMOOTHING = 0.1;
+
+    private volatile List<Stage> stages = new ArrayList<>();
+    private final Object lock = new Object();
+    private Mat pendingInput = new Mat(), workingInput = new Mat();
+    private Mat ready = new Mat(), back = new Mat(), displayed = new Mat();
+    private final Mat stageBuffer = new Mat();
+    private boolean hasPending = false, hasReady = false, hasDisplayed = false;
+    private long pendingTimestamp = 0, workingTimestamp = 0;
+    private Thread worker = null;
+    private volatile boolean running = false;
+
+    // statistics
+    private int numDropped = 0;
+    private long lastCameraFrameTime = 0, lastProcessedTime = 0;
+    private double cameraFrameMs = 0, processedFrameMs = 0, latencyMs = 0;
+    private double[] stageMs = new double[0];
+
+    public FramePipeline(Stage... stages) {
+        setStages(stages);
+    }
+
+    /** Stages may be changed while frames are processed, the new chain is used from the next frame. */
+    public void setStages(Stage... stages) {
+        this.stages = new ArrayList<>(Arrays.asList(stages));
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        worker = new Thread(this::processFrames, "frame-pipeline");
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+        synchronized (lock) {
+            hasPending = hasReady = hasDisplayed = false;
+        }
+    }
+
+    /** Called from the camera thread, returns the last processed frame or the input until the first frame is processed. */
+    public Mat onFrame(Mat rgba) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (lock) {
+            if (lastCameraFrameTime > 0)
+                cameraFrameMs = smooth(cameraFrameMs, now - lastCameraFrameTime);
+            lastCameraFrameTime = now;
+            if (hasPending)
+                ++numDropped;
+            rgba.copyTo(pendingInput);
+            pendingTimestamp = now;
+            hasPending = true;
+            lock.notify();
+
+            if (hasReady) {
+                Mat tmp = displayed;
+                displayed = ready;
+                ready = tmp;
+                hasReady = false;
+                hasDisplayed = true;
+            }
+        }
+        return hasDisplayed ? displayed : rgba;
+    }
+
+    private static double smooth(double average, double value) {
+        return average == 0 ? value : average + SMOOTHING * (value - average);
+    }
+
+    private void processFrames() {
+        while (running) {
+            synchronized (lock) {
+                while (!hasPending && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running)
+                    return;
+                Mat tmp = workingInput;
+                workingInput = pendingInput;
+                pendingInput = tmp;
+                workingTimestamp = pendingTimestamp;
+                hasPending = false;
+            }
+            try {
+                processFrame();
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing frame: " + e, e);
+            }
+        }
+    }
+
+    private void processFrame() {
+        List<Stage> currentStages = stages;
+        if (stageMs.length != currentStages.size())
+            stageMs = new double[currentStages.size()];
+        Mat current = workingInput;
+        for (int i = 0; i < currentStages.size(); ++i) {
+            long startTime = SystemClock.uptimeMillis();
+            Mat out = (current == workingInput) ? stageBuffer : current;
+            currentStages.get(i).process(current, out);
+            current = out;
+            stageMs[i] = smooth(stageMs[i], SystemClock.uptimeMillis() - startTime);
+        }
+        current.copyTo(back);
+
+        long now = SystemClock.uptimeMillis();
+        if (lastProcessedTime > 0)
+            processedFrameMs = smooth(processedFrameMs, now - lastProcessedTime);
+        lastProcessedTime = now;
+        latencyMs = smooth(latencyMs, now - workingTimestamp);
+        drawOverlay(back, currentStages);
+
+        synchronized (lock) {
+            Mat tmp = ready;
+            ready = back;
+            back = tmp;
+            hasReady = true;
+        }
+    }
+
+    private void drawOverlay(Mat image, List<Stage> currentStages) {
+        List<String> lines = new ArrayList<>();
+        int dropped;
+        double cameraMs;
+        synchronized (lock) {
+            dropped = numDropped;
+            cameraMs = cameraFrameMs;
+        }
+        lines.add(String.format("camera %.1f FPS, processed %.1f FPS, dropped %d",
+                fps(cameraMs), fps(processedFrameMs), dropped));
+        lines.add(String.format("latency %.1f ms", latencyMs));
+        for (int i = 0; i < currentStages.size(); ++i)
+            lines.add(String.format("%s: %.1f ms", currentStages.get(i).getName(), stageMs[i]));
+
+        Scalar color = new Scalar(255, 255, 0, 255);
+        double fontScale = Math.max(0.5, image.cols() / 1200.0);
+        int lineHeight = (int) (30 * fontScale);
+        for (int i = 0; i < lines.size(); ++i)
+            Imgproc.putText(image, lines.get(i), new Point(10, (i + 1) * lineHeight), Imgproc.FONT_HERSHEY_SIMPLEX, fontScale, color, 2);
+    }
+
+    private static double fps(double frameMs) {
+        return frameMs > 0 ? 1000.0 / frameMs : 0;
+    }
+}
@@ -38,6 +38,9 @@ public class MainActivity  extends CameraActivity implements CvCameraViewListene
     private final int REQUEST_CODE_ASK_MULTIPLE_PERMISSIONS = 124;
 
     private CameraBridgeViewBase mOpenCvCameraView;
+    private final FramePipeline framePipeline=new FramePipeline();
+    private int currentPreset=0;
+    private static final String[] PRESET_NAMES={"No filters","Gaussian blur","Equalize histogram + bilateral","Median","Canny edges"};
 
     private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
         @Override
@@ -78,6 +81,30 @@ public class MainActivity  extends CameraActivity implements CvCameraViewListene
         mOpenCvCameraView.setCameraIndex(1);
         mOpenCvCameraView.setCameraPermissionGranted();
         mOpenCvCameraView.setCvCameraViewListener(this);
+        mOpenCvCameraView.setOnClickListener(v -> {
+            currentPreset=(currentPreset+1)%PRESET_NAMES.length;
+            setPreset(currentPreset);
+            Toast.makeText(getApplicationContext(), PRESET_NAMES[currentPreset], Toast.LENGTH_SHORT).show();
+        });
+    }
+    private void setPreset(int preset){
+        switch (preset){
+            case 1:
+                framePipeline.setStages(FramePipeline.gaussianBlur(7));
+                break;
+            case 2:
+                framePipeline.setStages(FramePipeline.equalizeHisto(),FramePipeline.bilateral(9,75));
+                break;
+            case 3:
+                framePipeline.setStages(FramePipeline.median(7));
+                break;
+            case 4:
+                framePipeline.setStages(FramePipeline.grayscale(),FramePipeline.gaussianBlur(5),FramePipeline.canny(50,150));
+                break;
+            default:
+                framePipeline.setStages();
+                break;
+        }
     }
     @Override
     public void onPause()
@@ -137,16 +164,16 @@ public class MainActivity  extends CameraActivity implements CvCameraViewListene
             mOpenCvCameraView.disableView();
     }
     public void onCameraViewStarted(int width, int height) {
+        Log.d(TAG,"width "+width+" height "+height);
+        framePipeline.start();
     }
 
     public void onCameraViewStopped() {
+        framePipeline.stop();
     }
 
     public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
-        Mat res=inputFrame.rgba();
-        String info="width "+res.width()+" height"+res.height()+" at"+res.get(300,300)[0];
-        Log.d(TAG,info);
-        return res;
+        return framePipeline.onFrame(inputFrame.rgba());
     }
 
     @Override
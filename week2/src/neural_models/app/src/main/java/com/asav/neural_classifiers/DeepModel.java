@@ -5,4 +5,13 @@ import android.util.Pair;
 
 public interface DeepModel {
     public Pair<Long,float[]> classifyImage(Bitmap bitmap);
+
+    /** Durations of preprocessing, inference and postprocessing in the last classifyImage call (ns), or null if not measured. */
+    public default long[] getLastStageTimesNs(){
+        return null;
+    }
+
+    /** Releases native resources, the model cannot be used afterwards. */
+    public default void close(){
+    }
 }
@@ -25,6 +25,8 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.asav.neural_classifiers.kernels.TopK;
+
 import org.tensorflow.lite.gpu.CompatibilityList;
 
 import java.io.BufferedReader;
@@ -46,7 +48,7 @@ public class MainActivity extends AppCompatActivity {
   private static String TAG="MainActivity";
   private final int REQUEST_CODE_ASK_MULTIPLE_PERMISSIONS = 124;
 
-  private List<DeepModel> deepModeles =new ArrayList<>();
+  private ModelRegistry modelRegistry=null;
   private List<String> labels;
 
   private ImageView imageView=null;
@@ -64,35 +66,13 @@ public class MainActivity extends AppCompatActivity {
     modelsSpinner=findViewById(R.id.models_spinner);
 
     loadLabels();
-    deepModeles.clear();
 
     List<String> modelNames=new ArrayList<>();
     CompatibilityList compatList = new CompatibilityList();
     boolean hasGPU=compatList.isDelegateSupportedOnThisDevice();
-    boolean needCPU=true;//!hasGPU;
     try {
-      for (String asset : getAssets().list("")){
-        try{
-          if(asset.toLowerCase().endsWith(".ptl")){
-            deepModeles.add(new TorchModel(this,assetFilePath(this, asset),224,224,3));
-            String modelName=asset.substring(0,asset.length()-4);
-            modelNames.add(modelName+" (Torch)");
-          }
-          else if(asset.toLowerCase().endsWith(".tflite")){
-            String modelName=asset.substring(0,asset.length()-7);
-            if(needCPU) {
-              deepModeles.add(new TfLiteModel(this, asset, false));
-              modelNames.add(modelName + " (TfLite), CPU");
-            }
-            if(hasGPU && !modelName.toLowerCase().contains("quant")){
-              deepModeles.add(new TfLiteModel(this,asset, true));
-              modelNames.add(modelName+" (TfLite), GPU");
-            }
-          }
-        } catch (Exception e) {
-          Log.e(TAG, "Error creating model: " + e+" "+Log.getStackTraceString(e));
-        }
-      }
+      modelRegistry=new ModelRegistry(this,hasGPU);
+      modelNames=modelRegistry.getNames();
     } catch (IOException e) {
       Log.e(TAG, "Error reading assets: " + e+" "+Log.getStackTraceString(e));
     }
@@ -103,6 +83,8 @@ public class MainActivity extends AppCompatActivity {
     modelsSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
       public void onItemSelected(AdapterView<?> parent,
                                  View itemSelected, int selectedItemPosition, long selectedId) {
+        if(modelRegistry!=null)
+          modelRegistry.onModelSelected(selectedItemPosition);
         BitmapDrawable drawable=(BitmapDrawable)imageView.getDrawable();
         if(drawable!=null) {
           Bitmap bmp = drawable.getBitmap();
@@ -156,6 +138,10 @@ public class MainActivity extends AppCompatActivity {
                 SELECT_PICTURE);
         return true;
 
+      case R.id.action_benchmark:
+        runBenchmark();
+        return true;
+
       default:
         // If we got here, the user's action was not recognized.
         // Invoke the superclass to handle it.
@@ -285,20 +271,66 @@ public class MainActivity extends AppCompatActivity {
     }
   }
 
-  private String recognize(Bitmap bitmap){
-    Pair<Long,float[]> res =  deepModeles.get(modelsSpinner.getSelectedItemPosition()).classifyImage(bitmap);
-    final float[] scores=res.second;
-    Integer index[] = new Integer[scores.length];
-    for (int i = 0; i < scores.length; i++) {
-      index[i]=i;
+  private Thread benchmarkThread=null;
+  private void runBenchmark(){
+    if(benchmarkThread!=null && benchmarkThread.isAlive()) {
+      Toast.makeText(this, "Benchmark is already running", Toast.LENGTH_SHORT).show();
+      return;
     }
-    Arrays.sort(index, new Comparator<Integer>() {
-      @Override
-      public int compare(Integer idx1, Integer idx2) {
-        return Float.compare(scores[idx2],scores[idx1]);
+    BitmapDrawable drawable=(BitmapDrawable)imageView.getDrawable();
+    final Bitmap bmp;
+    if(drawable!=null)
+      bmp=drawable.getBitmap();
+    else{
+      int[] pixels=new int[224*224];
+      Random rnd=new Random(0);
+      for(int i=0;i<pixels.length;++i)
+        pixels[i]=0xFF000000 | rnd.nextInt(0x1000000);
+      bmp=Bitmap.createBitmap(pixels,224,224,Bitmap.Config.ARGB_8888);
+    }
+    textView.setText("Benchmark started\n");
+    benchmarkThread=new Thread(() -> {
+      try {
+        ModelBenchmark benchmark=new ModelBenchmark();
+        List<ModelBenchmark.Result> results=benchmark.run(ModelBenchmark.getAssetModels(this), bmp, new ModelBenchmark.Listener() {
+          @Override
+          public void onProgress(String message) {
+            runOnUiThread(() -> textView.append(message+"\n"));
+          }
+
+          @Override
+          public void onResult(ModelBenchmark.Result result) {
+            runOnUiThread(() -> textView.append(result+"\n"));
+          }
+        });
+        File dir=getExternalFilesDir(null);
+        String name="benchmark_"+System.currentTimeMillis();
+        ModelBenchmark.exportCsv(results,new File(dir,name+".csv"));
+        ModelBenchmark.exportJson(results,new File(dir,name+".json"));
+        runOnUiThread(() -> textView.append("Results are saved to "+new File(dir,name)+".csv/.json\n"));
+      } catch (Exception e) {
+        Log.e(TAG, "Benchmark failed: " + e+" "+Log.getStackTraceString(e));
       }
-    });
-    int K=5;
+    },"model-benchmark");
+    benchmarkThread.start();
+  }
+
+  @Override
+  protected void onDestroy() {
+    if(modelRegistry!=null)
+      modelRegistry.close();
+    super.onDestroy();
+  }
+
+  private String recognize(Bitmap bitmap){
+    int position=modelsSpinner.getSelectedItemPosition();
+    DeepModel model=(modelRegistry!=null && position>=0)?modelRegistry.getModel(position):null;
+    if(model==null)
+      return "Model is not available";
+    Pair<Long,float[]> res =  model.classifyImage(bitmap);
+    final float[] scores=res.second;
+    int index[] = new int[5];
+    int K=TopK.select(scores,index);
     StringBuilder str=new StringBuilder();
     str.append("Timecost (ms):").append(Long.toString(res.first)).append("\nResult:\n");
     for(int i=0;i<K;++i){
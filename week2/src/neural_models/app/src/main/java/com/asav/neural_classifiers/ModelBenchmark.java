@@ -0,0 +1,348 @@
+package com.asav.neural_classifiers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.util.Log;
+import android.util.Pair;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pytorch.PyTorchAndroid;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+
+/**
+ * Measures latency of DeepModel implementations: warm-up runs followed by timed iterations
+ * for every number of CPU threads. Every iteration is split into preprocessing, inference and postprocessing
+ * if the model reports stage times, and percentiles are computed over all iterations.
+ * Stages that the model does not measure are reported as "n/a".
+ * A {@link PooledModel} is measured under load: as many images as it has instances are classified concurrently,
+ * so its latency includes the contention between instances and its throughput shows the gain of the pool.
+ */
+public class ModelBenchmark {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "ModelBenchmark";
+
+    public static final int DEFAULT_WARMUP_ITERATIONS = 5;
+    public static final int DEFAULT_ITERATIONS = 50;
+    public static final int[] DEFAULT_THREAD_COUNTS = {1, 2, 4};
+    /** The number of threads of PyTorch Mobile is global and cannot be read, so one thread per processor is set after the benchmark. */
+    private static final int DEFAULT_TORCH_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public interface ModelFactory {
+        String getName();
+        String getFramework();
+        boolean isQuantized();
+        DeepModel create(int numThreads) throws Exception;
+    }
+
+    public interface Listener {
+        void onProgress(String message);
+        void onResult(Result result);
+    }
+
+    private static final String[] STAGES = {"total", "preprocess", "inference", "postprocess"};
+
+    public static class Result {
+        public String model, framework;
+        public boolean quantized;
+        /** numThreads is the number of threads of every instance of the model. */
+        public int numThreads, instances = 1, iterations;
+        public double imagesPerSecond;
+        /** Rows are STAGES, columns are mean, p50, p90, p99 in milliseconds, NaN if the stage is not measured. */
+        public final double[][] latencyMs = new double[STAGES.length][4];
+        /** Objects and bytes allocated by the benchmark thread per iteration, -1 if not available. */
+        public double allocationsPerIteration = -1, bytesPerIteration = -1;
+
+        public static String getCsvHeader() {
+            StringBuilder str = new StringBuilder("model,framework,quantized,threads,instances,iterations,images_per_second");
+            for (String stage : STAGES)
+                str.append(',').append(stage).append("_mean_ms,").append(stage).append("_p50_ms,")
+                        .append(stage).append("_p90_ms,").append(stage).append("_p99_ms");
+            str.append(",allocations_per_iteration,bytes_per_iteration");
+            return str.toString();
+        }
+
+        public String toCsvRow() {
+            StringBuilder str = new StringBuilder();
+            str.append('"').append(model.replace("\"", "\"\"")).append('"').append(',').append(framework)
+                    .append(',').append(quantized).append(',').append(numThreads).append(',').append(instances)
+                    .append(',').append(iterations).append(',').append(String.format(Locale.US, "%.2f", imagesPerSecond));
+            for (double[] stage : latencyMs) {
+                for (double value : stage)
+                    str.append(',').append(formatMs("%.3f", value));
+            }
+            str.append(',').append(String.format(Locale.US, "%.1f", allocationsPerIteration))
+                    .append(',').append(String.format(Locale.US, "%.1f", bytesPerIteration));
+            return str.toString();
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("model", model);
+            json.put("framework", framework);
+            json.put("quantized", quantized);
+            json.put("threads", numThreads);
+            json.put("instances", instances);
+            json.put("iterations", iterations);
+            json.put("images_per_second", imagesPerSecond);
+            for (int i = 0; i < STAGES.length; ++i) {
+                JSONObject stage = new JSONObject();
+                stage.put("mean_ms", toJson(latencyMs[i][0]));
+                stage.put("p50_ms", toJson(latencyMs[i][1]));
+                stage.put("p90_ms", toJson(latencyMs[i][2]));
+                stage.put("p99_ms", toJson(latencyMs[i][3]));
+                json.put(STAGES[i], stage);
+            }
+            json.put("allocations_per_iteration", allocationsPerIteration);
+            json.put("bytes_per_iteration", bytesPerIteration);
+            return json;
+        }
+
+        public String toString() {
+            return String.format(Locale.US, "%s (%s%s), %d threads%s: p50=%.1f p90=%.1f p99=%.1f ms, %.1f images/s (pre %s, inf %s, post %s)",
+                    model, framework, quantized ? ", quant" : "", numThreads, instances > 1 ? " x" + instances + " instances" : "",
+                    latencyMs[0][1], latencyMs[0][2], latencyMs[0][3], imagesPerSecond,
+                    formatMs("%.1f", latencyMs[1][1]), formatMs("%.1f", latencyMs[2][1]), formatMs("%.1f", latencyMs[3][1]));
+        }
+
+        private static String formatMs(String format, double value) {
+            return Double.isNaN(value) ? "n/a" : String.format(Locale.US, format, value);
+        }
+
+        /** JSON has no NaN, missing values are null. */
+        private static Object toJson(double value) {
+            return Double.isNaN(value) ? JSONObject.NULL : value;
+        }
+    }
+
+    private final int warmupIterations, iterations;
+    private final int[] threadCounts;
+    private volatile boolean cancelled = false;
+
+    public ModelBenchmark() {
+        this(DEFAULT_WARMUP_ITERATIONS, DEFAULT_ITERATIONS, DEFAULT_THREAD_COUNTS);
+    }
+
+    public ModelBenchmark(int warmupIterations, int iterations, int[] threadCounts) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = Math.max(1, iterations);
+        this.threadCounts = threadCounts;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** Runs all models on the bitmap, should be called from a background thread. */
+    public List<Result> run(List<ModelFactory> factories, Bitmap bitmap, Listener listener) {
+        List<Result> results = new ArrayList<>();
+        try {
+            for (ModelFactory factory : factories) {
+                for (int numThreads : threadCounts) {
+                    if (cancelled)
+                        return results;
+                    listener.onProgress("Running " + factory.getName() + " (" + factory.getFramework() + ") with " + numThreads + " threads");
+                    try {
+                        Result result = run(factory, numThreads, bitmap);
+                        results.add(result);
+                        listener.onResult(result);
+                    } catch (Exception e) {
+                        Log.e(TAG, "While benchmarking " + factory.getName() + " exception thrown: ", e);
+                    }
+                }
+            }
+        } finally {
+            // Torch factories change the number of threads of all Torch models
+            PyTorchAndroid.setNumThreads(DEFAULT_TORCH_THREADS);
+        }
+        return results;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Result run(ModelFactory factory, int numThreads, Bitmap bitmap) throws Exception {
+        DeepModel model = factory.create(numThreads);
+        try {
+            for (int i = 0; i < warmupIterations && !cancelled; ++i)
+                model.classifyImage(bitmap);
+
+            long[][] times = new long[STAGES.length][iterations];
+            boolean[] measured = new boolean[STAGES.length];
+            Arrays.fill(measured, true);
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long benchmarkStartTime = System.nanoTime();
+            if (model instanceof PooledModel) {
+                measureConcurrently((PooledModel) model, bitmap, times[0]);
+                // stages are measured in the threads of the pool
+                Arrays.fill(measured, 1, STAGES.length, false);
+            } else {
+                for (int i = 0; i < iterations; ++i) {
+                    long startTime = System.nanoTime();
+                    model.classifyImage(bitmap);
+                    times[0][i] = System.nanoTime() - startTime;
+                    long[] stageTimes = model.getLastStageTimesNs();
+                    for (int stage = 1; stage < STAGES.length; ++stage) {
+                        if (stageTimes != null && stage - 1 < stageTimes.length)
+                            times[stage][i] = stageTimes[stage - 1];
+                        else
+                            measured[stage] = false;
+                    }
+                }
+            }
+            long benchmarkTime = System.nanoTime() - benchmarkStartTime;
+            long allocations = Debug.getThreadAllocCount();
+            long bytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            Result result = new Result();
+            result.model = factory.getName();
+            result.framework = factory.getFramework();
+            result.quantized = factory.isQuantized() || (model instanceof TfLiteModel && ((TfLiteModel) model).isQuantized());
+            result.numThreads = numThreads;
+            result.instances = (model instanceof PooledModel) ? ((PooledModel) model).getNumInstances() : 1;
+            result.iterations = iterations;
+            result.imagesPerSecond = iterations * 1e9 / benchmarkTime;
+            for (int stage = 0; stage < STAGES.length; ++stage) {
+                if (!measured[stage]) {
+                    Arrays.fill(result.latencyMs[stage], Double.NaN);
+                    continue;
+                }
+                long[] stageTimes = times[stage];
+                Arrays.sort(stageTimes);
+                long sum = 0;
+                for (long time : stageTimes)
+                    sum += time;
+                result.latencyMs[stage][0] = sum / 1e6 / iterations;
+                result.latencyMs[stage][1] = percentile(stageTimes, 50) / 1e6;
+                result.latencyMs[stage][2] = percentile(stageTimes, 90) / 1e6;
+                result.latencyMs[stage][3] = percentile(stageTimes, 99) / 1e6;
+            }
+            // allocations of the pool threads are not counted
+            if (allocations > 0 && !(model instanceof PooledModel)) {
+                result.allocationsPerIteration = (double) allocations / iterations;
+                result.bytesPerIteration = (double) bytes / iterations;
+            }
+            Log.i(TAG, result.toString());
+            return result;
+        } finally {
+            model.close();
+        }
+    }
+
+    /**
+     * Keeps getNumInstances() images in flight: the oldest request is awaited and replaced by a new one,
+     * so latencies are the times from submitting to completing each request.
+     */
+    private void measureConcurrently(PooledModel model, Bitmap bitmap, long[] times) throws Exception {
+        int numInFlight = Math.min(model.getNumInstances(), iterations);
+        List<Future<Pair<Long, float[]>>> futures = new ArrayList<>(iterations);
+        long[] startTimes = new long[iterations];
+        for (int i = 0; i < numInFlight; ++i) {
+            startTimes[i] = System.nanoTime();
+            futures.add(model.classifyImageAsync(bitmap));
+        }
+        for (int i = 0; i < iterations; ++i) {
+            futures.get(i).get();
+            times[i] = System.nanoTime() - startTimes[i];
+            futures.set(i, null);
+            int next = i + numInFlight;
+            if (next < iterations) {
+                startTimes[next] = System.nanoTime();
+                futures.add(model.classifyImageAsync(bitmap));
+            }
+        }
+    }
+
+    /** Nearest-rank percentile of sorted values. */
+    private static long percentile(long[] sortedValues, double percent) {
+        int rank = (int) Math.ceil(percent / 100 * sortedValues.length);
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, rank - 1))];
+    }
+
+    public static void exportCsv(List<Result> results, File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(Result.getCsvHeader());
+            writer.write('\n');
+            for (Result result : results) {
+                writer.write(result.toCsvRow());
+                writer.write('\n');
+            }
+        }
+    }
+
+    public static void exportJson(List<Result> results, File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            JSONArray json = new JSONArray();
+            for (Result result : results)
+                json.put(result.toJson());
+            writer.write(json.toString(2));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Pools divide all cores between instances with numThreads threads each. */
+    private static int getNumPoolInstances(int numThreads) {
+        return Math.max(2, PooledModel.NUM_CORES / numThreads);
+    }
+
+    /** CPU models from the assets, the same as shown in MainActivity, each also as a pool of instances. */
+    public static List<ModelFactory> getAssetModels(final Context context) throws IOException {
+        List<ModelFactory> factories = new ArrayList<>();
+        for (final String asset : context.getAssets().list("")) {
+            final String lowerAsset = asset.toLowerCase();
+            if (lowerAsset.endsWith(".ptl")) {
+                final String modelName = asset.substring(0, asset.length() - 4);
+                factories.add(new ModelFactory() {
+                    public String getName() { return modelName; }
+                    public String getFramework() { return "Torch"; }
+                    public boolean isQuantized() { return lowerAsset.contains("quant"); }
+                    public DeepModel create(int numThreads) throws Exception {
+                        PyTorchAndroid.setNumThreads(numThreads);
+                        return new TorchModel(context, MainActivity.assetFilePath(context, asset), 224, 224, 3);
+                    }
+                });
+                factories.add(new ModelFactory() {
+                    public String getName() { return modelName; }
+                    public String getFramework() { return "Torch pooled"; }
+                    public boolean isQuantized() { return lowerAsset.contains("quant"); }
+                    public DeepModel create(int numThreads) throws Exception {
+                        PyTorchAndroid.setNumThreads(numThreads);
+                        return PooledModel.createTorch(context, MainActivity.assetFilePath(context, asset), getNumPoolInstances(numThreads), 224, 224, 3);
+                    }
+                });
+            } else if (lowerAsset.endsWith(".tflite")) {
+                final String modelName = asset.substring(0, asset.length() - 7);
+                factories.add(new ModelFactory() {
+                    public String getName() { return modelName; }
+                    public String getFramework() { return "TfLite"; }
+                    public boolean isQuantized() { return lowerAsset.contains("quant"); }
+                    public DeepModel create(int numThreads) throws Exception {
+                        return new TfLiteModel(context, asset, false, numThreads);
+                    }
+                });
+                factories.add(new ModelFactory() {
+                    public String getName() { return modelName; }
+                    public String getFramework() { return "TfLite pooled"; }
+                    public boolean isQuantized() { return lowerAsset.contains("quant"); }
+                    public DeepModel create(int numThreads) throws Exception {
+                        return PooledModel.createTfLite(context, asset, getNumPoolInstances(numThreads), numThreads);
+                    }
+                });
+            }
+        }
+        return factories;
+    }
+}
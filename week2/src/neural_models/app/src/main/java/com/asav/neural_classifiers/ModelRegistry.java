@@ -0,0 +1,231 @@
+package com.asav.neural_classifiers;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Models found in the assets. Only their names and file sizes are read at startup, a DeepModel is created on first use.
+ * At most maxResidentModels models with total file size within memoryBudgetBytes are kept loaded,
+ * the least recently used models are closed when the limits are exceeded.
+ * Loading is done in a background thread, so the next model can be preloaded while the current one is used.
+ * A GPU delegate must be used and closed by the thread that created it, so GPU models are loaded and closed
+ * (together with their delegates by {@link DeepModel#close()}) in the thread calling {@link #getModel(int)},
+ * which must be the only thread using the registry.
+ * The selected model is never evicted.
+ */
+public class ModelRegistry {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "ModelRegistry";
+
+    public static final int DEFAULT_MAX_RESIDENT_MODELS = 3;
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 200L * 1024 * 1024;
+
+    public static class ModelInfo {
+        public final String asset, name;
+        public final boolean isTorch, useGpu;
+        public final long sizeBytes;
+
+        ModelInfo(String asset, String name, boolean isTorch, boolean useGpu, long sizeBytes) {
+            this.asset = asset;
+            this.name = name;
+            this.isTorch = isTorch;
+            this.useGpu = useGpu;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final Context context;
+    private final List<ModelInfo> models = new ArrayList<>();
+    private final int maxResidentModels;
+    private final long memoryBudgetBytes;
+    /** Loaded or loading models in the access order. */
+    private final LinkedHashMap<Integer, Future<DeepModel>> residentModels = new LinkedHashMap<>(16, 0.75f, true);
+    private int selectedIndex = -1;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "model-loader");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public ModelRegistry(Context context, boolean hasGPU) throws IOException {
+        this(context, hasGPU, DEFAULT_MAX_RESIDENT_MODELS, DEFAULT_MEMORY_BUDGET_BYTES);
+    }
+
+    public ModelRegistry(Context context, boolean hasGPU, int maxResidentModels, long memoryBudgetBytes) throws IOException {
+        this.context = context;
+        // the selected and the preloaded models must fit
+        this.maxResidentModels = Math.max(2, maxResidentModels);
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        for (String asset : context.getAssets().list("")) {
+            String lowerAsset = asset.toLowerCase();
+            if (lowerAsset.endsWith(".ptl")) {
+                String modelName = asset.substring(0, asset.length() - 4);
+                models.add(new ModelInfo(asset, modelName + " (Torch)", true, false, getAssetSize(asset)));
+            } else if (lowerAsset.endsWith(".tflite")) {
+                String modelName = asset.substring(0, asset.length() - 7);
+                long size = getAssetSize(asset);
+                models.add(new ModelInfo(asset, modelName + " (TfLite), CPU", false, false, size));
+                if (hasGPU && !modelName.toLowerCase().contains("quant"))
+                    models.add(new ModelInfo(asset, modelName + " (TfLite), GPU", false, true, size));
+            }
+        }
+    }
+
+    private long getAssetSize(String asset) {
+        try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(asset)) {
+            return fileDescriptor.getLength();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot get size of " + asset + ": " + e);
+            return 0;
+        }
+    }
+
+    public int size() {
+        return models.size();
+    }
+
+    public List<String> getNames() {
+        List<String> names = new ArrayList<>(models.size());
+        for (ModelInfo model : models)
+            names.add(model.name);
+        return names;
+    }
+
+    public ModelInfo getInfo(int index) {
+        return models.get(index);
+    }
+
+    private DeepModel load(ModelInfo info) throws Exception {
+        long startTime = SystemClock.uptimeMillis();
+        DeepModel model;
+        if (info.isTorch)
+            model = new TorchModel(context, MainActivity.assetFilePath(context, info.asset), 224, 224, 3);
+        else
+            model = new TfLiteModel(context, info.asset, info.useGpu);
+        Log.i(TAG, "Loaded " + info.name + ". Timecost: " + (SystemClock.uptimeMillis() - startTime));
+        return model;
+    }
+
+    /** Returns the future of the model and marks it as the most recently used. */
+    private synchronized Future<DeepModel> getFuture(int index) {
+        Future<DeepModel> future = residentModels.get(index);
+        if (future == null) {
+            final ModelInfo info = models.get(index);
+            if (info.useGpu)
+                future = new FutureTask<>(() -> load(info));
+            else
+                future = loader.submit(() -> load(info));
+            residentModels.put(index, future);
+            evict(index);
+        }
+        return future;
+    }
+
+    /** Closes the least recently used models while the limits are exceeded, the added and the selected models are kept. */
+    private void evict(int addedIndex) {
+        long totalSize = 0;
+        for (Integer index : residentModels.keySet())
+            totalSize += models.get(index).sizeBytes;
+        Iterator<Map.Entry<Integer, Future<DeepModel>>> iterator = residentModels.entrySet().iterator();
+        int count = residentModels.size();
+        while ((count > maxResidentModels || totalSize > memoryBudgetBytes) && iterator.hasNext()) {
+            Map.Entry<Integer, Future<DeepModel>> entry = iterator.next();
+            int index = entry.getKey();
+            if (index == addedIndex || index == selectedIndex)
+                continue;
+            iterator.remove();
+            --count;
+            totalSize -= models.get(index).sizeBytes;
+            closeLater(index, entry.getValue());
+            Log.i(TAG, "Evicted " + models.get(index).name);
+        }
+    }
+
+    /**
+     * Loading is sequential, so a CPU model is closed by the loader thread after it is loaded.
+     * A GPU model is closed now, because it is loaded by the calling thread.
+     */
+    private void closeLater(int index, final Future<DeepModel> future) {
+        if (models.get(index).useGpu) {
+            if (future.isDone()) {
+                try {
+                    future.get().close();
+                } catch (Exception e) {
+                    Log.w(TAG, "Evicted model was not loaded: " + e);
+                }
+            } else {
+                future.cancel(false);
+            }
+            return;
+        }
+        loader.submit(() -> {
+            try {
+                future.get().close();
+            } catch (Exception e) {
+                Log.w(TAG, "Evicted model was not loaded: " + e);
+            }
+        });
+    }
+
+    /** Returns the model and loads it if necessary, null if the model cannot be loaded. */
+    public DeepModel getModel(int index) {
+        try {
+            Future<DeepModel> future = getFuture(index);
+            if (models.get(index).useGpu)
+                ((FutureTask<DeepModel>) future).run();
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error creating model " + models.get(index).name + ": " + e.getCause(), e.getCause());
+            synchronized (this) {
+                residentModels.remove(index);
+            }
+        }
+        return null;
+    }
+
+    /** Starts loading of the CPU model in background unless it is already loaded. */
+    public void preload(int index) {
+        if (index >= 0 && index < models.size() && !models.get(index).useGpu) {
+            synchronized (this) {
+                if (residentModels.containsKey(index))
+                    return;
+            }
+            getFuture(index);
+        }
+    }
+
+    /** Loads the selected model and preloads the next one in the list, which cannot evict the selected model. */
+    public void onModelSelected(int index) {
+        if (index < 0 || index >= models.size())
+            return;
+        synchronized (this) {
+            selectedIndex = index;
+        }
+        // marks the selected model as the most recently used one
+        getFuture(index);
+        preload(index + 1);
+    }
+
+    public synchronized void close() {
+        for (Map.Entry<Integer, Future<DeepModel>> entry : residentModels.entrySet())
+            closeLater(entry.getKey(), entry.getValue());
+        residentModels.clear();
+        loader.shutdown();
+    }
+}
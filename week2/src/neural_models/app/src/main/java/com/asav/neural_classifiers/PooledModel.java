@@ -0,0 +1,108 @@
+package com.asav.neural_classifiers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe DeepModel over several instances of the same model, e.g., TfLite interpreters sharing one mapped model file.
+ * Each call takes a free instance from a lock-free queue, so up to getNumInstances() images are classified concurrently.
+ * Scores are copied before the instance is returned to the pool, because models reuse their output buffers.
+ */
+public class PooledModel implements DeepModel {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "PooledModel";
+
+    public static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+
+    private final List<DeepModel> instances;
+    private final ConcurrentLinkedQueue<DeepModel> freeInstances = new ConcurrentLinkedQueue<>();
+    private final Semaphore numFreeInstances;
+    private final ExecutorService executor;
+    private final ThreadLocal<long[]> lastStageTimesNs = new ThreadLocal<>();
+
+    public PooledModel(List<DeepModel> instances) {
+        this.instances = new ArrayList<>(instances);
+        freeInstances.addAll(instances);
+        numFreeInstances = new Semaphore(instances.size());
+        final AtomicInteger threadIndex = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(instances.size(),
+                r -> new Thread(r, "pooled-model-" + threadIndex.getAndIncrement()));
+    }
+
+    /** Interpreters of the TfLite asset share its memory-mapped file, each of them runs numThreads threads. */
+    public static PooledModel createTfLite(Context context, String asset, int numInstances, int numThreads) throws IOException {
+        MappedByteBuffer modelFile = TfLiteModel.loadModelFile(context, asset);
+        List<DeepModel> instances = new ArrayList<>(numInstances);
+        for (int i = 0; i < numInstances; ++i)
+            instances.add(new TfLiteModel(modelFile, asset, false, numThreads));
+        return new PooledModel(instances);
+    }
+
+    public static PooledModel createTorch(Context context, String modelPath, int numInstances, int w, int h, int c) throws IOException {
+        List<DeepModel> instances = new ArrayList<>(numInstances);
+        for (int i = 0; i < numInstances; ++i)
+            instances.add(new TorchModel(context, modelPath, w, h, c));
+        return new PooledModel(instances);
+    }
+
+    public int getNumInstances() {
+        return instances.size();
+    }
+
+    /** Blocks until an instance is free. Returns null if the thread is interrupted. */
+    @Override
+    public Pair<Long, float[]> classifyImage(Bitmap bitmap) {
+        try {
+            numFreeInstances.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        DeepModel model = freeInstances.poll();
+        try {
+            Pair<Long, float[]> res = model.classifyImage(bitmap);
+            long[] stageTimes = model.getLastStageTimesNs();
+            lastStageTimesNs.set(stageTimes != null ? stageTimes.clone() : null);
+            if (res == null)
+                return null;
+            return new Pair<>(res.first, res.second.clone());
+        } finally {
+            freeInstances.offer(model);
+            numFreeInstances.release();
+        }
+    }
+
+    /** Classifies the bitmap in the pool threads, the bitmap must not be recycled until the future is done. */
+    public Future<Pair<Long, float[]>> classifyImageAsync(final Bitmap bitmap) {
+        return executor.submit(() -> classifyImage(bitmap));
+    }
+
+    /** Stage times of the last classifyImage call in the calling thread. */
+    @Override
+    public long[] getLastStageTimesNs() {
+        return lastStageTimesNs.get();
+    }
+
+    /** Waits for running classifications and closes all instances. */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        numFreeInstances.acquireUninterruptibly(instances.size());
+        for (DeepModel model : instances)
+            model.close();
+        Log.i(TAG, "Closed " + instances.size() + " model instances");
+    }
+}
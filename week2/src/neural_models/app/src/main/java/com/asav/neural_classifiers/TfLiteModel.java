@@ -7,6 +7,9 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
+import com.asav.neural_classifiers.kernels.PixelConverter;
+import com.asav.neural_classifiers.kernels.PixelConverters;
+
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.Tensor;
@@ -34,6 +37,8 @@ public class TfLiteModel implements DeepModel{
 
     /** An instance of the driver class to run model inference with Tensorflow Lite. */
     protected Interpreter tflite;
+    /** Owned by the model, it is closed after the interpreter. */
+    private org.tensorflow.lite.gpu.GpuDelegate gpuDelegate=null;
     private Random rnd=new Random();
 
     private static final boolean useTensorImage=true;
@@ -45,17 +50,32 @@ public class TfLiteModel implements DeepModel{
     Map<Integer, Object> outputMap = new HashMap<>();
     private boolean isInt8Input=false, isInt8Output=false;
     private boolean efficientnet_preprocess =true;
+    /** Chosen once for the input type and normalization of the model. */
+    private PixelConverter pixelConverter;
+    private final long[] lastStageTimesNs=new long[3];
 
     public TfLiteModel(final Context context, String model_path, boolean gpuFlag) throws IOException {
-         Interpreter.Options options = (new Interpreter.Options()).setNumThreads(4);//.addDelegate(delegate);
+        this(context,model_path,gpuFlag,4);
+    }
+    public TfLiteModel(final Context context, String model_path, boolean gpuFlag, int numThreads) throws IOException {
+        this(loadModelFile(context, model_path),model_path,gpuFlag,numThreads);
+    }
+    /** Several interpreters may share the same read-only model buffer. */
+    public TfLiteModel(MappedByteBuffer tfliteModel, String model_path, boolean gpuFlag, int numThreads) {
+         Interpreter.Options options = (new Interpreter.Options()).setNumThreads(numThreads);//.addDelegate(delegate);
          if (gpuFlag) {//change to false for emulator
              org.tensorflow.lite.gpu.GpuDelegate.Options opt=new org.tensorflow.lite.gpu.GpuDelegate.Options();
              opt.setInferencePreference(org.tensorflow.lite.gpu.GpuDelegate.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
-             org.tensorflow.lite.gpu.GpuDelegate delegate = new org.tensorflow.lite.gpu.GpuDelegate();
-             options.addDelegate(delegate);
+             gpuDelegate = new org.tensorflow.lite.gpu.GpuDelegate();
+             options.addDelegate(gpuDelegate);
          }
-        MappedByteBuffer tfliteModel= loadModelFile(context, model_path);
-        tflite = new Interpreter(tfliteModel,options);
+        try {
+            tflite = new Interpreter(tfliteModel, options);
+        } catch (RuntimeException e) {
+            if (gpuDelegate != null)
+                gpuDelegate.close();
+            throw e;
+        }
         tflite.allocateTensors();
         Tensor inputTensor = tflite.getInputTensor(0);
         int[] inputShape= inputTensor.shape();
@@ -90,8 +110,9 @@ public class TfLiteModel implements DeepModel{
         }
 
         efficientnet_preprocess = model_path.toLowerCase().contains("efficientnet");
+        pixelConverter = PixelConverters.forModel(isInt8Input, efficientnet_preprocess);
     }
-    private static MappedByteBuffer loadModelFile(Context context, String modelFile) throws IOException {
+    public static MappedByteBuffer loadModelFile(Context context, String modelFile) throws IOException {
         AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelFile);
         FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
         MappedByteBuffer retFile = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
@@ -101,7 +122,9 @@ public class TfLiteModel implements DeepModel{
 
 
     public Pair<Long,float[]> classifyImage(Bitmap bitmap) {
-        bitmap=Bitmap.createScaledBitmap(bitmap, imageSizeX, imageSizeY, false);
+        long preprocessStartTime = System.nanoTime();
+        if(bitmap.getWidth()!=imageSizeX || bitmap.getHeight()!=imageSizeY)
+            bitmap=Bitmap.createScaledBitmap(bitmap, imageSizeX, imageSizeY, false);
         Object[] inputs={null};
         bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
         if (imgData == null) {
@@ -109,16 +132,12 @@ public class TfLiteModel implements DeepModel{
         }
         imgData.rewind();
         // Convert the image to floating point.
-        int pixel = 0;
-        for (int i = 0; i < imageSizeX; ++i) {
-            for (int j = 0; j < imageSizeY; ++j) {
-                final int val = intValues[pixel++];
-                addPixelValue(val);
-            }
-        }
+        pixelConverter.convert(intValues, intValues.length, imgData);
         inputs[0] = imgData;
         long startTime = SystemClock.uptimeMillis();
+        long inferenceStartTime = System.nanoTime();
         tflite.runForMultipleInputsOutputs(inputs, outputMap);
+        long postprocessStartTime = System.nanoTime();
         for(int i = 0; i< outputs.length; ++i) {
             ByteBuffer ith_output=(ByteBuffer)outputMap.get(i);
             ith_output.rewind();
@@ -132,33 +151,27 @@ public class TfLiteModel implements DeepModel{
             ith_output.rewind();
         }
         long endTime = SystemClock.uptimeMillis();
+        lastStageTimesNs[0]=inferenceStartTime-preprocessStartTime;
+        lastStageTimesNs[1]=postprocessStartTime-inferenceStartTime;
+        lastStageTimesNs[2]=System.nanoTime()-postprocessStartTime;
         Log.i(TAG, "tf lite timecost to run model inference: " + Long.toString(endTime - startTime));
 
         return new Pair<Long,float[]>(endTime - startTime,outputs[0][0]);
     }
 
-    public void close() {
-        tflite.close();
+    public long[] getLastStageTimesNs(){
+        return lastStageTimesNs;
     }
 
-    protected void addPixelValue(int val) {
-        if(isInt8Input){
-            imgData.put((byte)((val >> 16) & 0xFF));
-            imgData.put((byte)((val >> 8) & 0xFF));
-            imgData.put((byte)(val & 0xFF));
-        }
-        else {
-            if(efficientnet_preprocess){
-                imgData.putFloat((((val >> 16) & 0xFF) / 255.0f - 0.485f) / 0.229f);
-                imgData.putFloat((((val >> 8) & 0xFF) / 255.0f - 0.456f) / 0.224f);
-                imgData.putFloat(((val & 0xFF) / 255.0f - 0.406f) / 0.225f);
-            }
-            else {
-                float std = 127.5f; //mobilenet
-                imgData.putFloat(((val >> 16) & 0xFF) / std - 1.0f);
-                imgData.putFloat(((val >> 8) & 0xFF) / std - 1.0f);
-                imgData.putFloat((val & 0xFF) / std - 1.0f);
-            }
+    public boolean isQuantized(){
+        return isInt8Input || isInt8Output;
+    }
+
+    public void close() {
+        tflite.close();
+        if(gpuDelegate!=null) {
+            gpuDelegate.close();
+            gpuDelegate=null;
         }
     }
 }
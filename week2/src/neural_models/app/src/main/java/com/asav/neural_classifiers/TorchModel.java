@@ -34,6 +34,7 @@ public class TorchModel  implements DeepModel{
     private int channels=3;
 
     private Random rnd=new Random();
+    private final long[] lastStageTimesNs=new long[3];
 
     public TorchModel(final Context context, String model_path,int w, int h, int c) throws IOException {
         module=LiteModuleLoader.load(model_path,null, Device.CPU);
@@ -50,14 +51,28 @@ public class TorchModel  implements DeepModel{
     }
 
     public Pair<Long,float[]> classifyImage(Bitmap bitmap) {
+        long preprocessStartTime = System.nanoTime();
         bitmap=Bitmap.createScaledBitmap(bitmap, width, height, false);
         final Tensor inputTensor = TensorImageUtils.bitmapToFloat32Tensor(bitmap,
                 TensorImageUtils.TORCHVISION_NORM_MEAN_RGB, TensorImageUtils.TORCHVISION_NORM_STD_RGB);
         long startTime = SystemClock.uptimeMillis();
+        long inferenceStartTime = System.nanoTime();
         final Tensor outputTensor = module.forward(IValue.from(inputTensor)).toTensor();
         long timecostMs=SystemClock.uptimeMillis() - startTime;
+        long postprocessStartTime = System.nanoTime();
         Log.i(TAG, "Timecost to run model inference: " + timecostMs);
         final float[] scores = outputTensor.getDataAsFloatArray();
+        lastStageTimesNs[0]=inferenceStartTime-preprocessStartTime;
+        lastStageTimesNs[1]=postprocessStartTime-inferenceStartTime;
+        lastStageTimesNs[2]=System.nanoTime()-postprocessStartTime;
         return new Pair<Long,float[]>(timecostMs,scores);
     }
+
+    public long[] getLastStageTimesNs(){
+        return lastStageTimesNs;
+    }
+
+    public void close(){
+        module.destroy();
+    }
 }
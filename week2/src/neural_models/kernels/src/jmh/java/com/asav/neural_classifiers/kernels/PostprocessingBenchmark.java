@@ -0,0 +1,83 @@
+package com.asav.neural_classifiers.kernels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top-K selection over classifier scores and aggregation of scores by labels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PostprocessingBenchmark {
+    /** ImageNet classes and Places365 scenes. */
+    @Param({"1000", "365"})
+    public int numClasses;
+
+    @Param({"5"})
+    public int k;
+
+    private float[] scores;
+    private int[] topIndices;
+
+    private List<String> labels;
+    private Set<Integer> filteredIndices;
+    private LabelAggregation aggregation;
+    private float[] slotScores;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(0);
+        scores = new float[numClasses];
+        for (int i = 0; i < numClasses; ++i)
+            scores[i] = rnd.nextFloat();
+        topIndices = new int[k];
+
+        // about 3 outputs per label and every 10th output is filtered as for scene recognition
+        labels = new ArrayList<>(numClasses);
+        filteredIndices = new HashSet<>();
+        for (int i = 0; i < numClasses; ++i) {
+            labels.add("category" + rnd.nextInt(Math.max(1, numClasses / 3)));
+            if (i % 10 == 0)
+                filteredIndices.add(i);
+        }
+        aggregation = new LabelAggregation(labels, filteredIndices);
+        slotScores = new float[aggregation.getSlotLabels().length];
+    }
+
+    @Benchmark
+    public Integer[] topKBoxedSort() {
+        return TopK.sortIndices(scores);
+    }
+
+    @Benchmark
+    public int[] topKHeap() {
+        TopK.select(scores, topIndices);
+        return topIndices;
+    }
+
+    @Benchmark
+    public TreeMap<String, Float> aggregateTreeMap() {
+        return LabelAggregation.aggregateToMap(scores, labels, filteredIndices);
+    }
+
+    @Benchmark
+    public float[] aggregateSlots() {
+        aggregation.aggregate(scores, slotScores);
+        return slotScores;
+    }
+}
@@ -0,0 +1,81 @@
+package com.asav.neural_classifiers.kernels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of ARGB pixels of a square image into the input tensor of a model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreprocessingBenchmark {
+    @Param({"224", "320"})
+    public int imageSize;
+
+    @Param({"legacy_mobilenet", "legacy_imagenet", "legacy_uint8", "mobilenet", "imagenet", "uint8", "grayscale",
+            "lut_mobilenet", "lut_imagenet", "lut_uint8", "lut_grayscale"})
+    public String converterName;
+
+    private int[] pixels;
+    private ByteBuffer imgData;
+    private PixelConverter converter;
+
+    @Setup
+    public void setup() {
+        converter = getConverter(converterName);
+        pixels = new int[imageSize * imageSize];
+        Random rnd = new Random(0);
+        for (int i = 0; i < pixels.length; ++i)
+            pixels[i] = 0xFF000000 | rnd.nextInt(0x1000000);
+        imgData = ByteBuffer.allocateDirect(pixels.length * converter.getBytesPerPixel());
+        imgData.order(ByteOrder.nativeOrder());
+    }
+
+    static PixelConverter getConverter(String name) {
+        switch (name) {
+            case "legacy_mobilenet":
+                return PixelConverters.legacy(false, false);
+            case "legacy_imagenet":
+                return PixelConverters.legacy(false, true);
+            case "legacy_uint8":
+                return PixelConverters.legacy(true, false);
+            case "mobilenet":
+                return PixelConverters.MOBILENET;
+            case "imagenet":
+                return PixelConverters.IMAGENET;
+            case "uint8":
+                return PixelConverters.UINT8;
+            case "grayscale":
+                return PixelConverters.GRAYSCALE;
+            case "lut_mobilenet":
+                return LutPixelConverter.mobileNet();
+            case "lut_imagenet":
+                return LutPixelConverter.imageNet();
+            case "lut_uint8":
+                return LutPixelConverter.uint8();
+            case "lut_grayscale":
+                return LutPixelConverter.grayscale();
+            default:
+                throw new IllegalArgumentException("Unknown converter " + name);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer convert() {
+        imgData.rewind();
+        converter.convert(pixels, pixels.length, imgData);
+        return imgData;
+    }
+}
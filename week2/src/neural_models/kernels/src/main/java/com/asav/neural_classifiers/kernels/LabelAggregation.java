@@ -0,0 +1,62 @@
+package com.asav.neural_classifiers.kernels;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Sums scores of model outputs that share the same label, e.g., several places with the same scene category.
+ * Outputs may be filtered. Labels are assigned to slots in the alphabetical order.
+ */
+public class LabelAggregation {
+    private final int[] index2Slot;
+    private final String[] slotLabels;
+
+    public LabelAggregation(List<String> labels, Set<Integer> filteredIndices) {
+        TreeSet<String> labelsSorted = new TreeSet<>();
+        for (int i = 0; i < labels.size(); ++i) {
+            if (!filteredIndices.contains(i))
+                labelsSorted.add(labels.get(i));
+        }
+        slotLabels = labelsSorted.toArray(new String[0]);
+        TreeMap<String, Integer> label2Slot = new TreeMap<>();
+        for (int slot = 0; slot < slotLabels.length; ++slot)
+            label2Slot.put(slotLabels[slot], slot);
+        index2Slot = new int[labels.size()];
+        for (int i = 0; i < index2Slot.length; ++i)
+            index2Slot[i] = filteredIndices.contains(i) ? -1 : label2Slot.get(labels.get(i));
+    }
+
+    public String[] getSlotLabels() {
+        return slotLabels;
+    }
+
+    /** Fills slotScores (of getSlotLabels().length) with sums of predictions. */
+    public void aggregate(float[] predictions, float[] slotScores) {
+        Arrays.fill(slotScores, 0);
+        int count = Math.min(predictions.length, index2Slot.length);
+        for (int i = 0; i < count; ++i) {
+            int slot = index2Slot[i];
+            if (slot >= 0)
+                slotScores[slot] += predictions[i];
+        }
+    }
+
+    /** Map-based aggregation as ScenesTfLiteClassifier.getCategory2Score did before. */
+    public static TreeMap<String, Float> aggregateToMap(float[] predictions, List<String> labels, Set<Integer> filteredIndices) {
+        TreeMap<String, Float> category2Score = new TreeMap<>();
+        for (int i = 0; i < predictions.length; ++i) {
+            if (filteredIndices.contains(i))
+                continue;
+            String scene = labels.get(i);
+            float score = predictions[i];
+            Float prev = category2Score.get(scene);
+            if (prev != null)
+                score += prev;
+            category2Score.put(scene, score);
+        }
+        return category2Score;
+    }
+}
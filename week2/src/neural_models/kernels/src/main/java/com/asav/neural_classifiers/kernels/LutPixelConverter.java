@@ -0,0 +1,135 @@
+package com.asav.neural_classifiers.kernels;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Table-driven conversion of ARGB pixels. Normalized values of every 8-bit channel are precomputed
+ * into 256-entry tables, so the loop has neither divisions nor branches, and pixels are written
+ * in chunks with bulk puts into a FloatBuffer view of the output.
+ * Instances keep the chunk buffer and must not be shared between threads.
+ */
+public class LutPixelConverter implements PixelConverter {
+    private static final int CHUNK_PIXELS = 1024;
+
+    /** Tables for red, green and blue channels, or a single table for each channel weight of grayscale. */
+    private final float[] redTable, greenTable, blueTable;
+    private final boolean grayscale, uint8;
+    private final float[] floatChunk;
+    private final byte[] byteChunk;
+
+    private ByteBuffer viewSource = null;
+    private FloatBuffer floatView = null;
+
+    private LutPixelConverter(float[] redTable, float[] greenTable, float[] blueTable, boolean grayscale, boolean uint8) {
+        this.redTable = redTable;
+        this.greenTable = greenTable;
+        this.blueTable = blueTable;
+        this.grayscale = grayscale;
+        this.uint8 = uint8;
+        floatChunk = uint8 ? null : new float[CHUNK_PIXELS * (grayscale ? 1 : 3)];
+        byteChunk = uint8 ? new byte[CHUNK_PIXELS * 3] : null;
+    }
+
+    /** Every channel is mapped to value/std-1. */
+    public static LutPixelConverter mobileNet() {
+        float std = 127.5f;
+        float[] table = new float[256];
+        for (int v = 0; v < 256; ++v)
+            table[v] = v / std - 1.0f;
+        return new LutPixelConverter(table, table, table, false, false);
+    }
+
+    /** Channels are scaled to [0,1] and normalized with the given mean and std of RGB channels. */
+    public static LutPixelConverter meanStd(float[] mean, float[] std) {
+        float[][] tables = new float[3][256];
+        for (int c = 0; c < 3; ++c) {
+            for (int v = 0; v < 256; ++v)
+                tables[c][v] = (v / 255.0f - mean[c]) / std[c];
+        }
+        return new LutPixelConverter(tables[0], tables[1], tables[2], false, false);
+    }
+
+    public static LutPixelConverter imageNet() {
+        return meanStd(new float[]{0.485f, 0.456f, 0.406f}, new float[]{0.229f, 0.224f, 0.225f});
+    }
+
+    public static LutPixelConverter uint8() {
+        return new LutPixelConverter(null, null, null, false, true);
+    }
+
+    /** Luminance with the channel weights of TfLiteFeatureExtractor.addPixelValue. */
+    public static LutPixelConverter grayscale() {
+        float[] red = new float[256], green = new float[256], blue = new float[256];
+        for (int v = 0; v < 256; ++v) {
+            red[v] = 0.299f * v / 255;
+            // bits 8-15 are weighted by 0.114 and bits 0-7 by 0.587 in the original feature extractor
+            green[v] = 0.114f * v / 255;
+            blue[v] = 0.587f * v / 255;
+        }
+        return new LutPixelConverter(red, green, blue, true, false);
+    }
+
+    @Override
+    public int getBytesPerPixel() {
+        return uint8 ? 3 : (grayscale ? 4 : 12);
+    }
+
+    @Override
+    public void convert(int[] pixels, int numPixels, ByteBuffer out) {
+        if (uint8)
+            convertBytes(pixels, numPixels, out);
+        else
+            convertFloats(pixels, numPixels, out);
+    }
+
+    private void convertBytes(int[] pixels, int numPixels, ByteBuffer out) {
+        byte[] chunk = byteChunk;
+        for (int start = 0; start < numPixels; start += CHUNK_PIXELS) {
+            int end = Math.min(numPixels, start + CHUNK_PIXELS);
+            int pos = 0;
+            for (int i = start; i < end; ++i) {
+                int val = pixels[i];
+                chunk[pos++] = (byte) (val >> 16);
+                chunk[pos++] = (byte) (val >> 8);
+                chunk[pos++] = (byte) val;
+            }
+            out.put(chunk, 0, pos);
+        }
+    }
+
+    private FloatBuffer getFloatView(ByteBuffer out) {
+        if (out != viewSource) {
+            ByteBuffer whole = out.duplicate().order(out.order());
+            whole.clear();
+            floatView = whole.asFloatBuffer();
+            viewSource = out;
+        }
+        floatView.position(out.position() / 4);
+        return floatView;
+    }
+
+    private void convertFloats(int[] pixels, int numPixels, ByteBuffer out) {
+        FloatBuffer view = getFloatView(out);
+        float[] chunk = floatChunk, red = redTable, green = greenTable, blue = blueTable;
+        for (int start = 0; start < numPixels; start += CHUNK_PIXELS) {
+            int end = Math.min(numPixels, start + CHUNK_PIXELS);
+            int pos = 0;
+            if (grayscale) {
+                for (int i = start; i < end; ++i) {
+                    int val = pixels[i];
+                    chunk[pos++] = red[(val >> 16) & 0xFF] + green[(val >> 8) & 0xFF] + blue[val & 0xFF];
+                }
+            } else {
+                for (int i = start; i < end; ++i) {
+                    int val = pixels[i];
+                    chunk[pos++] = red[(val >> 16) & 0xFF];
+                    chunk[pos++] = green[(val >> 8) & 0xFF];
+                    chunk[pos++] = blue[val & 0xFF];
+                }
+            }
+            view.put(chunk, 0, pos);
+        }
+        out.position(view.position() * 4);
+    }
+}
@@ -0,0 +1,14 @@
+package com.asav.neural_classifiers.kernels;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts ARGB pixels (as returned by Bitmap.getPixels) into the NHWC input tensor of a model.
+ */
+public interface PixelConverter {
+    /** Writes numPixels pixels to out starting from its current position. */
+    void convert(int[] pixels, int numPixels, ByteBuffer out);
+
+    /** Number of bytes written per pixel. */
+    int getBytesPerPixel();
+}
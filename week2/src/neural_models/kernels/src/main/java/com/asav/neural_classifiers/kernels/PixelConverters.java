@@ -0,0 +1,129 @@
+package com.asav.neural_classifiers.kernels;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pixel conversions used by the TfLite models of the course.
+ * The legacy converter keeps the per-pixel branching of TfLiteModel.addPixelValue, so optimized variants
+ * can be compared with it.
+ */
+public class PixelConverters {
+    private PixelConverters() {
+    }
+
+    /** MobileNet: every channel is mapped to [-1,1]. */
+    public static final PixelConverter MOBILENET = new PixelConverter() {
+        @Override
+        public void convert(int[] pixels, int numPixels, ByteBuffer out) {
+            float std = 127.5f;
+            for (int i = 0; i < numPixels; ++i) {
+                int val = pixels[i];
+                out.putFloat(((val >> 16) & 0xFF) / std - 1.0f);
+                out.putFloat(((val >> 8) & 0xFF) / std - 1.0f);
+                out.putFloat((val & 0xFF) / std - 1.0f);
+            }
+        }
+
+        @Override
+        public int getBytesPerPixel() {
+            return 12;
+        }
+    };
+
+    /** EfficientNet and torchvision models: ImageNet mean and std of RGB channels. */
+    public static final PixelConverter IMAGENET = new PixelConverter() {
+        @Override
+        public void convert(int[] pixels, int numPixels, ByteBuffer out) {
+            for (int i = 0; i < numPixels; ++i) {
+                int val = pixels[i];
+                out.putFloat((((val >> 16) & 0xFF) / 255.0f - 0.485f) / 0.229f);
+                out.putFloat((((val >> 8) & 0xFF) / 255.0f - 0.456f) / 0.224f);
+                out.putFloat(((val & 0xFF) / 255.0f - 0.406f) / 0.225f);
+            }
+        }
+
+        @Override
+        public int getBytesPerPixel() {
+            return 12;
+        }
+    };
+
+    /** Quantized models with uint8 RGB input. */
+    public static final PixelConverter UINT8 = new PixelConverter() {
+        @Override
+        public void convert(int[] pixels, int numPixels, ByteBuffer out) {
+            for (int i = 0; i < numPixels; ++i) {
+                int val = pixels[i];
+                out.put((byte) ((val >> 16) & 0xFF));
+                out.put((byte) ((val >> 8) & 0xFF));
+                out.put((byte) (val & 0xFF));
+            }
+        }
+
+        @Override
+        public int getBytesPerPixel() {
+            return 3;
+        }
+    };
+
+    /** Single-channel luminance in [0,1] as in TfLiteFeatureExtractor.addPixelValue. */
+    public static final PixelConverter GRAYSCALE = new PixelConverter() {
+        @Override
+        public void convert(int[] pixels, int numPixels, ByteBuffer out) {
+            for (int i = 0; i < numPixels; ++i) {
+                int val = pixels[i];
+                int r = (val >> 16) & 0xFF;
+                int b = (val >> 8) & 0xFF;
+                int g = val & 0xFF;
+                out.putFloat((0.299f * r + 0.587f * g + 0.114f * b) / 255);
+            }
+        }
+
+        @Override
+        public int getBytesPerPixel() {
+            return 4;
+        }
+    };
+
+    /** Checks the input type and normalization for every pixel like TfLiteModel.addPixelValue. */
+    public static PixelConverter legacy(final boolean isInt8Input, final boolean efficientnetPreprocess) {
+        return new PixelConverter() {
+            @Override
+            public void convert(int[] pixels, int numPixels, ByteBuffer out) {
+                for (int i = 0; i < numPixels; ++i)
+                    addPixelValue(pixels[i], out);
+            }
+
+            private void addPixelValue(int val, ByteBuffer imgData) {
+                if (isInt8Input) {
+                    imgData.put((byte) ((val >> 16) & 0xFF));
+                    imgData.put((byte) ((val >> 8) & 0xFF));
+                    imgData.put((byte) (val & 0xFF));
+                } else {
+                    if (efficientnetPreprocess) {
+                        imgData.putFloat((((val >> 16) & 0xFF) / 255.0f - 0.485f) / 0.229f);
+                        imgData.putFloat((((val >> 8) & 0xFF) / 255.0f - 0.456f) / 0.224f);
+                        imgData.putFloat(((val & 0xFF) / 255.0f - 0.406f) / 0.225f);
+                    } else {
+                        float std = 127.5f;
+                        imgData.putFloat(((val >> 16) & 0xFF) / std - 1.0f);
+                        imgData.putFloat(((val >> 8) & 0xFF) / std - 1.0f);
+                        imgData.putFloat((val & 0xFF) / std - 1.0f);
+                    }
+                }
+            }
+
+            @Override
+            public int getBytesPerPixel() {
+                return isInt8Input ? 3 : 12;
+            }
+        };
+    }
+
+    /** Table-driven converter chosen once for the model input instead of per pixel, a new instance for every model. */
+    public static PixelConverter forModel(boolean isInt8Input, boolean efficientnetPreprocess) {
+        if (isInt8Input)
+            return LutPixelConverter.uint8();
+        return efficientnetPreprocess ? LutPixelConverter.imageNet() : LutPixelConverter.mobileNet();
+    }
+}
@@ -0,0 +1,74 @@
+package com.asav.neural_classifiers.kernels;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Selection of the best scores of a classifier.
+ */
+public class TopK {
+    private TopK() {
+    }
+
+    /** Sorts boxed indices of all scores in descending order, as MainActivity.recognize did before. */
+    public static Integer[] sortIndices(final float[] scores) {
+        Integer[] index = new Integer[scores.length];
+        for (int i = 0; i < scores.length; i++)
+            index[i] = i;
+        Arrays.sort(index, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer idx1, Integer idx2) {
+                return Float.compare(scores[idx2], scores[idx1]);
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Writes indices of up to indices.length best scores to indices in descending order of scores
+     * using a min-heap of the current best indices. Returns the number of indices written.
+     */
+    public static int select(float[] scores, int[] indices) {
+        int k = Math.min(indices.length, scores.length);
+        int size = 0;
+        for (int i = 0; i < scores.length; ++i) {
+            if (size < k) {
+                indices[size] = i;
+                int pos = size++;
+                while (pos > 0 && scores[indices[(pos - 1) / 2]] > scores[indices[pos]]) {
+                    swap(indices, pos, (pos - 1) / 2);
+                    pos = (pos - 1) / 2;
+                }
+            } else if (scores[i] > scores[indices[0]]) {
+                indices[0] = i;
+                siftDown(scores, indices, size, 0);
+            }
+        }
+        // pop minimums to the end to get the descending order
+        for (int last = size - 1; last > 0; --last) {
+            swap(indices, 0, last);
+            siftDown(scores, indices, last, 0);
+        }
+        return size;
+    }
+
+    private static void siftDown(float[] scores, int[] heap, int size, int pos) {
+        while (true) {
+            int smallest = pos, left = 2 * pos + 1, right = left + 1;
+            if (left < size && scores[heap[left]] < scores[heap[smallest]])
+                smallest = left;
+            if (right < size && scores[heap[right]] < scores[heap[smallest]])
+                smallest = right;
+            if (smallest == pos)
+                break;
+            swap(heap, pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+}
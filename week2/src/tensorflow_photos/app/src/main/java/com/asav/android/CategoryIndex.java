@@ -0,0 +1,111 @@
+package com.asav.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Photos grouped by high-level category and category (scene, event or location).
+ * Files are kept as int ids from {@link FileIdDictionary} in posting lists.
+ * Updated in place by a single writer; readers get counters and sorted id snapshots without copying the index.
+ */
+public class CategoryIndex {
+    private final FileIdDictionary fileIds;
+    private final List<Map<String, PostingList>> categories;
+    private final AtomicInteger[] totalCounts;
+    private final AtomicLong version = new AtomicLong(0);
+
+    public CategoryIndex(FileIdDictionary fileIds, int numHighLevelCategories) {
+        this.fileIds = fileIds;
+        categories = new ArrayList<>(numHighLevelCategories);
+        totalCounts = new AtomicInteger[numHighLevelCategories];
+        for (int i = 0; i < numHighLevelCategories; ++i) {
+            categories.add(new ConcurrentHashMap<>());
+            totalCounts[i] = new AtomicInteger(0);
+        }
+    }
+
+    public int getNumHighLevelCategories() {
+        return categories.size();
+    }
+
+    /** Incremented on every change, so readers can skip refreshes if nothing was added. */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /** Must be called from one thread at a time, a file is counted once per category. */
+    public void add(int highLevelCategory, String category, String filename) {
+        if (highLevelCategory < 0 || highLevelCategory >= categories.size())
+            return;
+        Map<String, PostingList> histo = categories.get(highLevelCategory);
+        PostingList files = histo.get(category);
+        if (files == null) {
+            files = new PostingList();
+            histo.put(category, files);
+        }
+        if (!files.add(fileIds.getId(filename)))
+            return;
+        totalCounts[highLevelCategory].incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    /** Removes the file from all categories, e.g., if it was deleted or modified. Must be called from the writer thread. */
+    public void remove(String filename) {
+        int id = fileIds.findId(filename);
+        if (id < 0)
+            return;
+        boolean removed = false;
+        for (int i = 0; i < categories.size(); ++i) {
+            for (PostingList files : categories.get(i).values()) {
+                if (files.remove(id)) {
+                    totalCounts[i].decrementAndGet();
+                    removed = true;
+                }
+            }
+        }
+        if (removed)
+            version.incrementAndGet();
+    }
+
+    /** Total number of (category, file) pairs in the high-level category. */
+    public int getTotalCount(int highLevelCategory) {
+        if (highLevelCategory < 0 || highLevelCategory >= categories.size())
+            return 0;
+        return totalCounts[highLevelCategory].get();
+    }
+
+    public Map<String, Integer> getCategoryCounts(int highLevelCategory) {
+        Map<String, Integer> res = new HashMap<>();
+        if (highLevelCategory >= 0 && highLevelCategory < categories.size()) {
+            for (Map.Entry<String, PostingList> entry : categories.get(highLevelCategory).entrySet()) {
+                // categories of removed files are kept empty
+                if (entry.getValue().size() > 0)
+                    res.put(entry.getKey(), entry.getValue().size());
+            }
+        }
+        return res;
+    }
+
+    /** Sorted ids of files in category at the moment of the call. */
+    public int[] getFileIds(int highLevelCategory, String category) {
+        if (highLevelCategory < 0 || highLevelCategory >= categories.size())
+            return new int[0];
+        PostingList files = categories.get(highLevelCategory).get(category);
+        return files != null ? files.toSortedArray() : new int[0];
+    }
+
+    /** Files of category at the moment of the call, the list is not updated later. */
+    public List<String> getFiles(int highLevelCategory, String category) {
+        return fileIds.getFilenames(getFileIds(highLevelCategory, category));
+    }
+
+    /** Files that belong to both categories, e.g., a scene and a location. */
+    public List<String> getFiles(int highLevelCategory1, String category1, int highLevelCategory2, String category2) {
+        return fileIds.getFilenames(PostingList.intersect(getFileIds(highLevelCategory1, category1), getFileIds(highLevelCategory2, category2)));
+    }
+}
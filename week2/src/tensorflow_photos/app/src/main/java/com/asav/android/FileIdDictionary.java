@@ -0,0 +1,58 @@
+package com.asav.android;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Maps absolute photo paths to consecutive int ids, so every path string is stored once
+ * and indices keep ids instead of strings.
+ */
+public class FileIdDictionary {
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private volatile String[] filenames = new String[256];
+    private volatile int size = 0;
+
+    /** Returns the id of filename, a new id is assigned to unknown files. */
+    public synchronized int getId(String filename) {
+        Integer id = ids.get(filename);
+        if (id == null) {
+            String[] current = filenames;
+            if (size == current.length)
+                filenames = current = Arrays.copyOf(current, 2 * current.length);
+            id = size;
+            current[id] = filename;
+            ids.put(filename, id);
+            size = size + 1;
+        }
+        return id;
+    }
+
+    /** Returns -1 for unknown files. */
+    public synchronized int findId(String filename) {
+        Integer id = ids.get(filename);
+        return id != null ? id : -1;
+    }
+
+    public String getFilename(int id) {
+        return filenames[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<String> getFilenames(int[] fileIds) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getFilename(fileIds[index]);
+            }
+            @Override
+            public int size() {
+                return fileIds.length;
+            }
+        };
+    }
+}
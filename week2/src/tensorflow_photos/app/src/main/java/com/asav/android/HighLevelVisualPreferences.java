@@ -98,13 +98,15 @@ public class HighLevelVisualPreferences extends VisualPreferences{
     @Override
     public void updateChart(){
         if(mainActivity!=null) {
-            List<Map<String, Map<String, Set<String>>>> categoriesHistograms = getCategoriesHistograms();
+            CategoryIndex categoryIndex = getCategoryIndex();
+            long version = categoryIndex.getVersion();
+            if (version == chartVersion)
+                return;
+            chartVersion = version;
             //infoText.setText("");
             Map<String, Integer> histo = new HashMap<>();
-            for (int i = 0; i < categoriesHistograms.size(); ++i) {
-                int count = 0;
-                for(Map<String, Set<String>> id2Files: categoriesHistograms.get(i).values())
-                    count += getFilesCount(id2Files);
+            for (int i = 0; i < categoryIndex.getNumHighLevelCategories(); ++i) {
+                int count = categoryIndex.getTotalCount(i);
 
                 if (count > 0) {
                     histo.put(categoryList[i], count);
@@ -10,6 +10,8 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -29,6 +31,8 @@ import com.asav.android.db.RectFloat;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by avsavchenko.
@@ -46,15 +50,18 @@ public class MainActivity extends FragmentActivity {
     private ProgressBar progressBar;
     private TextView progressBarinsideText;
 
-    private Thread photoProcessingThread=null;
-    private Map<String,Long> photosTaken;
+    private PhotoIndexingPipeline photoIndexingPipeline=null;
     private ArrayList<String> photosFilenames;
-    private int currentPhotoIndex=0;
+    private final AtomicInteger numPhotosToProcess = new AtomicInteger(0);
     private PhotoProcessor photoProcessor = null;
 
     private String[] categoryList;
 
-    private List<Map<String,Map<String, Set<String>>>> categoriesHistograms=new ArrayList<>();
+    private CategoryIndex categoryIndex;
+    /** Chart is redrawn at most once per this interval while photos are indexed. */
+    private static final long CHART_UPDATE_INTERVAL_MS = 250;
+    private final AtomicBoolean chartUpdateScheduled = new AtomicBoolean(false);
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -71,14 +78,10 @@ public class MainActivity extends FragmentActivity {
         //checkServerSettings();
         categoryList = getResources().getStringArray(R.array.category_list);
 
-        for(int i=0;i<categoryList.length-1;++i){
-            categoriesHistograms.add(new HashMap<>());
-        }
-
         photoProcessor = PhotoProcessor.getPhotoProcessor(this);
-        photosTaken = photoProcessor.getCameraImages();
-        photosFilenames=new ArrayList<String>(photosTaken.keySet());
-        currentPhotoIndex=0;
+        categoryIndex=new CategoryIndex(photoProcessor.getFileIds(),categoryList.length-1);
+        photoProcessor.setLocationListener((filename, location) -> processLocation(filename, location));
+        photosFilenames=new ArrayList<String>(photoProcessor.getCameraImages());
 
         progressBar=(ProgressBar) findViewById(R.id.progress);
         progressBar.setMax(photosFilenames.size());
@@ -86,9 +89,6 @@ public class MainActivity extends FragmentActivity {
         progressBarinsideText.setText("");
 
 
-        photoProcessingThread = new Thread(() -> {
-         processAllPhotos();
-        }, "photo-processing-thread");
         progressBar.setVisibility(View.VISIBLE);
 
         preferencesFragment = new HighLevelVisualPreferences();
@@ -97,98 +97,99 @@ public class MainActivity extends FragmentActivity {
         prefArgs.putString("title", "High-Level topCategories");
         preferencesFragment.setArguments(prefArgs);
 
-        photosFragment=new Photos();
-        Bundle args = new Bundle();
-        args.putStringArray("photosTaken", new String[]{"0"});
-        args.putStringArrayList("0",new ArrayList<String>(photoProcessor.getCameraImages().keySet()));
-        photosFragment.setArguments(args);
         PreferencesClick(null);
 
-        photoProcessingThread.setPriority(Thread.MIN_PRIORITY);
-        photoProcessingThread.start();
+        processAllPhotos();
     }
-    public synchronized List<Map<String,Map<String, Set<String>>>> getCategoriesHistograms(){
-        return categoriesHistograms;
+    public CategoryIndex getCategoryIndex(){
+        return categoryIndex;
     }
 
     private void processAllPhotos(){
-        //ImageAnalysisResults previousPhotoProcessedResult=null;
-        for(;currentPhotoIndex<photosTaken.size();++currentPhotoIndex){
-            String filename=photosFilenames.get(currentPhotoIndex);
-            try {
-                File file = new File(filename);
-
-                if (file.exists()) {
-                    long startTime = SystemClock.uptimeMillis();
-                    ImageAnalysisResults res = photoProcessor.getImageAnalysisResults(filename);
-
-                    long endTime = SystemClock.uptimeMillis();
-                    Log.d(TAG, "!!Processed: "+ filename+" in background thread:" + Long.toString(endTime - startTime));
+        final long startTime = SystemClock.uptimeMillis();
+        numPhotosToProcess.set(photosFilenames.size());
+        photoIndexingPipeline=new PhotoIndexingPipeline(photoProcessor, photosFilenames, new PhotoIndexingPipeline.Listener() {
+            @Override
+            public void onPhotoProcessed(ImageAnalysisResults res, int processedCount) {
+                if(res!=null)
                     processRecognitionResults(res);
-                    final int progress=currentPhotoIndex+1;
-                    runOnUiThread(() -> {
-                        if(progressBar!=null) {
-                            progressBar.setProgress(progress);
-                            progressBarinsideText.setText(""+100*progress/photosTaken.size()+"%");
-                        }
-                    });
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                Log.e(TAG, "While  processing image" + filename + " exception thrown: " + e);
+                runOnUiThread(() -> {
+                    if(progressBar!=null) {
+                        int total=Math.max(1,numPhotosToProcess.get());
+                        progressBar.setMax(total);
+                        progressBar.setProgress(processedCount);
+                        progressBarinsideText.setText(""+100*processedCount/total+"%");
+                    }
+                });
             }
-        }
-    }
 
+            @Override
+            public void onFinished() {
+                Log.d(TAG, "!!Processed all photos in background in " + Long.toString(SystemClock.uptimeMillis() - startTime));
+                photoProcessor.flush();
+            }
+        });
+        photoIndexingPipeline.start();
 
+        // photos known from the previous run are already queued, only changes are added by the scan
+        photoProcessor.startMediaScan(new MediaStoreScanner.Listener() {
+            @Override
+            public void onPhotosChanged(List<String> filenames, List<Long> datesTaken) {
+                // categories of modified photos are added again when they are processed
+                removeFromCategories(filenames);
+                numPhotosToProcess.addAndGet(photoIndexingPipeline.addPhotos(filenames));
+            }
 
-    private void updateCategory(List<Map<String,Map<String, Set<String>>>> histos, int highLevelCategory, String category, String filename){
-        if(highLevelCategory>=0) {
-            Map<String, Map<String, Set<String>>> histo = histos.get(highLevelCategory);
-            if (!histo.containsKey(category)) {
-                histo.put(category, new TreeMap<>());
-                histo.get(category).put("0", new TreeSet<>());
+            @Override
+            public void onPhotosDeleted(List<String> filenames) {
+                Log.i(TAG, filenames.size()+" photos were deleted");
+                removeFromCategories(filenames);
             }
-            histo.get(category).get("0").add(filename);
-        }
-    }
 
-    private List<Map<String,Map<String, Set<String>>>> deepCopyCategories(List<Map<String,Map<String, Set<String>>>> categories){
-        ArrayList<Map<String,Map<String, Set<String>>>> result=new ArrayList<>(categories.size());
-        for(Map<String,Map<String, Set<String>>> m:categories){
-            Map<String,Map<String, Set<String>>> m1=new HashMap<>(m.size());
-            result.add(m1);
-            for(Map.Entry<String,Map<String, Set<String>>> me:m.entrySet()){
-                Map<String, Set<String>> m2=new TreeMap<>(Collections.reverseOrder());
-                m1.put(me.getKey(),m2);
-                for(Map.Entry<String, Set<String>> map_files:me.getValue().entrySet()){
-                    m2.put(map_files.getKey(),new TreeSet<>(map_files.getValue()));
-                }
+            @Override
+            public void onScanFinished() {
+                photoIndexingPipeline.finishInput();
             }
-        }
-        return result;
+        });
     }
+
+
+
     private synchronized void processRecognitionResults(ImageAnalysisResults results){
         String filename=results.filename;
 
         String location=results.locations.description;
-        List<Map<String,Map<String, Set<String>>>> newCategoriesHistograms = deepCopyCategories(categoriesHistograms);
 
-        List<String> scenes = results.scene.getMostReliableCategories();
+        Set<String> scenes = new LinkedHashSet<>(results.scene.getMostReliableCategories());
         for (String scene : scenes) {
-            updateCategory(newCategoriesHistograms, photoProcessor.getHighLevelCategory(scene), scene, filename);
+            categoryIndex.add(photoProcessor.getHighLevelCategory(scene), scene, filename);
         }
         if(location!=null)
-            updateCategory(newCategoriesHistograms, newCategoriesHistograms.size() - 1, location, filename);
+            categoryIndex.add(categoryIndex.getNumHighLevelCategories() - 1, location, filename);
 
-        categoriesHistograms=newCategoriesHistograms;
+        scheduleChartUpdate();
+    }
 
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
+    private synchronized void processLocation(String filename, String location){
+        categoryIndex.add(categoryIndex.getNumHighLevelCategories() - 1, location, filename);
+        scheduleChartUpdate();
+    }
+
+    private synchronized void removeFromCategories(List<String> filenames){
+        long version=categoryIndex.getVersion();
+        for (String filename : filenames)
+            categoryIndex.remove(filename);
+        if(categoryIndex.getVersion()!=version)
+            scheduleChartUpdate();
+    }
+
+    private void scheduleChartUpdate(){
+        if(chartUpdateScheduled.compareAndSet(false,true)) {
+            uiHandler.postDelayed(() -> {
+                chartUpdateScheduled.set(false);
                 preferencesFragment.updateChart();
-            }
-        });
+            }, CHART_UPDATE_INTERVAL_MS);
+        }
     }
 
     public void PreferencesClick(View view) {
@@ -200,6 +201,12 @@ public class MainActivity extends FragmentActivity {
     public void PhotosClick(View view) {
         FragmentManager fm = getFragmentManager();
         if(fm.getBackStackEntryCount()==0) {
+            photosFragment=new Photos();
+            Bundle args = new Bundle();
+            args.putStringArray("photosTaken", new String[]{"0"});
+            args.putStringArrayList("0",new ArrayList<String>(photoProcessor.getCameraImages()));
+            photosFragment.setArguments(args);
+
             FragmentTransaction fragmentTransaction = fm.beginTransaction();
             fragmentTransaction.replace(R.id.fragment_switch, photosFragment);
             fragmentTransaction.addToBackStack(null);
@@ -235,6 +242,10 @@ public class MainActivity extends FragmentActivity {
 
     @Override
     public void onDestroy() {
+        if(photoIndexingPipeline!=null)
+            photoIndexingPipeline.cancel();
+        if(photoProcessor!=null)
+            photoProcessor.flush();
         super.onDestroy();
     }
 
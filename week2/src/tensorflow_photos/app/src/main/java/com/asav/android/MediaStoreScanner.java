@@ -0,0 +1,221 @@
+package com.asav.android;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental scan of the MediaStore images.
+ * The photos found by the previous scan are persisted as a snapshot (path, date taken, date modified),
+ * so they are available immediately at startup. The scan then pages through the MediaStore cursor
+ * in a background thread and reports only photos that were added, modified or deleted since the snapshot.
+ * On Android 11+ the whole scan is skipped if the MediaStore generation did not change.
+ */
+public class MediaStoreScanner {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "MediaStoreScanner";
+
+    public interface Listener {
+        /** Added or modified photos of one cursor page. */
+        void onPhotosChanged(List<String> filenames, List<Long> datesTaken);
+        void onPhotosDeleted(List<String> filenames);
+        void onScanFinished();
+    }
+
+    private static final int PAGE_SIZE = 500;
+    private static final String SNAPSHOT_FILENAME = "media_snapshot";
+    private static final String PREFERENCES_NAME = "media_scanner";
+    private static final String VERSION_KEY = "version";
+    private static final String GENERATION_KEY = "generation";
+
+    private static final String[] PROJECTION = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_TAKEN, MediaStore.Images.Media.DATE_MODIFIED};
+
+    private final Context context;
+    /** Photo path to {date taken, date modified} */
+    private final Map<String, long[]> snapshot = new HashMap<>();
+
+    public MediaStoreScanner(Context context) {
+        this.context = context;
+        loadSnapshot();
+    }
+
+    /** Photos found by the previous scan, path to {date taken, date modified}. */
+    public Map<String, long[]> getSnapshot() {
+        return snapshot;
+    }
+
+    private File getSnapshotFile() {
+        return context.getFileStreamPath(SNAPSHOT_FILENAME);
+    }
+
+    private void loadSnapshot() {
+        File file = getSnapshotFile();
+        if (!file.exists())
+            return;
+        long startTime = SystemClock.uptimeMillis();
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = is.readInt();
+            for (int i = 0; i < count; ++i) {
+                String filename = is.readUTF();
+                long dateTaken = is.readLong();
+                long dateModified = is.readLong();
+                snapshot.put(filename, new long[]{dateTaken, dateModified});
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "While loading media snapshot exception thrown: ", e);
+            snapshot.clear();
+        }
+        Log.i(TAG, "Loaded " + snapshot.size() + " photos from snapshot. Timecost: " + (SystemClock.uptimeMillis() - startTime));
+    }
+
+    private void saveSnapshot(Map<String, long[]> photos) {
+        File tmpFile = new File(getSnapshotFile().getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            os.writeInt(photos.size());
+            for (Map.Entry<String, long[]> entry : photos.entrySet()) {
+                os.writeUTF(entry.getKey());
+                os.writeLong(entry.getValue()[0]);
+                os.writeLong(entry.getValue()[1]);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "While saving media snapshot exception thrown: ", e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(getSnapshotFile()))
+            Log.e(TAG, "Cannot replace media snapshot");
+    }
+
+    /** Returns null before Android 10, so the scan is never skipped there. */
+    private String getMediaStoreVersion() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return MediaStore.getVersion(context);
+        return null;
+    }
+
+    private long getMediaStoreGeneration() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            return MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        return -1;
+    }
+
+    private Cursor queryPage(int offset) {
+        ContentResolver resolver = context.getContentResolver();
+        String sortOrder = MediaStore.Images.Media._ID + " ASC";
+        // MediaStore honours the limit and offset arguments only since Android 11
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Bundle args = new Bundle();
+            args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+            args.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
+            args.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+            return resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, args, null);
+        }
+        return resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, null, null,
+                sortOrder + " LIMIT " + PAGE_SIZE + " OFFSET " + offset);
+    }
+
+    private static long getLong(Cursor cursor, int column) {
+        String str = cursor.getString(column);
+        return str != null ? Long.parseLong(str) : 0;
+    }
+
+    /** Scans MediaStore and reports changes since the snapshot, should be called from a background thread. */
+    public void scan(Listener listener) {
+        long startTime = SystemClock.uptimeMillis();
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String version = null;
+        long generation = -1;
+        try {
+            version = getMediaStoreVersion();
+            generation = getMediaStoreGeneration();
+        } catch (Exception e) {
+            Log.e(TAG, "While getting MediaStore generation exception thrown: ", e);
+        }
+        if (version != null && generation >= 0 && version.equals(preferences.getString(VERSION_KEY, null)) &&
+                generation == preferences.getLong(GENERATION_KEY, -1) && getSnapshotFile().exists()) {
+            Log.i(TAG, "MediaStore was not changed since generation " + generation);
+            listener.onScanFinished();
+            return;
+        }
+
+        Map<String, long[]> photos = new HashMap<>(snapshot.size());
+        Set<String> seen = new HashSet<>(snapshot.size());
+        int changedCount = 0;
+        try {
+            for (int offset = 0; ; offset += PAGE_SIZE) {
+                List<String> filenames = new ArrayList<>();
+                List<Long> datesTaken = new ArrayList<>();
+                int rows = 0, newRows = 0;
+                try (Cursor cursor = queryPage(offset)) {
+                    if (cursor == null)
+                        throw new IllegalStateException("MediaStore query failed");
+                    int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+                    int dateTakenColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_TAKEN);
+                    int dateModifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED);
+                    while (cursor.moveToNext()) {
+                        ++rows;
+                        String filename = cursor.getString(dataColumn);
+                        if (filename == null || !seen.add(filename))
+                            continue;
+                        ++newRows;
+                        long dateTaken = getLong(cursor, dateTakenColumn);
+                        long dateModified = getLong(cursor, dateModifiedColumn);
+                        photos.put(filename, new long[]{dateTaken, dateModified});
+                        long[] previous = snapshot.get(filename);
+                        if (previous == null || previous[1] != dateModified) {
+                            filenames.add(filename);
+                            datesTaken.add(dateTaken);
+                        }
+                    }
+                }
+                if (!filenames.isEmpty()) {
+                    changedCount += filenames.size();
+                    listener.onPhotosChanged(filenames, datesTaken);
+                }
+                // a provider that ignores the limit returns the same rows again
+                if (rows < PAGE_SIZE || newRows == 0)
+                    break;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "While scanning MediaStore exception thrown: ", e);
+            listener.onScanFinished();
+            return;
+        }
+
+        List<String> deleted = new ArrayList<>();
+        for (String filename : snapshot.keySet()) {
+            if (!seen.contains(filename))
+                deleted.add(filename);
+        }
+        if (!deleted.isEmpty())
+            listener.onPhotosDeleted(deleted);
+
+        saveSnapshot(photos);
+        snapshot.clear();
+        snapshot.putAll(photos);
+        preferences.edit().putString(VERSION_KEY, version).putLong(GENERATION_KEY, generation).apply();
+        Log.i(TAG, "Scanned " + photos.size() + " photos: " + changedCount + " changed, " + deleted.size() + " deleted. Timecost: " + (SystemClock.uptimeMillis() - startTime));
+        listener.onScanFinished();
+    }
+}
@@ -0,0 +1,286 @@
+package com.asav.android;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.asav.android.db.ImageAnalysisResults;
+import com.asav.android.db.SceneData;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background indexing of the gallery as a chain of stages connected by bounded queues:
+ * subsampled decode/rotate -> resize -> batched scene classification (one thread per interpreter) -> results sink.
+ * A full queue blocks its producers, so only a few decoded bitmaps are kept in memory.
+ */
+public class PhotoIndexingPipeline {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "PhotoIndexingPipeline";
+
+    public interface Listener {
+        /** Called from the sink thread, res is null if the photo could not be processed. */
+        void onPhotoProcessed(ImageAnalysisResults res, int processedCount);
+        /** Called from the sink thread, or from start() if there is no classifier to run the pipeline. */
+        void onFinished();
+    }
+
+    private static final int NUM_DECODE_THREADS = 2;
+    private static final int NUM_RESIZE_THREADS = 1;
+    private static final int DECODED_QUEUE_CAPACITY = 2;
+    private static final int RESIZED_QUEUE_CAPACITY = 8;
+    private static final int RESULTS_QUEUE_CAPACITY = 32;
+    /** The longest time the classification stage waits to fill a batch. */
+    private static final long MAX_BATCH_LATENCY_MS = 50;
+
+    private static class Task {
+        final String filename;
+        Bitmap bmp = null;
+        ImageAnalysisResults res = null;
+
+        Task(String filename) {
+            this.filename = filename;
+        }
+    }
+    private static final Task END = new Task(null);
+
+    private final PhotoProcessor photoProcessor;
+    private final Listener listener;
+
+    /** Photos to process, more can be added until finishInput() is called. */
+    private final BlockingQueue<String> input = new LinkedBlockingQueue<>();
+    /** Photos in input that were not taken by decoders yet. */
+    private final Set<String> enqueued = new HashSet<>();
+    private static final String END_OF_INPUT = new String("");
+    private final BlockingQueue<Task> decoded = new ArrayBlockingQueue<>(DECODED_QUEUE_CAPACITY);
+    private final BlockingQueue<Task> resized = new ArrayBlockingQueue<>(RESIZED_QUEUE_CAPACITY);
+    private final BlockingQueue<Task> results = new ArrayBlockingQueue<>(RESULTS_QUEUE_CAPACITY);
+    private final List<Thread> threads = new ArrayList<>();
+    private boolean started = false;
+
+    public PhotoIndexingPipeline(PhotoProcessor photoProcessor, List<String> filenames, Listener listener) {
+        this.photoProcessor = photoProcessor;
+        this.listener = listener;
+        addPhotos(filenames);
+    }
+
+    /**
+     * Schedules photos for processing, photos still waiting in the queue are skipped, so processed photos
+     * are scheduled again if they were modified. Returns the number of scheduled photos.
+     */
+    public synchronized int addPhotos(Collection<String> filenames) {
+        int count = 0;
+        for (String filename : filenames) {
+            if (enqueued.add(filename)) {
+                input.add(filename);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /** Pipeline stops after all photos added before this call are processed. */
+    public synchronized void finishInput() {
+        input.add(END_OF_INPUT);
+    }
+
+    public synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        int numClassifiers = photoProcessor.getNumScenesClassifiers();
+        if (numClassifiers == 0) {
+            // nothing would take photos from the resize stage, so the decoders would block forever
+            Log.e(TAG, "No scenes classifier is loaded, photos are not processed");
+            listener.onFinished();
+            return;
+        }
+        AtomicInteger decoders = new AtomicInteger(NUM_DECODE_THREADS);
+        for (int i = 0; i < NUM_DECODE_THREADS; ++i)
+            addThread("photo-decode-" + i, () -> decodeLoop(decoders));
+
+        AtomicInteger resizers = new AtomicInteger(NUM_RESIZE_THREADS);
+        for (int i = 0; i < NUM_RESIZE_THREADS; ++i)
+            addThread("photo-resize-" + i, () -> stageLoop(decoded, resized, resizers, this::resize));
+
+        AtomicInteger classifiers = new AtomicInteger(numClassifiers);
+        for (int i = 0; i < numClassifiers; ++i)
+            addThread("photo-classify-" + i, () -> classifyLoop(classifiers));
+
+        addThread("photo-results-sink", this::sinkLoop);
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    public synchronized void cancel() {
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
+    private void addThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        threads.add(thread);
+    }
+
+    private interface StageFunction {
+        void process(Task task);
+    }
+
+    private void decodeLoop(AtomicInteger liveWorkers) {
+        try {
+            while (true) {
+                String filename = input.take();
+                if (filename == END_OF_INPUT) {
+                    input.put(END_OF_INPUT);
+                    break;
+                }
+                synchronized (this) {
+                    enqueued.remove(filename);
+                }
+                Task task = new Task(filename);
+                try {
+                    if (!new File(task.filename).exists()) {
+                        //report progress for missing files too
+                    } else if (photoProcessor.hasSceneResults(task.filename)) {
+                        task.res = photoProcessor.getImageAnalysisResults(task.filename, null, new StringBuilder(), false);
+                    } else {
+                        task.bmp = photoProcessor.loadBitmapForScenes(task.filename);
+                        if (task.bmp != null) {
+                            decoded.put(task);
+                            continue;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, "While decoding image " + task.filename + " exception thrown: ", e);
+                }
+                results.put(task);
+            }
+            if (liveWorkers.decrementAndGet() == 0)
+                decoded.put(END);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Decoding interrupted");
+        }
+    }
+
+    private void stageLoop(BlockingQueue<Task> input, BlockingQueue<Task> output, AtomicInteger liveWorkers, StageFunction function) {
+        try {
+            while (true) {
+                Task task = input.take();
+                if (task == END) {
+                    // let the other workers of this stage see the end marker too
+                    input.put(END);
+                    if (liveWorkers.decrementAndGet() == 0) {
+                        input.remove(END);
+                        output.put(END);
+                    }
+                    break;
+                }
+                try {
+                    function.process(task);
+                } catch (Exception e) {
+                    Log.e(TAG, "While processing image " + task.filename + " exception thrown: ", e);
+                    task.bmp = null;
+                    task.res = null;
+                }
+                output.put(task);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, Thread.currentThread().getName() + " interrupted");
+        }
+    }
+
+    private void resize(Task task) {
+        if (task.bmp != null)
+            task.bmp = photoProcessor.resizeForScenes(task.bmp);
+    }
+
+    /** Same as stageLoop, but collects up to a batch of tasks for a single interpreter call. */
+    private void classifyLoop(AtomicInteger liveWorkers) {
+        int maxBatchSize = photoProcessor.getMaxScenesBatchSize();
+        List<Task> batch = new ArrayList<>(maxBatchSize);
+        try {
+            boolean finished = false;
+            while (!finished) {
+                Task task = resized.take();
+                long deadline = SystemClock.uptimeMillis() + MAX_BATCH_LATENCY_MS;
+                while (task != null) {
+                    if (task == END) {
+                        finished = true;
+                        break;
+                    }
+                    batch.add(task);
+                    if (batch.size() >= maxBatchSize)
+                        break;
+                    task = resized.poll(Math.max(0, deadline - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                classify(batch);
+                for (Task t : batch)
+                    results.put(t);
+                batch.clear();
+            }
+            resized.put(END);
+            if (liveWorkers.decrementAndGet() == 0) {
+                resized.remove(END);
+                results.put(END);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, Thread.currentThread().getName() + " interrupted");
+        }
+    }
+
+    private void classify(List<Task> batch) {
+        List<Bitmap> bitmaps = new ArrayList<>(batch.size());
+        List<Task> tasks = new ArrayList<>(batch.size());
+        for (Task task : batch) {
+            if (task.bmp != null) {
+                bitmaps.add(task.bmp);
+                tasks.add(task);
+            }
+            task.bmp = null;
+        }
+        if (bitmaps.isEmpty())
+            return;
+        long startTime = SystemClock.uptimeMillis();
+        try {
+            List<SceneData> scenes = photoProcessor.classifyResizedScenes(bitmaps);
+            for (int i = 0; i < scenes.size(); ++i) {
+                if (scenes.get(i) != null)
+                    tasks.get(i).res = photoProcessor.saveSceneResults(tasks.get(i).filename, scenes.get(i));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "While classifying batch of " + bitmaps.size() + " images exception thrown: ", e);
+        }
+        Log.d(TAG, "Classified " + bitmaps.size() + " images in " + (SystemClock.uptimeMillis() - startTime) + " ms");
+    }
+
+    private void sinkLoop() {
+        int processedCount = 0;
+        try {
+            Task task;
+            while ((task = results.take()) != END) {
+                ++processedCount;
+                try {
+                    listener.onPhotoProcessed(task.res, processedCount);
+                } catch (Exception e) {
+                    Log.e(TAG, "While processing results for " + task.filename + " exception thrown: ", e);
+                }
+            }
+            listener.onFinished();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Results sink interrupted after " + processedCount + " photos");
+        }
+    }
+}
@@ -4,7 +4,6 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.AssetManager;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
@@ -12,22 +11,22 @@ import android.graphics.Rect;
 import android.location.Address;
 import android.location.Geocoder;
 import android.os.SystemClock;
-import android.provider.MediaStore;
 import android.util.Log;
+import com.asav.android.db.ClassifierResult;
 import com.asav.android.db.ImageAnalysisResults;
 import com.asav.android.db.EXIFData;
 import com.asav.android.db.RectFloat;
+import com.asav.android.db.ResultStore;
 import com.asav.android.db.SceneData;
 
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.text.DateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Created by avsavchenko.
@@ -39,20 +38,35 @@ public class PhotoProcessor {
     private static final String TAG = "PhotoProcessor";
 
     private ScenesTfLiteClassifier scenesClassifier;
+    /** Interpreters available for concurrent scene classification, scenesClassifier is one of them. */
+    private BlockingQueue<ScenesTfLiteClassifier> scenesClassifiers;
+    private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+    private static final int NUM_SCENES_CLASSIFIERS = Math.max(1, Math.min(4, NUM_CORES / 2));
+    private int numScenesClassifiers = 0;
 
-    private ConcurrentHashMap<String, SceneData> scenes = new ConcurrentHashMap<>();
+    private ResultStore<SceneData> scenes;
     private static final String IMAGE_SCENES_FILENAME = "image_scenes";
 
-    private ConcurrentHashMap<String, EXIFData> exifs = new ConcurrentHashMap<>();
+    private final SimilarPhotosIndex similarPhotos = new SimilarPhotosIndex();
+
+    private ResultStore<EXIFData> exifs;
     private static final String IMAGE_EXIF_FILENAME = "image_exif";
 
     private static final boolean resetScenesModel = false;
 
     private final Context context;
     private Geocoder geocoder;
-
-    private Map<String, Long> photosTaken = new LinkedHashMap<>();
-    private Map<String, Set<String>> date2files = new LinkedHashMap<>();
+    private ReverseGeocoder reverseGeocoder;
+    private static final String OFFLINE_GEOCODING_FILE = "reverse_geocoding.txt";
+    private final Object locationLock = new Object();
+    private volatile LocationListener locationListener = null;
+
+    private MediaStoreScanner mediaStoreScanner;
+    /** Ids of all photos, photosTaken[id] is the date the photo was taken. */
+    private final FileIdDictionary fileIds = new FileIdDictionary();
+    private volatile long[] photosTaken = new long[0];
+    private final BitSet deletedPhotos = new BitSet();
+    private Map<String, PostingList> date2files = new LinkedHashMap<>();
     private static final int MIN_PHOTOS_PER_DAY = 3;
     private int avgNumPhotosPerDay = MIN_PHOTOS_PER_DAY;
 
@@ -60,6 +74,7 @@ public class PhotoProcessor {
     private PhotoProcessor(final Activity context) {
         this.context = context;
         geocoder = new Geocoder(context, Locale.US);//, Locale.getDefault());
+        initReverseGeocoder();
         initPhotosTaken();
         loadImageResults();
         loadModels();
@@ -74,17 +89,43 @@ public class PhotoProcessor {
         return instance;
     }
 
+    private void initReverseGeocoder() {
+        ReverseGeocoder.Backend backend = this::getLocationDescription;
+        try {
+            final TableGeocoderBackend offlineBackend = new TableGeocoderBackend(context.getAssets().open(OFFLINE_GEOCODING_FILE));
+            backend = (latitude, longitude) -> {
+                String description = offlineBackend.getDescription(latitude, longitude);
+                return description != null ? description : getLocationDescription(latitude, longitude);
+            };
+        } catch (IOException e) {
+            Log.i(TAG, "Offline reverse geocoding table " + OFFLINE_GEOCODING_FILE + " is not available");
+        }
+        reverseGeocoder = new ReverseGeocoder(backend);
+    }
+
     private void loadModels() {
+        scenesClassifiers = new ArrayBlockingQueue<>(NUM_SCENES_CLASSIFIERS);
+        int numThreads = Math.max(1, NUM_CORES / NUM_SCENES_CLASSIFIERS);
         try {
-            scenesClassifier = new ScenesTfLiteClassifier(context);
+            for (int i = 0; i < NUM_SCENES_CLASSIFIERS; ++i) {
+                ScenesTfLiteClassifier classifier = new ScenesTfLiteClassifier(context, numThreads);
+                if (scenesClassifier == null)
+                    scenesClassifier = classifier;
+                scenesClassifiers.add(classifier);
+                ++numScenesClassifiers;
+            }
         } catch (IOException e) {
             Log.e(TAG, "Failed to load ScenesTfClassifier.", e);
         }
     }
 
-    private static <V> ConcurrentHashMap<String, V> readObjectMap(Context context, String filename) {
+    public int getNumScenesClassifiers() {
+        return numScenesClassifiers;
+    }
+
+    private static <V> Map<String, V> readObjectMap(Context context, String filename) {
         long startTime = SystemClock.uptimeMillis();
-        ConcurrentHashMap<String, V> map = new ConcurrentHashMap<String, V>();
+        Map<String, V> map = new LinkedHashMap<String, V>();
         try {
             ObjectInputStream is = new ObjectInputStream(context.openFileInput(filename));
             try {
@@ -105,70 +146,138 @@ public class PhotoProcessor {
         return map;
     }
 
-    private static class AppendingObjectOutputStream extends ObjectOutputStream {
+    /** Moves results saved by previous versions with Java serialization into the result store. */
+    private static <V> void importLegacyResults(Context context, String filename, ResultStore<V> store) {
+        if (!context.getFileStreamPath(filename).exists())
+            return;
+        Map<String, V> map = readObjectMap(context, filename);
+        for (Map.Entry<String, V> entry : map.entrySet())
+            store.put(entry.getKey(), entry.getValue());
+        store.flush();
+        context.deleteFile(filename);
+    }
 
-        public AppendingObjectOutputStream(OutputStream out) throws IOException {
-            super(out);
+    private void loadImageResults() {
+        long startTime = SystemClock.uptimeMillis();
+        scenes = new ResultStore<>(context.getFilesDir(), IMAGE_SCENES_FILENAME, SceneData.CODEC);
+        exifs = new ResultStore<>(context.getFilesDir(), IMAGE_EXIF_FILENAME, EXIFData.CODEC);
+        if (resetScenesModel) {
+            scenes.clear();
+            context.deleteFile(IMAGE_SCENES_FILENAME);
         }
+        importLegacyResults(context, IMAGE_SCENES_FILENAME, scenes);
+        importLegacyResults(context, IMAGE_EXIF_FILENAME, exifs);
+        Log.w(TAG,"Loaded "+scenes.size()+" scenes and "+exifs.size()+" exifs. Timecost: " + Long.toString(SystemClock.uptimeMillis() - startTime));
 
-        @Override
-        protected void writeStreamHeader() throws IOException {
-            // do not write a header, but reset:
-            // this line added after another question
-            // showed a problem with the original
-            reset();
-        }
+        Thread indexThread = new Thread(this::loadSimilarPhotosIndex, "similar-photos-loader");
+        indexThread.setPriority(Thread.MIN_PRIORITY);
+        indexThread.start();
+    }
 
+    /** Adds stored scenes of the current versions of known photos to the similar photos index, newer classification results are kept. */
+    private void loadSimilarPhotosIndex() {
+        long startTime = SystemClock.uptimeMillis();
+        for (String key : scenes.keys()) {
+            int pos = key.lastIndexOf('_');
+            int id = pos > 0 ? fileIds.findId(key.substring(0, pos)) : -1;
+            // results of previous versions of the photo are kept until the media scan removes them
+            if (id < 0 || !key.equals(getKey(key.substring(0, pos))))
+                continue;
+            SceneData scene = scenes.get(key);
+            if (scene != null)
+                similarPhotos.addIfAbsent(id, scene.scenes.scores);
+        }
+        Log.i(TAG, "Indexed " + similarPhotos.size() + " scenes. Timecost: " + (SystemClock.uptimeMillis() - startTime));
     }
 
-    private static <V> void save(Context context, String filename, ConcurrentHashMap<String, V> map, String key, V val) {
-        try {
+    private void putScene(String key, String filename, SceneData scene) {
+        scenes.put(key, scene);
+        similarPhotos.add(fileIds.getId(filename), scene.scenes.scores);
+    }
 
-            map.put(key, val);
-            ObjectOutputStream os = new AppendingObjectOutputStream(context.openFileOutput(filename, Context.MODE_APPEND));
-            os.writeObject(key);
-            os.writeObject(val);
-            os.close();
-        } catch (Exception e) {
-            Log.e(TAG, "While saving results for " + key + " exception thrown: ", e);
-        }
+    /** Photos with the most similar scene scores, most similar first. */
+    public List<String> findSimilarPhotos(String filename, int count) {
+        int id = fileIds.findId(filename);
+        if (id < 0)
+            return new ArrayList<>();
+        return fileIds.getFilenames(similarPhotos.findSimilar(id, count));
     }
 
-    private void loadImageResults() {
-        context.deleteFile("image_scenes");
-        scenes = readObjectMap(context, IMAGE_SCENES_FILENAME);
-        exifs = readObjectMap(context, IMAGE_EXIF_FILENAME);
-        if (resetScenesModel) {
-            scenes = new ConcurrentHashMap<>();
-            context.deleteFile(IMAGE_SCENES_FILENAME);
-        }
-        try {
-            if (scenes.isEmpty()) {
-                ObjectOutputStream os = new ObjectOutputStream(context.openFileOutput(IMAGE_SCENES_FILENAME, Context.MODE_PRIVATE));
-                os.writeObject("topCategories");
-                os.close();
-            }
-            //exifs.clear();
-            if (exifs.isEmpty()) {
-                ObjectOutputStream os = new ObjectOutputStream(context.openFileOutput(IMAGE_EXIF_FILENAME, Context.MODE_PRIVATE));
-                os.writeObject("exifs");
-                os.close();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "While creating empty files exception thrown: ", e);
-        }
+    /** Writes all pending results to the storage. */
+    public void flush() {
+        scenes.flush();
+        exifs.flush();
     }
 
-    private synchronized SceneData classifyScenes(Bitmap bmp, StringBuilder text) {
+    private SceneData classifyScenes(Bitmap bmp, StringBuilder text) {
         long startTime = SystemClock.uptimeMillis();
-        Bitmap scenesBitmap = Bitmap.createScaledBitmap(bmp, scenesClassifier.getImageSizeX(), scenesClassifier.getImageSizeY(), false);
-        SceneData scene = (SceneData) scenesClassifier.classifyFrame(scenesBitmap);
+        SceneData scene = classifyResizedScenes(resizeForScenes(bmp));
         long sceneTimeCost = SystemClock.uptimeMillis() - startTime;
         Log.i(TAG, "Timecost to run scene model inference: " + Long.toString(sceneTimeCost));
         text.append("Scenes:").append(sceneTimeCost).append(" ms\n");
         return scene;
     }
 
+    public Bitmap resizeForScenes(Bitmap bmp) {
+        if (bmp.getWidth() == scenesClassifier.getImageSizeX() && bmp.getHeight() == scenesClassifier.getImageSizeY())
+            return bmp;
+        return Bitmap.createScaledBitmap(bmp, scenesClassifier.getImageSizeX(), scenesClassifier.getImageSizeY(), false);
+    }
+
+    /** Classifies a bitmap of the model input size with the first free interpreter. */
+    public SceneData classifyResizedScenes(Bitmap scenesBitmap) {
+        if (numScenesClassifiers == 0)
+            return null;
+        ScenesTfLiteClassifier classifier;
+        try {
+            classifier = scenesClassifiers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            return (SceneData) classifier.classifyFrame(scenesBitmap);
+        } finally {
+            scenesClassifiers.add(classifier);
+        }
+    }
+
+    /** Classifies several bitmaps of the model input size in batches with the first free interpreter. */
+    public List<SceneData> classifyResizedScenes(List<Bitmap> scenesBitmaps) {
+        List<SceneData> res = new ArrayList<>(scenesBitmaps.size());
+        if (numScenesClassifiers == 0)
+            return res;
+        ScenesTfLiteClassifier classifier;
+        try {
+            classifier = scenesClassifiers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return res;
+        }
+        try {
+            for (ClassifierResult scene : classifier.classifyBatch(scenesBitmaps))
+                res.add((SceneData) scene);
+        } finally {
+            scenesClassifiers.add(classifier);
+        }
+        return res;
+    }
+
+    public int getMaxScenesBatchSize() {
+        return scenesClassifier != null ? scenesClassifier.getMaxBatchSize() : 1;
+    }
+
+    public boolean hasSceneResults(String filename) {
+        return scenes.containsKey(getKey(filename));
+    }
+
+    public ImageAnalysisResults saveSceneResults(String filename, SceneData scene) {
+        if (scene != null)
+            putScene(getKey(filename), filename, scene);
+        EXIFData exifData=getEXIFData(filename);
+        return new ImageAnalysisResults(filename, scene, exifData);
+    }
+
     private Bitmap cropBitmap(Bitmap bmp, RectFloat bbox_f){
         Rect bbox = new Rect((int) (bbox_f.left * bmp.getWidth()), (int) (bbox_f.top * bmp.getHeight()),
                 (int) (bbox_f.right * bmp.getWidth()), (int) (bbox_f.bottom * bmp.getHeight()));
@@ -193,7 +302,7 @@ public class PhotoProcessor {
 
     public ImageAnalysisResults getImageAnalysisResultsWOCache(String filename, Bitmap bmp, StringBuilder text) {
         if (bmp == null)
-            bmp = loadBitmap(filename);
+            bmp = loadBitmapForScenes(filename);
         SceneData scene = classifyScenes(bmp, text);
         EXIFData exifData=getEXIFData(filename);
         ImageAnalysisResults res = new ImageAnalysisResults(filename, scene, exifData);
@@ -205,17 +314,14 @@ public class PhotoProcessor {
     {
         String key = getKey(filename);
 
-        SceneData scene=null;
-        if (!scenes.containsKey(key)) {
-            if(needScene) {
-                if (bmp == null)
-                    bmp = loadBitmap(filename);
-                scene = classifyScenes(bmp, text);
-                save(context, IMAGE_SCENES_FILENAME, scenes, key, scene);
-            }
+        SceneData scene=scenes.get(key);
+        if (scene==null && needScene) {
+            if (bmp == null)
+                bmp = loadBitmapForScenes(filename);
+            scene = classifyScenes(bmp, text);
+            if (scene != null)
+                putScene(key, filename, scene);
         }
-        else
-            scene=scenes.get(key);
 
         EXIFData exifData=getEXIFData(filename);
         ImageAnalysisResults res = new ImageAnalysisResults(filename, scene,exifData);
@@ -264,41 +370,66 @@ public class PhotoProcessor {
     }
     public EXIFData getEXIFData(String filename){
         String key =getKey(filename);
-        EXIFData exifData;
-        if(!exifs.containsKey(key)){
+        EXIFData exifData=exifs.get(key);
+        if(exifData==null){
             exifData=new EXIFData(filename);
-            if (exifData.latitude!=0 && exifData.longitude!=0) {
-                exifData.description=getLocationDescription(exifData.latitude, exifData.longitude);
-            }
-            save(context, IMAGE_EXIF_FILENAME, exifs, key, exifData);
+            exifs.put(key, exifData);
         }
-        else{
-            exifData=exifs.get(key);
-            if (exifData.description==null && exifData.latitude!=0 && exifData.longitude!=0) {
-                exifData.description = getLocationDescription(exifData.latitude, exifData.longitude);
-                if(exifData.description!=null)
-                    save(context, IMAGE_EXIF_FILENAME, exifs, key,exifData);
+        if (exifData.description==null && exifData.latitude!=0 && exifData.longitude!=0) {
+            String description=reverseGeocoder.getDescription(key, exifData.latitude, exifData.longitude,
+                    resolvedDescription -> updateLocationDescription(filename, key, resolvedDescription));
+            if(description!=null) {
+                synchronized (locationLock) {
+                    exifData.description = description;
+                    exifs.put(key, exifData);
+                }
             }
         }
         return exifData;
     }
+
+    /** Called by the reverse geocoder when location of the photo is resolved in background. */
+    private void updateLocationDescription(String filename, String key, String description){
+        synchronized (locationLock) {
+            EXIFData exifData = exifs.get(key);
+            if (exifData == null || exifData.description != null)
+                return;
+            exifData.description = description;
+            exifs.put(key, exifData);
+        }
+        LocationListener listener=locationListener;
+        if(listener!=null)
+            listener.onLocationResolved(filename, description);
+    }
+
+    public interface LocationListener {
+        void onLocationResolved(String filename, String description);
+    }
+
+    public void setLocationListener(LocationListener listener){
+        locationListener=listener;
+    }
+    private static Matrix getOrientationMatrix(int orientation){
+        Matrix mat = new Matrix();
+        switch (orientation) {
+            case 6:
+                mat.postRotate(90);
+                break;
+            case 3:
+                mat.postRotate(180);
+                break;
+            case 8:
+                mat.postRotate(270);
+                break;
+        }
+        return mat;
+    }
     public Bitmap loadBitmap(String fname) {
         Bitmap bmp = null;
         try {
             bmp = BitmapFactory.decodeFile(fname);
             EXIFData exifData=getEXIFData(fname);
-            Matrix mat = new Matrix();
-            switch (exifData.orientation) {
-                case 6:
-                    mat.postRotate(90);
-                    break;
-                case 3:
-                    mat.postRotate(180);
-                    break;
-                case 8:
-                    mat.postRotate(270);
-                    break;
-            }
+            Matrix mat = getOrientationMatrix(exifData.orientation);
             bmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), mat, true);
         } catch (Exception e) {
             Log.e(TAG, "While loading image" + fname + " exception thrown: ", e);
@@ -306,6 +437,64 @@ public class PhotoProcessor {
         return bmp;
     }
 
+    /** Per-thread bitmaps reused by BitmapFactory for subsampled decoding. */
+    private final ThreadLocal<Bitmap> decodeBuffers = new ThreadLocal<>();
+
+    /**
+     * Loads the photo for inference only: decodes it with the largest power-of-two subsampling
+     * that keeps it not smaller than width x height, then rotates and scales the reduced image in one pass.
+     */
+    public Bitmap loadBitmap(String fname, int width, int height) {
+        Bitmap bmp = null;
+        try {
+            EXIFData exifData=getEXIFData(fname);
+            boolean rotated = exifData.orientation == 6 || exifData.orientation == 8;
+            int minWidth = rotated ? height : width, minHeight = rotated ? width : height;
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(fname, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0)
+                return null;
+            int sampleSize = 1;
+            while (options.outWidth / (2 * sampleSize) >= minWidth && options.outHeight / (2 * sampleSize) >= minHeight)
+                sampleSize *= 2;
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            options.inBitmap = decodeBuffers.get();
+            Bitmap decoded;
+            try {
+                decoded = BitmapFactory.decodeFile(fname, options);
+            } catch (IllegalArgumentException e) {
+                // reusable bitmap is too small
+                options.inBitmap = null;
+                decoded = BitmapFactory.decodeFile(fname, options);
+            }
+            if (decoded == null)
+                return null;
+            decodeBuffers.set(decoded);
+
+            Matrix mat = getOrientationMatrix(exifData.orientation);
+            int w = decoded.getWidth(), h = decoded.getHeight();
+            if (rotated)
+                mat.postScale(1.0f * width / h, 1.0f * height / w);
+            else
+                mat.postScale(1.0f * width / w, 1.0f * height / h);
+            // decoded bitmap is mutable, so a new bitmap is always created and the buffer stays in this thread
+            bmp = Bitmap.createBitmap(decoded, 0, 0, w, h, mat, true);
+        } catch (Exception e) {
+            Log.e(TAG, "While loading image" + fname + " exception thrown: ", e);
+        }
+        return bmp;
+    }
+
+    public Bitmap loadBitmapForScenes(String fname) {
+        return loadBitmap(fname, scenesClassifier.getImageSizeX(), scenesClassifier.getImageSizeY());
+    }
+
 
     public int getHighLevelCategory(String category) {
         int res = scenesClassifier.getHighLevelCategory(category);
@@ -318,40 +507,52 @@ public class PhotoProcessor {
         calendar.setTimeInMillis(timeInMillis);
         return " "+df.format(calendar.getTime());
     }
+    /** Registers photos known from the previous MediaStore scan, most recent first. */
     private void initPhotosTaken() {
-        final String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_TAKEN};
-        //String path= Environment.getExternalStorageDirectory().toString();//+"/DCIM/Camera";
-        final String selection = null;//MediaStore.Images.Media.BUCKET_ID +" = ?";
-        final String[] selectionArgs = null;//{String.valueOf(path.toLowerCase().hashCode())};
-        photosTaken.clear();
-        try {
-            final Cursor cursor = context.getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, selection, selectionArgs, MediaStore.Images.ImageColumns.DATE_TAKEN + " DESC");
-            if (cursor.moveToFirst()) {
-                int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                int dateColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_TAKEN);
-                do {
-                    String data = cursor.getString(dataColumn);
-                    String dateStr=cursor.getString(dateColumn);
-                    if(dateStr==null)
-                        dateStr="0";
-                    Long dateCreated = Long.parseLong(dateStr);
-                    photosTaken.put(data, dateCreated);
-
-                    String strDate = getDateFromTimeInMillis(dateCreated);
-                    if (!date2files.containsKey(strDate))
-                        date2files.put(strDate, new HashSet<>());
-                    date2files.get(strDate).add(data);
-                    //Log.i(TAG, "load image: "+data);
-                }
-                while (cursor.moveToNext());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.e(TAG, "Exception thrown: " + e);
+        mediaStoreScanner = new MediaStoreScanner(context);
+        List<Map.Entry<String, long[]>> photos = new ArrayList<>(mediaStoreScanner.getSnapshot().entrySet());
+        Collections.sort(photos, (lhs, rhs) -> Long.compare(rhs.getValue()[0], lhs.getValue()[0]));
+        List<String> filenames = new ArrayList<>(photos.size());
+        List<Long> datesTaken = new ArrayList<>(photos.size());
+        for (Map.Entry<String, long[]> photo : photos) {
+            filenames.add(photo.getKey());
+            datesTaken.add(photo.getValue()[0]);
+        }
+        addPhotos(filenames, datesTaken);
+    }
+
+    private synchronized void addPhotos(List<String> filenames, List<Long> datesTaken) {
+        long[] dates = photosTaken;
+        for (int i = 0; i < filenames.size(); ++i) {
+            long dateCreated = datesTaken.get(i);
+            int id = fileIds.getId(filenames.get(i));
+            if (id >= dates.length)
+                dates = Arrays.copyOf(dates, Math.max(id + 1, 2 * dates.length));
+            // a modified photo may have another date
+            if (id < photosTaken.length)
+                removeFromDate(id, photosTaken[id]);
+            dates[id] = dateCreated;
+            deletedPhotos.clear(id);
+
+            String strDate = getDateFromTimeInMillis(dateCreated);
+            if (!date2files.containsKey(strDate))
+                date2files.put(strDate, new PostingList());
+            date2files.get(strDate).add(id);
         }
+        photosTaken = Arrays.copyOf(dates, fileIds.size());
+        updateAvgNumPhotosPerDay();
+    }
+
+    private void removeFromDate(int id, long dateTaken) {
+        String strDate = getDateFromTimeInMillis(dateTaken);
+        PostingList files = date2files.get(strDate);
+        if (files != null && files.remove(id) && files.size() == 0)
+            date2files.remove(strDate);
+    }
 
+    private void updateAvgNumPhotosPerDay() {
         avgNumPhotosPerDay=0;
-        for(Set<String> files : date2files.values())
+        for(PostingList files : date2files.values())
             avgNumPhotosPerDay+=files.size();
 
         if(!date2files.isEmpty())
@@ -360,11 +561,105 @@ public class PhotoProcessor {
             avgNumPhotosPerDay=MIN_PHOTOS_PER_DAY;
     }
 
-    public Map<String,Long> getCameraImages() {
-        return photosTaken;
+    private synchronized void deletePhotos(List<String> filenames) {
+        long[] dates = photosTaken;
+        for (String filename : filenames) {
+            int id = fileIds.findId(filename);
+            if (id >= 0) {
+                deletedPhotos.set(id);
+                if (id < dates.length)
+                    removeFromDate(id, dates[id]);
+            }
+        }
+        updateAvgNumPhotosPerDay();
+    }
+
+    /**
+     * Removes the stored results of deleted photos or the results of previous versions of modified photos,
+     * which are not found anymore because the key contains the date modified.
+     */
+    private void removeOutdatedResults(List<String> filenames, boolean deleted) {
+        Set<String> files = new HashSet<>(filenames);
+        Set<String> outdatedScenes = new HashSet<>();
+        for (ResultStore<?> store : Arrays.asList(scenes, exifs)) {
+            List<String> outdated = new ArrayList<>();
+            for (String key : store.keys()) {
+                int pos = key.lastIndexOf('_');
+                if (pos <= 0)
+                    continue;
+                String filename = key.substring(0, pos);
+                if (files.contains(filename) && (deleted || !key.equals(getKey(filename))))
+                    outdated.add(key);
+            }
+            store.remove(outdated);
+            if (store == scenes) {
+                for (String key : outdated)
+                    outdatedScenes.add(key.substring(0, key.lastIndexOf('_')));
+            }
+        }
+        for (String filename : outdatedScenes) {
+            // the current version may be already classified
+            if (deleted || !hasSceneResults(filename))
+                similarPhotos.remove(fileIds.findId(filename));
+        }
+    }
+
+    /**
+     * Looks for photos added, modified or deleted since the previous run in a background thread.
+     * Changes are registered in this processor before they are passed to listener.
+     */
+    public void startMediaScan(final MediaStoreScanner.Listener listener) {
+        Thread scanThread = new Thread(() -> mediaStoreScanner.scan(new MediaStoreScanner.Listener() {
+            @Override
+            public void onPhotosChanged(List<String> filenames, List<Long> datesTaken) {
+                addPhotos(filenames, datesTaken);
+                removeOutdatedResults(filenames, false);
+                listener.onPhotosChanged(filenames, datesTaken);
+            }
+
+            @Override
+            public void onPhotosDeleted(List<String> filenames) {
+                deletePhotos(filenames);
+                removeOutdatedResults(filenames, true);
+                listener.onPhotosDeleted(filenames);
+            }
+
+            @Override
+            public void onScanFinished() {
+                listener.onScanFinished();
+            }
+        }), "media-store-scan");
+        scanThread.setPriority(Thread.MIN_PRIORITY);
+        scanThread.start();
+    }
+
+    /** Paths of all photos ordered by date taken, most recent first. */
+    public synchronized List<String> getCameraImages() {
+        final long[] dates = photosTaken;
+        List<Integer> ids = new ArrayList<>(dates.length);
+        for (int id = 0; id < dates.length; ++id) {
+            if (!deletedPhotos.get(id))
+                ids.add(id);
+        }
+        Collections.sort(ids, (lhs, rhs) -> Long.compare(dates[rhs], dates[lhs]));
+        List<String> res = new ArrayList<>(ids.size());
+        for (int id : ids)
+            res.add(fileIds.getFilename(id));
+        return res;
+    }
+
+    public long getDateTaken(String filename) {
+        long[] dates = photosTaken;
+        int id = fileIds.findId(filename);
+        return (id >= 0 && id < dates.length) ? dates[id] : 0;
+    }
+
+    public FileIdDictionary getFileIds() {
+        return fileIds;
     }
 
-    private void addDayEvent(List<Map<String, Map<String, Set<String>>>> eventTimePeriod2Files, String category, String timePeriod, Set<String> filenames){
+    private void addDayEvent(List<Map<String, Map<String, Set<String>>>> eventTimePeriod2Files, String category, String timePeriod, PostingList fileIdsList){
+        Set<String> filenames=new HashSet<>(fileIds.getFilenames(fileIdsList.toSortedArray()));
         int highLevelCategory=getHighLevelCategory(category);
         if(highLevelCategory>=0) {
             Map<String,Map<String,Set<String>>> histo=eventTimePeriod2Files.get(highLevelCategory);
@@ -3,6 +3,7 @@ package com.asav.android;
 
 import android.app.Fragment;
 import android.app.FragmentManager;
+import android.app.FragmentTransaction;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -51,6 +52,9 @@ public class Photos extends Fragment {
     private Spinner photosSpinner;
     private static final boolean ENABLE_SERVER=false;
     private float x1,x2;
+    private static final int MAX_SIMILAR_PHOTOS=20;
+    /** Photos are shown in the given order instead of sorting them by date. */
+    public static final String KEEP_ORDER_ARG="keepOrder";
 
     public Photos(){
 
@@ -67,19 +71,20 @@ public class Photos extends Fragment {
         recResultTextView.setMovementMethod(new ScrollingMovementMethod());
 
         photoProcessor=PhotoProcessor.getPhotoProcessor(getActivity());
-        Map<String,Long> photo2date=photoProcessor.getCameraImages();
         photosSpinner = (Spinner) view.findViewById(R.id.photos_spinner);
 
         String[] arraySpinner=getArguments().getStringArray("photosTaken");
+        boolean keepOrder=getArguments().getBoolean(KEEP_ORDER_ARG,false);
         photos=new ArrayList<>();
         for(int i=0;i<arraySpinner.length;++i) {
             ArrayList<String> filenames=getArguments().getStringArrayList(arraySpinner[i]);
-            filenames.sort(new Comparator<String>() {
-                @Override
-                public int compare(String lhs, String rhs) {
-                    return photo2date.get(rhs).compareTo(photo2date.get(lhs));
-                }
-            });
+            if(!keepOrder)
+                filenames.sort(new Comparator<String>() {
+                    @Override
+                    public int compare(String lhs, String rhs) {
+                        return Long.compare(photoProcessor.getDateTaken(rhs),photoProcessor.getDateTaken(lhs));
+                    }
+                });
             photos.add(filenames);
         }
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(getActivity(),
@@ -124,6 +129,13 @@ public class Photos extends Fragment {
                 return false;
             }
         });
+        photoView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                showSimilarPhotos();
+                return true;
+            }
+        });
         final Button prevButton=(Button)view.findViewById(R.id.prev_button);
         prevButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -164,6 +176,38 @@ public class Photos extends Fragment {
         });
     }
 
+    private String getCurrentPhoto(){
+        int pos=photosSpinner.getSelectedItemPosition();
+        if(pos<0)
+            pos=0;
+        if(currentPhotoIndexes.length<=pos || photos.size()<=pos || currentPhotoIndexes[pos]>=photos.get(pos).size())
+            return null;
+        return photos.get(pos).get(currentPhotoIndexes[pos]);
+    }
+    private void showSimilarPhotos(){
+        String filename=getCurrentPhoto();
+        if(filename==null)
+            return;
+        List<String> similarPhotos=photoProcessor.findSimilarPhotos(filename,MAX_SIMILAR_PHOTOS);
+        if(similarPhotos.isEmpty())
+            return;
+        ArrayList<String> filenames=new ArrayList<>(similarPhotos.size()+1);
+        filenames.add(filename);
+        filenames.addAll(similarPhotos);
+
+        Photos photosFragment = new Photos();
+        Bundle args = new Bundle();
+        String[] titles={"Similar"};
+        args.putStringArrayList(titles[0], filenames);
+        args.putStringArray("photosTaken", titles);
+        args.putBoolean(KEEP_ORDER_ARG, true);
+        photosFragment.setArguments(args);
+        FragmentTransaction fragmentTransaction = getFragmentManager().beginTransaction();
+        fragmentTransaction.replace(R.id.fragment_switch, photosFragment);
+        fragmentTransaction.addToBackStack(null);
+        fragmentTransaction.commit();
+    }
+
     private void prevPhoto(){
         int pos=photosSpinner.getSelectedItemPosition();
         if(pos<0)
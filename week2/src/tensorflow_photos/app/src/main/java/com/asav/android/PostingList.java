@@ -0,0 +1,90 @@
+package com.asav.android;
+
+import java.util.Arrays;
+
+/**
+ * Set of file ids, see {@link FileIdDictionary}.
+ * Written by one thread at a time, readers get a consistent sorted snapshot without locking;
+ * a reader concurrent with {@link #remove(int)} may miss the last added id.
+ * Ids already in the list are skipped by the writer, so size() is the number of distinct files.
+ * Ids are interned in increasing order, so a new id is usually greater than all ids in the list and it is appended
+ * without the search for the duplicate.
+ */
+public class PostingList {
+    private volatile int[] ids;
+    private volatile int size = 0;
+    /** Upper bound of ids in the list, used only by the writer. */
+    private int maxId = -1;
+
+    public PostingList() {
+        this(4);
+    }
+    public PostingList(int capacity) {
+        ids = new int[Math.max(1, capacity)];
+    }
+
+    /** Returns false if the id is already in the list. */
+    public boolean add(int id) {
+        if (id <= maxId && indexOf(id) >= 0)
+            return false;
+        maxId = Math.max(maxId, id);
+        int[] current = ids;
+        if (size == current.length)
+            ids = current = Arrays.copyOf(current, 2 * current.length);
+        current[size] = id;
+        size = size + 1;
+        return true;
+    }
+
+    /** Returns false if the id is not in the list. */
+    public boolean remove(int id) {
+        int pos = (id <= maxId) ? indexOf(id) : -1;
+        if (pos < 0)
+            return false;
+        int[] current = ids;
+        int count = size;
+        // the size is decreased first, so readers never see the moved id twice
+        size = count - 1;
+        current[pos] = current[count - 1];
+        return true;
+    }
+
+    private int indexOf(int id) {
+        int[] current = ids;
+        for (int pos = size - 1; pos >= 0; --pos) {
+            if (current[pos] == id)
+                return pos;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Sorted ids added before the call. */
+    public int[] toSortedArray() {
+        int snapshotSize = size;
+        int[] res = Arrays.copyOf(ids, snapshotSize);
+        Arrays.sort(res);
+        return res;
+    }
+
+    /** Intersection of two sorted arrays. */
+    public static int[] intersect(int[] lhs, int[] rhs) {
+        int[] res = new int[Math.min(lhs.length, rhs.length)];
+        int i = 0, j = 0, count = 0;
+        while (i < lhs.length && j < rhs.length) {
+            if (lhs[i] < rhs[j])
+                ++i;
+            else if (lhs[i] > rhs[j])
+                ++j;
+            else {
+                res[count++] = lhs[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+}
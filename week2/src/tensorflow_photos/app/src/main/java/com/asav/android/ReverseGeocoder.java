@@ -0,0 +1,156 @@
+package com.asav.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves location descriptions for photo coordinates in a background thread.
+ * Coordinates are quantized to grid cells, so all photos taken near each other share one backend lookup:
+ * results are cached per cell, failed lookups are cached for NEGATIVE_CACHE_TTL_MS, and requests for a cell
+ * that is already being resolved are coalesced.
+ */
+public class ReverseGeocoder {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "ReverseGeocoder";
+
+    public interface Backend {
+        /** Returns null if the location is unknown. */
+        String getDescription(double latitude, double longitude);
+    }
+
+    public interface Callback {
+        void onDescription(String description);
+    }
+
+    /** About 1 km along the meridian. */
+    private static final double CELL_SIZE_DEGREES = 0.01;
+    private static final long NEGATIVE_CACHE_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_BATCH_SIZE = 16;
+
+    private static class CacheEntry {
+        final String description;
+        final long expirationTime;
+
+        CacheEntry(String description, long expirationTime) {
+            this.description = description;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private static class Request {
+        final double latitude, longitude;
+        final Map<String, Callback> callbacks = new LinkedHashMap<>();
+
+        Request(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    private final Backend backend;
+    private final Object lock = new Object();
+    private final HashMap<Long, CacheEntry> cache = new HashMap<>();
+    private final LinkedHashMap<Long, Request> pending = new LinkedHashMap<>();
+    private final Thread worker;
+
+    public ReverseGeocoder(Backend backend) {
+        this.backend = backend;
+        worker = new Thread(this::processRequests, "reverse-geocoder");
+        worker.setPriority(Thread.MIN_PRIORITY);
+        // the geocoder of the PhotoProcessor singleton lives as long as the process
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private static long getCell(double latitude, double longitude) {
+        long row = (long) Math.floor((latitude + 90) / CELL_SIZE_DEGREES);
+        long col = (long) Math.floor((longitude + 180) / CELL_SIZE_DEGREES);
+        return (row << 32) | col;
+    }
+
+    /**
+     * Returns the cached description of the location or null.
+     * In the latter case the description is resolved in background and passed to callback,
+     * unless the lookup for this location failed recently. Only one callback per key is kept.
+     */
+    public String getDescription(String key, double latitude, double longitude, Callback callback) {
+        long cell = getCell(latitude, longitude);
+        synchronized (lock) {
+            CacheEntry entry = cache.get(cell);
+            if (entry != null) {
+                if (entry.description != null || SystemClock.uptimeMillis() < entry.expirationTime)
+                    return entry.description;
+                cache.remove(cell);
+            }
+            Request request = pending.get(cell);
+            if (request == null) {
+                request = new Request(latitude, longitude);
+                pending.put(cell, request);
+                lock.notify();
+            }
+            if (callback != null && !request.callbacks.containsKey(key))
+                request.callbacks.put(key, callback);
+        }
+        return null;
+    }
+
+    private void processRequests() {
+        List<Long> cells = new ArrayList<>(MAX_BATCH_SIZE);
+        List<Request> requests = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (pending.isEmpty())
+                        lock.wait();
+                    // requests stay in pending while resolved, so new ones for the same cells are coalesced
+                    for (Map.Entry<Long, Request> entry : pending.entrySet()) {
+                        cells.add(entry.getKey());
+                        requests.add(entry.getValue());
+                        if (cells.size() >= MAX_BATCH_SIZE)
+                            break;
+                    }
+                }
+                String[] descriptions = new String[cells.size()];
+                for (int i = 0; i < cells.size(); ++i) {
+                    try {
+                        descriptions[i] = backend.getDescription(requests.get(i).latitude, requests.get(i).longitude);
+                    } catch (Exception e) {
+                        Log.e(TAG, "While resolving location exception thrown: ", e);
+                    }
+                }
+                List<Callback> callbacks = new ArrayList<>();
+                List<String> callbackDescriptions = new ArrayList<>();
+                synchronized (lock) {
+                    long negativeExpirationTime = SystemClock.uptimeMillis() + NEGATIVE_CACHE_TTL_MS;
+                    for (int i = 0; i < cells.size(); ++i) {
+                        cache.put(cells.get(i), new CacheEntry(descriptions[i], descriptions[i] != null ? Long.MAX_VALUE : negativeExpirationTime));
+                        Request request = pending.remove(cells.get(i));
+                        if (descriptions[i] != null) {
+                            for (Callback callback : request.callbacks.values()) {
+                                callbacks.add(callback);
+                                callbackDescriptions.add(descriptions[i]);
+                            }
+                        }
+                    }
+                }
+                for (int i = 0; i < callbacks.size(); ++i) {
+                    try {
+                        callbacks.get(i).onDescription(callbackDescriptions.get(i));
+                    } catch (Exception e) {
+                        Log.e(TAG, "While processing location description exception thrown: ", e);
+                    }
+                }
+                cells.clear();
+                requests.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Reverse geocoding stopped");
+        }
+    }
+}
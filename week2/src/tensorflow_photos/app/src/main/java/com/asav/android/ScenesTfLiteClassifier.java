@@ -49,8 +49,16 @@ public class ScenesTfLiteClassifier extends TfLiteClassifier{
     public TreeMap<String,Integer> eventLabels2Index =new TreeMap<>();
     private ArrayList<String> eventLabels = new ArrayList<String>();
 
+    // Output index -> slot of its label in the sorted label list (-1 for filtered outputs), and slot -> label.
+    // Scores of outputs with the same label are summed into one slot without any maps or boxing.
+    private int[] sceneIndex2Slot, eventIndex2Slot;
+    private String[] sceneSlotLabels, eventSlotLabels;
+
     public ScenesTfLiteClassifier(final Context context) throws IOException {
-        super(context,MODEL_FILE);
+        this(context,4);
+    }
+    public ScenesTfLiteClassifier(final Context context, int numThreads) throws IOException {
+        super(context,MODEL_FILE,numThreads);
 
         BufferedReader br = null;
         try {
@@ -133,31 +141,50 @@ public class ScenesTfLiteClassifier extends TfLiteClassifier{
         } catch (IOException e) {
           throw new RuntimeException("Problem reading scene label file!" , e);
         }
+
+        sceneIndex2Slot=getIndex2Slot(sceneLabels,sceneLabels2Index,true);
+        sceneSlotLabels=getSlotLabels(sceneLabels2Index);
+        if(usePrunnedMobileNet) {
+            eventIndex2Slot = new int[0];
+            eventSlotLabels = new String[0];
+        }
+        else{
+            eventIndex2Slot = getIndex2Slot(eventLabels, eventLabels2Index, false);
+            eventSlotLabels = getSlotLabels(eventLabels2Index);
+        }
     }
 
-    private TreeMap<String,Float> getCategory2Score(float[] predictions, ArrayList<String> labels, boolean filter){
-        TreeMap<String,Float> category2Score=new TreeMap<>();
-        for (int i = 0; i < predictions.length; ++i) {
+    private int[] getIndex2Slot(ArrayList<String> labels, TreeMap<String,Integer> labels2Index, boolean filter){
+        int[] index2Slot=new int[labels.size()];
+        for (int i = 0; i < index2Slot.length; ++i) {
             if(filter && filteredIndices.contains(i))
-                continue;
-            String scene= labels.get(i);
-            float score=predictions[i];
-            if(category2Score.containsKey(scene)){
-                score+=category2Score.get(scene);
-            }
-            category2Score.put(scene,score);
+                index2Slot[i]=-1;
+            else
+                index2Slot[i]=labels2Index.get(labels.get(i));
         }
-        return category2Score;
+        return index2Slot;
+    }
+    private static String[] getSlotLabels(TreeMap<String,Integer> labels2Index){
+        String[] slotLabels=new String[labels2Index.size()];
+        for(Map.Entry<String,Integer> entry : labels2Index.entrySet())
+            slotLabels[entry.getValue()]=entry.getKey();
+        return slotLabels;
+    }
+    private static float[] getSlotScores(float[] predictions, int[] index2Slot, int numSlots){
+        float[] scores=new float[numSlots];
+        int count=Math.min(predictions.length,index2Slot.length);
+        for (int i = 0; i < count; ++i) {
+            int slot=index2Slot[i];
+            if(slot>=0)
+                scores[slot]+=predictions[i];
+        }
+        return scores;
     }
     protected ClassifierResult getResults(float[][][] outputs) {
-        TreeMap<String,Float> scene2Score=getCategory2Score(outputs[0][0],sceneLabels,true);
-        TreeMap<String,Float> event2Score=null;
-        if(usePrunnedMobileNet)
-            event2Score=new TreeMap<>();
-        else
-            event2Score=getCategory2Score(outputs[1][0],eventLabels,false);
-        SceneData res=new SceneData(sceneLabels2Index,scene2Score,eventLabels2Index,event2Score);
-        return res;
+        float[] sceneScores=getSlotScores(outputs[0][0],sceneIndex2Slot,sceneSlotLabels.length);
+        float[] eventScores=usePrunnedMobileNet?new float[0]:
+                getSlotScores(outputs[1][0],eventIndex2Slot,eventSlotLabels.length);
+        return new SceneData(sceneSlotLabels,sceneScores,eventSlotLabels,eventScores);
     }
     public int getHighLevelCategory(String category){
         int res=-1;
@@ -0,0 +1,341 @@
+package com.asav.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Nearest neighbour search over scene score vectors with an inverted file (IVF) index.
+ * Vectors are stored as square roots of the scores, so the L2 distance between them is the Hellinger distance,
+ * which is used to assign photos to k-means clusters. Only the photos of NUM_PROBES clusters nearest to the query
+ * are ranked by the chi-square distance of {@link com.asav.android.db.ImageClassificationData#distance}.
+ * Until MIN_TRAINING_SIZE photos are added all of them are ranked. Clusters are retrained in a background thread
+ * every time the number of photos doubles, new photos are assigned to the nearest existing cluster.
+ * Rows of replaced or removed vectors are dropped when they make up half of all rows.
+ */
+public class SimilarPhotosIndex {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "SimilarPhotosIndex";
+
+    private static final int MIN_TRAINING_SIZE = 2048;
+    private static final int MIN_LIST_SIZE = 64;
+    private static final int MAX_NUM_LISTS = 64;
+    private static final int NUM_PROBES = 8;
+    private static final int MAX_TRAINING_SAMPLES_PER_LIST = 64;
+    private static final int NUM_KMEANS_ITERATIONS = 8;
+    private static final int MIN_COMPACTION_SIZE = 256;
+
+    private int dimension = 0;
+    /** Row-major square roots of scores, one row per added vector. */
+    private float[] vectors = new float[0];
+    /** File id of each row, -1 if the row was replaced by a newer vector of the same file. */
+    private int[] rowFileIds = new int[0];
+    private int numRows = 0, numDeadRows = 0;
+    private int[] fileId2Row = new int[0];
+
+    private float[] centroids = null;
+    private int numLists = 0;
+    private int[][] lists = null;
+    private int[] listSizes = null;
+    private int trainedSize = 0;
+    private boolean training = false;
+
+    public synchronized int size() {
+        return numRows - numDeadRows;
+    }
+
+    public synchronized boolean contains(int fileId) {
+        return fileId < fileId2Row.length && fileId2Row[fileId] >= 0;
+    }
+
+    /** Adds the score vector of the file, replacing the previous vector of this file. */
+    public void add(int fileId, float[] scores) {
+        boolean startTraining;
+        synchronized (this) {
+            if (dimension == 0)
+                dimension = scores.length;
+            if (scores.length != dimension || fileId < 0)
+                return;
+            if (fileId >= fileId2Row.length) {
+                int oldLength = fileId2Row.length;
+                fileId2Row = Arrays.copyOf(fileId2Row, Math.max(fileId + 1, 2 * oldLength));
+                Arrays.fill(fileId2Row, oldLength, fileId2Row.length, -1);
+            }
+            if (fileId2Row[fileId] >= 0) {
+                rowFileIds[fileId2Row[fileId]] = -1;
+                ++numDeadRows;
+                compactIfNeeded();
+            }
+
+            if (numRows == rowFileIds.length) {
+                int capacity = Math.max(256, 2 * numRows);
+                rowFileIds = Arrays.copyOf(rowFileIds, capacity);
+                vectors = Arrays.copyOf(vectors, capacity * dimension);
+            }
+            int row = numRows++;
+            int offset = row * dimension;
+            for (int i = 0; i < dimension; ++i)
+                vectors[offset + i] = (float) Math.sqrt(Math.max(scores[i], 0));
+            rowFileIds[row] = fileId;
+            fileId2Row[fileId] = row;
+            if (centroids != null)
+                addToList(nearestList(vectors, offset, centroids, numLists, dimension), row);
+
+            startTraining = !training && numRows >= MIN_TRAINING_SIZE && numRows >= 2 * trainedSize;
+            if (startTraining)
+                training = true;
+        }
+        if (startTraining) {
+            Thread thread = new Thread(this::train, "similar-photos-training");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /** Adds the vector only if the file was not added before, e.g., by a newer classification. */
+    public synchronized void addIfAbsent(int fileId, float[] scores) {
+        if (!contains(fileId))
+            add(fileId, scores);
+    }
+
+    /** Removes the vector of the file, e.g., if the photo was deleted. */
+    public synchronized void remove(int fileId) {
+        if (!contains(fileId))
+            return;
+        rowFileIds[fileId2Row[fileId]] = -1;
+        fileId2Row[fileId] = -1;
+        ++numDeadRows;
+        compactIfNeeded();
+    }
+
+    /** Moves live rows to the beginning and remaps rows in the lists, skipped while clusters are trained on a row snapshot. */
+    private void compactIfNeeded() {
+        if (training || numRows < MIN_COMPACTION_SIZE || 2 * numDeadRows < numRows)
+            return;
+        int[] newRows = new int[numRows];
+        int count = 0;
+        for (int row = 0; row < numRows; ++row) {
+            int fileId = rowFileIds[row];
+            if (fileId < 0) {
+                newRows[row] = -1;
+                continue;
+            }
+            if (count != row)
+                System.arraycopy(vectors, row * dimension, vectors, count * dimension, dimension);
+            rowFileIds[count] = fileId;
+            fileId2Row[fileId] = count;
+            newRows[row] = count++;
+        }
+        if (centroids != null) {
+            for (int list = 0; list < numLists; ++list) {
+                int[] rows = lists[list];
+                int size = 0;
+                for (int i = 0; i < listSizes[list]; ++i) {
+                    if (newRows[rows[i]] >= 0)
+                        rows[size++] = newRows[rows[i]];
+                }
+                listSizes[list] = size;
+            }
+            trainedSize = Math.min(trainedSize, count);
+        }
+        numRows = count;
+        numDeadRows = 0;
+    }
+
+    /** Returns ids of up to k files most similar to the file, the file itself is excluded. */
+    public synchronized int[] findSimilar(int fileId, int k) {
+        if (!contains(fileId) || k <= 0)
+            return new int[0];
+        int queryOffset = fileId2Row[fileId] * dimension;
+        int[] heapRows = new int[k];
+        float[] heapDistances = new float[k];
+        int heapSize = 0;
+        if (centroids == null) {
+            for (int row = 0; row < numRows; ++row)
+                heapSize = rankRow(row, fileId, queryOffset, heapRows, heapDistances, heapSize);
+        } else {
+            for (int list : nearestLists(queryOffset, Math.min(NUM_PROBES, numLists))) {
+                int[] rows = lists[list];
+                for (int i = 0; i < listSizes[list]; ++i)
+                    heapSize = rankRow(rows[i], fileId, queryOffset, heapRows, heapDistances, heapSize);
+            }
+        }
+        // pop the farthest rows to the end to get the ascending order of distances
+        for (int size = heapSize - 1; size > 0; --size) {
+            swap(heapRows, heapDistances, 0, size);
+            siftDown(heapRows, heapDistances, size, 0);
+        }
+        int[] res = new int[heapSize];
+        for (int i = 0; i < heapSize; ++i)
+            res[i] = rowFileIds[heapRows[i]];
+        return res;
+    }
+
+    /** Keeps the k nearest rows in a max-heap of distances. */
+    private int rankRow(int row, int queryFileId, int queryOffset, int[] heapRows, float[] heapDistances, int heapSize) {
+        int fileId = rowFileIds[row];
+        if (fileId < 0 || fileId == queryFileId)
+            return heapSize;
+        float distance = chiSquareDistance(queryOffset, row * dimension);
+        if (heapSize < heapRows.length) {
+            heapRows[heapSize] = row;
+            heapDistances[heapSize] = distance;
+            int pos = heapSize++;
+            while (pos > 0 && heapDistances[(pos - 1) / 2] < heapDistances[pos]) {
+                swap(heapRows, heapDistances, pos, (pos - 1) / 2);
+                pos = (pos - 1) / 2;
+            }
+        } else if (distance < heapDistances[0]) {
+            heapRows[0] = row;
+            heapDistances[0] = distance;
+            siftDown(heapRows, heapDistances, heapSize, 0);
+        }
+        return heapSize;
+    }
+
+    private static void siftDown(int[] heapRows, float[] heapDistances, int size, int pos) {
+        while (true) {
+            int largest = pos, left = 2 * pos + 1, right = left + 1;
+            if (left < size && heapDistances[left] > heapDistances[largest])
+                largest = left;
+            if (right < size && heapDistances[right] > heapDistances[largest])
+                largest = right;
+            if (largest == pos)
+                break;
+            swap(heapRows, heapDistances, pos, largest);
+            pos = largest;
+        }
+    }
+
+    private static void swap(int[] heapRows, float[] heapDistances, int i, int j) {
+        int row = heapRows[i];
+        heapRows[i] = heapRows[j];
+        heapRows[j] = row;
+        float distance = heapDistances[i];
+        heapDistances[i] = heapDistances[j];
+        heapDistances[j] = distance;
+    }
+
+    /** Same as ImageClassificationData.distance up to the normalization, stored values are square roots of scores. */
+    private float chiSquareDistance(int offset1, int offset2) {
+        float d = 0;
+        for (int i = 0; i < dimension; ++i) {
+            float score1 = vectors[offset1 + i] * vectors[offset1 + i];
+            float score2 = vectors[offset2 + i] * vectors[offset2 + i];
+            float sum = score1 + score2;
+            if (sum > 0.0001f)
+                d += (score1 - score2) * (score1 - score2) / sum;
+        }
+        return d;
+    }
+
+    private static float l2Distance(float[] vectors, int offset, float[] centroids, int centroidOffset, int dimension) {
+        float d = 0;
+        for (int i = 0; i < dimension; ++i) {
+            float diff = vectors[offset + i] - centroids[centroidOffset + i];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    private static int nearestList(float[] vectors, int offset, float[] centroids, int numLists, int dimension) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int list = 0; list < numLists; ++list) {
+            float distance = l2Distance(vectors, offset, centroids, list * dimension, dimension);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = list;
+            }
+        }
+        return best;
+    }
+
+    private int[] nearestLists(int queryOffset, int count) {
+        float[] distances = new float[numLists];
+        for (int list = 0; list < numLists; ++list)
+            distances[list] = l2Distance(vectors, queryOffset, centroids, list * dimension, dimension);
+        int[] res = new int[count];
+        boolean[] used = new boolean[numLists];
+        for (int i = 0; i < count; ++i) {
+            int best = -1;
+            for (int list = 0; list < numLists; ++list) {
+                if (!used[list] && (best < 0 || distances[list] < distances[best]))
+                    best = list;
+            }
+            used[best] = true;
+            res[i] = best;
+        }
+        return res;
+    }
+
+    private void addToList(int list, int row) {
+        if (listSizes[list] == lists[list].length)
+            lists[list] = Arrays.copyOf(lists[list], Math.max(16, 2 * lists[list].length));
+        lists[list][listSizes[list]++] = row;
+    }
+
+    /** Runs k-means on a sample of rows and assigns all rows outside of the lock, rows are not compacted while training. */
+    private void train() {
+        long startTime = SystemClock.uptimeMillis();
+        float[] data;
+        int size, dim;
+        synchronized (this) {
+            data = vectors;
+            size = numRows;
+            dim = dimension;
+        }
+        int k = Math.max(1, Math.min(MAX_NUM_LISTS, size / MIN_LIST_SIZE));
+        int numSamples = Math.min(size, k * MAX_TRAINING_SAMPLES_PER_LIST);
+        int[] samples = new int[numSamples];
+        for (int i = 0; i < numSamples; ++i)
+            samples[i] = (int) ((long) i * size / numSamples);
+
+        float[] means = new float[k * dim];
+        for (int list = 0; list < k; ++list)
+            System.arraycopy(data, samples[list * numSamples / k] * dim, means, list * dim, dim);
+        float[] sums = new float[k * dim];
+        int[] counts = new int[k];
+        for (int iter = 0; iter < NUM_KMEANS_ITERATIONS; ++iter) {
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int sample : samples) {
+                int list = nearestList(data, sample * dim, means, k, dim);
+                ++counts[list];
+                for (int i = 0; i < dim; ++i)
+                    sums[list * dim + i] += data[sample * dim + i];
+            }
+            for (int list = 0; list < k; ++list) {
+                if (counts[list] == 0)
+                    continue;
+                for (int i = 0; i < dim; ++i)
+                    means[list * dim + i] = sums[list * dim + i] / counts[list];
+            }
+        }
+
+        int[] assignments = new int[size];
+        for (int row = 0; row < size; ++row)
+            assignments[row] = nearestList(data, row * dim, means, k, dim);
+
+        synchronized (this) {
+            centroids = means;
+            numLists = k;
+            lists = new int[k][];
+            listSizes = new int[k];
+            for (int list = 0; list < k; ++list)
+                lists[list] = new int[16];
+            for (int row = 0; row < size; ++row) {
+                if (rowFileIds[row] >= 0)
+                    addToList(assignments[row], row);
+            }
+            for (int row = size; row < numRows; ++row) {
+                if (rowFileIds[row] >= 0)
+                    addToList(nearestList(vectors, row * dimension, centroids, numLists, dimension), row);
+            }
+            trainedSize = numRows;
+            training = false;
+        }
+        Log.i(TAG, "Trained " + k + " clusters on " + size + " photos. Timecost: " + (SystemClock.uptimeMillis() - startTime));
+    }
+}
@@ -0,0 +1,81 @@
+package com.asav.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Offline reverse geocoding with a table of known places.
+ * Each line of the table is "latitude&lt;TAB&gt;longitude&lt;TAB&gt;description", e.g., "55.75	37.62	Moscow, Russia".
+ * Other lines, e.g., a header, are skipped.
+ * Places are bucketed into a 1 degree grid, and the nearest place within MAX_DISTANCE_KM is returned.
+ */
+public class TableGeocoderBackend implements ReverseGeocoder.Backend {
+    private static final double MAX_DISTANCE_KM = 30;
+    private static final double KM_PER_DEGREE = 111.2;
+
+    private final HashMap<Long, List<Integer>> grid = new HashMap<>();
+    private final ArrayList<String> descriptions = new ArrayList<>();
+    private final ArrayList<double[]> coordinates = new ArrayList<>();
+
+    public TableGeocoderBackend(InputStream table) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(table, "UTF-8"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields.length < 3)
+                continue;
+            double latitude, longitude;
+            try {
+                latitude = Double.parseDouble(fields[0]);
+                longitude = Double.parseDouble(fields[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            long cell = getCell((int) Math.floor(latitude), (int) Math.floor(longitude));
+            List<Integer> places = grid.get(cell);
+            if (places == null) {
+                places = new ArrayList<>();
+                grid.put(cell, places);
+            }
+            places.add(descriptions.size());
+            descriptions.add(fields[2].trim());
+            coordinates.add(new double[]{latitude, longitude});
+        }
+        br.close();
+    }
+
+    private static long getCell(int latitude, int longitude) {
+        return ((long) latitude << 32) | (longitude & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public String getDescription(double latitude, double longitude) {
+        int row = (int) Math.floor(latitude), col = (int) Math.floor(longitude);
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        double bestDistance = MAX_DISTANCE_KM * MAX_DISTANCE_KM;
+        String best = null;
+        for (int dr = -1; dr <= 1; ++dr) {
+            for (int dc = -1; dc <= 1; ++dc) {
+                List<Integer> places = grid.get(getCell(row + dr, col + dc));
+                if (places == null)
+                    continue;
+                for (int place : places) {
+                    double[] coords = coordinates.get(place);
+                    double dy = (coords[0] - latitude) * KM_PER_DEGREE;
+                    double dx = (coords[1] - longitude) * KM_PER_DEGREE * cosLatitude;
+                    double distance = dx * dx + dy * dy;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = descriptions.get(place);
+                    }
+                }
+            }
+        }
+        return best;
+    }
+}
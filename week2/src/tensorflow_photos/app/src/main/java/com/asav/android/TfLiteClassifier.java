@@ -21,7 +21,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -43,13 +45,23 @@ public abstract class TfLiteClassifier {
     private int[] intValues = null;
     protected ByteBuffer imgData = null;
     /** A ByteBuffer to hold image data, to be feed into Tensorflow Lite as inputs. */
-    private int imageSizeX=224,imageSizeY=224;
+    private int imageSizeX=224,imageSizeY=224,numChannels=3;
     private float[][][] outputs;
     Map<Integer, Object> outputMap = new HashMap<>();
 
+    /* Batched inference: the interpreter input is resized to [batchSize,H,W,C] */
+    public static final int DEFAULT_MAX_BATCH_SIZE=8;
+    private int maxBatchSize=DEFAULT_MAX_BATCH_SIZE;
+    private int batchSize=1;
+    private ByteBuffer batchImgData=null;
+    private ByteBuffer[] batchOutputs=null;
+
     public TfLiteClassifier(final Context context, String model_path) throws IOException {
+        this(context,model_path,4);
+    }
+    public TfLiteClassifier(final Context context, String model_path, int numThreads) throws IOException {
         //GpuDelegate delegate = new GpuDelegate();
-        Interpreter.Options options = (new Interpreter.Options()).setNumThreads(4);//.addDelegate(delegate);
+        Interpreter.Options options = (new Interpreter.Options()).setNumThreads(numThreads);//.addDelegate(delegate);
         if (false) {
             org.tensorflow.lite.gpu.GpuDelegate.Options opt=new org.tensorflow.lite.gpu.GpuDelegate.Options();
             opt.setInferencePreference(org.tensorflow.lite.gpu.GpuDelegate.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
@@ -63,6 +75,7 @@ public abstract class TfLiteClassifier {
         int[] inputShape=tflite.getInputTensor(0).shape();
         imageSizeX=inputShape[1];
         imageSizeY=inputShape[2];
+        numChannels=inputShape[3];
         if(useTensorImage) {
             inputImageBuffer = new TensorImage(tflite.getInputTensor(0).dataType());
             // Creates processor for the TensorImage.
@@ -90,6 +103,116 @@ public abstract class TfLiteClassifier {
             outputMap.put(i, ith_output);
         }
     }
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize=Math.max(1,maxBatchSize);
+        batchImgData=null;
+        batchOutputs=null;
+    }
+
+    private void resizeBatch(int size){
+        if(size==batchSize)
+            return;
+        tflite.resizeInput(0,new int[]{size,imageSizeX,imageSizeY,numChannels});
+        tflite.allocateTensors();
+        batchSize=size;
+    }
+
+    /** Returns a view of the first size bytes of buffer, input and output buffers must match tensor size exactly. */
+    private static ByteBuffer slice(ByteBuffer buffer, int size){
+        ByteBuffer res=buffer.duplicate();
+        res.clear();
+        res.limit(size);
+        return res.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /** Writes preprocessed bitmap into target at its current position. */
+    private void putImage(Bitmap bitmap, ByteBuffer target){
+        if(useTensorImage){
+            inputImageBuffer = loadImage(bitmap);
+            ByteBuffer buffer=inputImageBuffer.getBuffer();
+            buffer.rewind();
+            target.put(buffer);
+        }
+        else{
+            bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+            ByteBuffer singleImgData=imgData;
+            imgData=target;
+            for (int pixel = 0; pixel < imageSizeX*imageSizeY; ++pixel) {
+                addPixelValue(intValues[pixel]);
+            }
+            imgData=singleImgData;
+        }
+    }
+
+    /**
+     * Classifies several images with one interpreter call per maxBatchSize images.
+     * Falls back to classifyFrame for each image if the model does not support a dynamic batch dimension.
+     */
+    public List<ClassifierResult> classifyBatch(List<Bitmap> bitmaps) {
+        List<ClassifierResult> results=new ArrayList<>(bitmaps.size());
+        for(int start=0;start<bitmaps.size();start+=maxBatchSize){
+            List<Bitmap> batch=bitmaps.subList(start,Math.min(bitmaps.size(),start+maxBatchSize));
+            if(batch.size()==1 || maxBatchSize==1) {
+                for(Bitmap bitmap : batch)
+                    results.add(classifyFrame(bitmap));
+                continue;
+            }
+            try {
+                resizeBatch(batch.size());
+            } catch (Exception e) {
+                Log.e(TAG, "Model does not support batch inference, disable it", e);
+                setMaxBatchSize(1);
+                batchSize=0; //restore the original shape even if resize failed halfway
+                resizeBatch(1);
+                for(Bitmap bitmap : batch)
+                    results.add(classifyFrame(bitmap));
+                continue;
+            }
+            results.addAll(runBatch(batch));
+        }
+        return results;
+    }
+
+    private List<ClassifierResult> runBatch(List<Bitmap> batch){
+        int imageBytes=imageSizeX*imageSizeY*numChannels*getNumBytesPerChannel();
+        if(batchImgData==null) {
+            batchImgData = ByteBuffer.allocateDirect(maxBatchSize * imageBytes);
+            batchImgData.order(ByteOrder.nativeOrder());
+            batchOutputs=new ByteBuffer[outputs.length];
+            for(int i = 0; i< outputs.length; ++i) {
+                batchOutputs[i] = ByteBuffer.allocateDirect(maxBatchSize * outputs[i][0].length * getNumBytesPerChannel());
+                batchOutputs[i].order(ByteOrder.nativeOrder());
+            }
+        }
+        ByteBuffer input=slice(batchImgData,batch.size()*imageBytes);
+        for(Bitmap bitmap : batch)
+            putImage(bitmap,input);
+        input.rewind();
+        Map<Integer, Object> batchOutputMap = new HashMap<>();
+        for(int i = 0; i< outputs.length; ++i)
+            batchOutputMap.put(i, slice(batchOutputs[i],batch.size()*outputs[i][0].length*getNumBytesPerChannel()));
+
+        long startTime = SystemClock.uptimeMillis();
+        tflite.runForMultipleInputsOutputs(new Object[]{input}, batchOutputMap);
+        long endTime = SystemClock.uptimeMillis();
+        Log.i(TAG, "tf lite timecost to run model inference for batch of "+batch.size()+": " + Long.toString(endTime - startTime));
+
+        List<ClassifierResult> results=new ArrayList<>(batch.size());
+        for(int k=0;k<batch.size();++k) {
+            for (int i = 0; i < outputs.length; ++i) {
+                ByteBuffer ith_output = (ByteBuffer) batchOutputMap.get(i);
+                int len = outputs[i][0].length;
+                ith_output.position(k * len * getNumBytesPerChannel());
+                ith_output.asFloatBuffer().get(outputs[i][0], 0, len);
+            }
+            results.add(getResults(outputs));
+        }
+        return results;
+    }
+
     /** Loads input image, and applies preprocessing. */
     private TensorImage loadImage(final Bitmap bitmap) {
         // Loads bitmap into a TensorImage.
@@ -102,6 +225,7 @@ public abstract class TfLiteClassifier {
 
     /** Classifies a frame from the preview stream. */
     public ClassifierResult classifyFrame(Bitmap bitmap) {
+        resizeBatch(1);
         Object[] inputs={null};
         if(useTensorImage){
             inputImageBuffer = loadImage(bitmap);
@@ -90,10 +90,11 @@ public class VisualPreferences extends Fragment implements OnChartValueSelectedL
         });
 
         chart.setOnChartValueSelectedListener(this);
+        chartVersion=-1;
         updateChart();
     }
-    protected List<Map<String,Map<String, Set<String>>>> getCategoriesHistograms(){
-        return mainActivity.getCategoriesHistograms();
+    protected CategoryIndex getCategoryIndex(){
+        return mainActivity.getCategoryIndex();
     }
 
     @Override
@@ -107,26 +108,12 @@ public class VisualPreferences extends Fragment implements OnChartValueSelectedL
                 return;
             FragmentManager fm = getFragmentManager();
 
-            List<Map<String,Map<String,Set<String>>>> categoriesHistograms=getCategoriesHistograms();
-            Map<String,Set<String>> fileLists=null;
-            if(categoryPosition<categoriesHistograms.size()){
-                Map<String,Map<String,Set<String>>> cat_files=categoriesHistograms.get(categoryPosition);
-                if(cat_files.containsKey(category)){
-                    fileLists=cat_files.get(category);
-                }
-            }
-            if(fileLists!=null && !fileLists.isEmpty()) {
+            List<String> files=getCategoryIndex().getFiles(categoryPosition,category);
+            if(!files.isEmpty()) {
                     Photos photosFragment = new Photos();
                     Bundle args = new Bundle();
-                    String[] titles=new String[fileLists.size()];
-                    int i=0;
-                    for(Map.Entry<String,Set<String>> category2fileList:fileLists.entrySet()){
-                        titles[i]=category2fileList.getKey();
-                        if(Character.isDigit(titles[i].charAt(0)))
-                            titles[i]=String.valueOf(i+1);
-                        args.putStringArrayList(titles[i], new ArrayList<String>(category2fileList.getValue()));
-                        ++i;
-                    }
+                    String[] titles={"1"};
+                    args.putStringArrayList(titles[0], new ArrayList<String>(files));
                     args.putStringArray("photosTaken", titles);
                     photosFragment.setArguments(args);
                     FragmentTransaction fragmentTransaction = fm.beginTransaction();
@@ -143,34 +130,33 @@ public class VisualPreferences extends Fragment implements OnChartValueSelectedL
         //Toast.makeText(getActivity(),"Nothing selected",Toast.LENGTH_SHORT).show();
     }
 
+    /** Version of the category index shown in the chart. */
+    protected long chartVersion=-1;
+
     public void updateChart(){
         if(mainActivity!=null) {
-            List<Map<String,Map<String, Set<String>>>> categoriesHistograms=getCategoriesHistograms();
-            Map<String,Map<String,Set<String>>> histo=null;
-            if (categoryPosition<categoriesHistograms.size()) {
-                histo=categoriesHistograms.get(categoryPosition);
-            }
-            if(histo!=null && !histo.isEmpty())
+            CategoryIndex categoryIndex=getCategoryIndex();
+            long version=categoryIndex.getVersion();
+            if(version==chartVersion)
+                return;
+            Map<String,Integer> histo=categoryIndex.getCategoryCounts(categoryPosition);
+            if(!histo.isEmpty()) {
                 updateCategoryChart(histo);
+                chartVersion=version;
+            }
             else
                 backButton.performClick();
         }
     }
 
-    protected int getFilesCount(Map<String, Set<String>> id2Files){
-        int count = 0;
-        for (Set<String> filenames : id2Files.values())
-            count += filenames.size();
-        return count;
-    }
-    private void updateCategoryChart(Map<String,Map<String,Set<String>>> histo){
+    private void updateCategoryChart(Map<String,Integer> histo){
         //infoText.setText("");
 
-        ArrayList<Map.Entry<String,Map<String,Set<String>>>> sortedHisto = new ArrayList<>(histo.entrySet());
-        Collections.sort(sortedHisto, new Comparator<Map.Entry<String, Map<String, Set<String>>>>() {
+        ArrayList<Map.Entry<String,Integer>> sortedHisto = new ArrayList<>(histo.entrySet());
+        Collections.sort(sortedHisto, new Comparator<Map.Entry<String, Integer>>() {
             @Override
-            public int compare(Map.Entry<String, Map<String, Set<String>>> kvEntry, Map.Entry<String, Map<String, Set<String>>> t1) {
-                return getFilesCount(t1.getValue())-getFilesCount(kvEntry.getValue());
+            public int compare(Map.Entry<String, Integer> kvEntry, Map.Entry<String, Integer> t1) {
+                return t1.getValue()-kvEntry.getValue();
             }
         });
 
@@ -180,7 +166,7 @@ public class VisualPreferences extends Fragment implements OnChartValueSelectedL
         int index=0;
         int maxCount=15;
         List<String> keys=new ArrayList<>();
-        for (Map.Entry<String,Map<String,Set<String>>> entry : sortedHisto) {
+        for (Map.Entry<String,Integer> entry : sortedHisto) {
             keys.add(entry.getKey());
             if(keys.size()>maxCount)
                 break;
@@ -188,7 +174,7 @@ public class VisualPreferences extends Fragment implements OnChartValueSelectedL
         Collections.reverse(keys);
         for(String key : keys){
             xLabel.add(key);
-            int value=(int)Math.round(getFilesCount(histo.get(key)));
+            int value=histo.get(key);
             entries.add(new BarEntry(index, value));
             ++index;
 
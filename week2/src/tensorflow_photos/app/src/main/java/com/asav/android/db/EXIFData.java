@@ -4,7 +4,10 @@ import android.util.Log;
 
 import androidx.exifinterface.media.ExifInterface;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
 
 /**
@@ -24,6 +27,29 @@ public class EXIFData implements Serializable {
 
     public int orientation=1;
 
+    public static final ResultStore.Codec<EXIFData> CODEC=new ResultStore.Codec<EXIFData>() {
+        @Override
+        public void write(EXIFData val, DataOutputStream out) throws IOException {
+            out.writeDouble(val.latitude);
+            out.writeDouble(val.longitude);
+            out.writeInt(val.cameraFocalLength);
+            out.writeInt(val.orientation);
+            ResultStore.writeString(out, val.description);
+            ResultStore.writeString(out, val.cameraModel);
+        }
+        @Override
+        public EXIFData read(ByteBuffer buf) {
+            EXIFData res=new EXIFData();
+            res.latitude=buf.getDouble();
+            res.longitude=buf.getDouble();
+            res.cameraFocalLength=buf.getInt();
+            res.orientation=buf.getInt();
+            res.description=ResultStore.readString(buf);
+            res.cameraModel=ResultStore.readString(buf);
+            return res;
+        }
+    };
+
     public EXIFData(){
     }
 
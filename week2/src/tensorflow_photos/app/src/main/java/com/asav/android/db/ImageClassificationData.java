@@ -1,11 +1,11 @@
 package com.asav.android.db;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.TreeMap;
 
 /**
  * Created by avsavchenko.
@@ -22,33 +22,63 @@ public class ImageClassificationData implements ClassifierResult,Serializable {
     public ImageClassificationData(){
     }
 
-    public ImageClassificationData(TreeMap<String,Integer> categoryLabels2Index, TreeMap<String,Float> category2Score,
-                                   float displayThreshold){
-        this.scores = new float[category2Score.size()];
-        // Find the best classifications.
-        PriorityQueue<String> pq =
-                new PriorityQueue<>(
-                        MAX_RESULTS,
-                        new Comparator<String>() {
-                            @Override
-                            public int compare(String lhs, String rhs) {
-                                // Intentionally reversed to put high confidence at the head of the queue.
-                                return Float.compare(category2Score.get(rhs), category2Score.get(lhs));
-                            }
-                        });
-        for(Map.Entry<String,Float> entry:category2Score.entrySet()){
-            if (entry.getValue() > displayThreshold) {
-                pq.add(entry.getKey());
+    /**
+     * Selects up to MAX_RESULTS labels with scores above displayThreshold, best first.
+     * A fixed-size min-heap of slot indices is used, so no boxing or maps are involved.
+     */
+    public ImageClassificationData(String[] labels, float[] scores, float displayThreshold){
+        this.scores = scores;
+        int[] heap=new int[MAX_RESULTS];
+        int heapSize=0;
+        for (int i = 0; i < scores.length; ++i) {
+            float score=scores[i];
+            if (score <= displayThreshold)
+                continue;
+            if (heapSize < MAX_RESULTS) {
+                heap[heapSize++]=i;
+                siftUp(heap,heapSize-1);
             }
-            scores[categoryLabels2Index.get(entry.getKey())]=entry.getValue();
+            else if (score > scores[heap[0]]) {
+                heap[0]=i;
+                siftDown(heap,heapSize,0);
+            }
+        }
+        this.topIndices =heapSize==MAX_RESULTS?heap:Arrays.copyOf(heap,heapSize);
+        // pop minimums to the end to get the descending order
+        for (int size = heapSize - 1; size > 0; --size) {
+            int tmp=topIndices[0];
+            topIndices[0]=topIndices[size];
+            topIndices[size]=tmp;
+            siftDown(topIndices,size,0);
+        }
+        this.categories =new String[heapSize];
+        for (int i = 0; i < heapSize; ++i)
+            categories[i]=labels[topIndices[i]];
+    }
+    private void siftUp(int[] heap, int pos){
+        while (pos > 0) {
+            int parent=(pos-1)/2;
+            if (scores[heap[parent]] <= scores[heap[pos]])
+                break;
+            int tmp=heap[parent];
+            heap[parent]=heap[pos];
+            heap[pos]=tmp;
+            pos=parent;
         }
-        int recognitionsSize = Math.min(pq.size(), MAX_RESULTS);
-        this.categories =new String[recognitionsSize];
-        this.topIndices =new int[recognitionsSize];
-        for (int i = 0; i < recognitionsSize; ++i) {
-            categories[i]=pq.poll();
-            //topScores[i]=category2Score.get(topCategories[i]);
-            topIndices[i]=categoryLabels2Index.get(categories[i]);
+    }
+    private void siftDown(int[] heap, int size, int pos){
+        while (true) {
+            int smallest=pos, left=2*pos+1, right=left+1;
+            if (left < size && scores[heap[left]] < scores[heap[smallest]])
+                smallest=left;
+            if (right < size && scores[heap[right]] < scores[heap[smallest]])
+                smallest=right;
+            if (smallest == pos)
+                break;
+            int tmp=heap[smallest];
+            heap[smallest]=heap[pos];
+            heap[pos]=tmp;
+            pos=smallest;
         }
     }
 
@@ -75,4 +105,21 @@ public class ImageClassificationData implements ClassifierResult,Serializable {
         }
         return d/scores.length;
     }
+
+    public void write(DataOutputStream out) throws IOException {
+        ResultStore.writeFloats(out, scores);
+        ResultStore.writeInts(out, topIndices);
+        out.writeByte(categories.length);
+        for (String category : categories)
+            ResultStore.writeString(out, category);
+    }
+    public static ImageClassificationData read(ByteBuffer buf){
+        ImageClassificationData res=new ImageClassificationData();
+        res.scores=ResultStore.readFloats(buf);
+        res.topIndices=ResultStore.readInts(buf);
+        res.categories=new String[buf.get()];
+        for (int i = 0; i< res.categories.length; ++i)
+            res.categories[i]=ResultStore.readString(buf);
+        return res;
+    }
 }
@@ -0,0 +1,414 @@
+package com.asav.android.db;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Key-value store of image analysis results.
+ * Values are encoded by a {@link Codec} into records appended to a data file, which is memory-mapped for reads.
+ * A separate index file (key, offset, length) is loaded at startup, so opening the store costs O(index size),
+ * and every value is decoded lazily on first {@link #get(String)}. Removed keys are written into the index with the offset -1.
+ * Writes are buffered and committed in groups; superseded records are dropped by {@link #compact()}.
+ */
+public class ResultStore<V> {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "ResultStore";
+
+    public interface Codec<V> {
+        void write(V val, DataOutputStream out) throws IOException;
+        V read(ByteBuffer buf);
+    }
+
+    private static final int MAX_PENDING_WRITES = 32;
+    private static final float MAX_GARBAGE_RATIO = 0.5f;
+
+    private final File dataFile, indexFile;
+    private final Codec<V> codec;
+
+    /** Position of every committed record: offset in high 40 bits, length in low 24 bits. */
+    private final HashMap<String, Long> index = new HashMap<>();
+    private final LinkedHashMap<String, V> pending = new LinkedHashMap<>();
+    private long dataLength = 0, garbageLength = 0;
+
+    private RandomAccessFile dataRaf = null;
+    private MappedByteBuffer mappedData = null;
+
+    public ResultStore(File dir, String name, Codec<V> codec) {
+        this.dataFile = new File(dir, name + ".dat");
+        this.indexFile = new File(dir, name + ".idx");
+        this.codec = codec;
+        loadIndex();
+    }
+
+    private static long position(long offset, int length) {
+        return (offset << 24) | length;
+    }
+    private static long offsetOf(long pos) {
+        return pos >>> 24;
+    }
+    private static int lengthOf(long pos) {
+        return (int) (pos & 0xFFFFFF);
+    }
+
+    private void loadIndex() {
+        recoverCompaction();
+        long fileLength = dataFile.length();
+        long indexLength = 0;
+        if (indexFile.exists()) {
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                try {
+                    while (true) {
+                        String key = is.readUTF();
+                        long offset = is.readLong();
+                        int length = is.readInt();
+                        if (offset < 0) {
+                            Long prev = index.remove(key);
+                            if (prev != null)
+                                garbageLength += lengthOf(prev);
+                            indexLength += indexRecordLength(key);
+                            continue;
+                        }
+                        // skip records whose data did not reach the disk
+                        if (offset + length > fileLength)
+                            break;
+                        Long prev = index.put(key, position(offset, length));
+                        if (prev != null)
+                            garbageLength += lengthOf(prev);
+                        dataLength = Math.max(dataLength, offset + length);
+                        indexLength += indexRecordLength(key);
+                    }
+                } catch (EOFException eofEx) {
+                    //end of index
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "While loading index " + indexFile + " exception thrown: ", e);
+                index.clear();
+                dataLength = garbageLength = indexLength = 0;
+            }
+        }
+        // new records are appended at dataLength, so the tails written by interrupted flushes are dropped
+        truncate(dataFile, dataLength);
+        truncate(indexFile, indexLength);
+    }
+
+    /**
+     * Compaction renames the data file before the index file. If it was interrupted between the renames,
+     * the new data is already in place and the new index is still in its temporary file.
+     */
+    private void recoverCompaction() {
+        File tmpData = new File(dataFile.getPath() + ".tmp");
+        File tmpIndex = new File(indexFile.getPath() + ".tmp");
+        if (tmpData.exists()) {
+            tmpData.delete();
+            tmpIndex.delete();
+        } else if (tmpIndex.exists() && !tmpIndex.renameTo(indexFile)) {
+            Log.e(TAG, "Cannot replace " + indexFile + " after interrupted compaction");
+            tmpIndex.delete();
+            dataFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /** Number of bytes written by writeUTF(key), writeLong and writeInt. */
+    private static long indexRecordLength(String key) {
+        long length = 2 + 8 + 4;
+        for (int i = 0; i < key.length(); ++i) {
+            char c = key.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        return length;
+    }
+
+    private static void truncate(File file, long length) {
+        if (!file.exists() || file.length() <= length)
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "While truncating " + file + " exception thrown: ", e);
+        }
+    }
+
+    public synchronized int size() {
+        int count = index.size();
+        for (String key : pending.keySet())
+            if (!index.containsKey(key))
+                ++count;
+        return count;
+    }
+
+    public synchronized boolean containsKey(String key) {
+        return pending.containsKey(key) || index.containsKey(key);
+    }
+
+    public synchronized List<String> keys() {
+        ArrayList<String> res = new ArrayList<>(index.keySet());
+        for (String key : pending.keySet())
+            if (!index.containsKey(key))
+                res.add(key);
+        return res;
+    }
+
+    public synchronized V get(String key) {
+        V val = pending.get(key);
+        if (val != null)
+            return val;
+        Long pos = index.get(key);
+        if (pos == null)
+            return null;
+        try {
+            ByteBuffer buf = mapData();
+            buf.position((int) offsetOf(pos));
+            buf.limit((int) offsetOf(pos) + lengthOf(pos));
+            return codec.read(buf.slice().order(ByteOrder.BIG_ENDIAN));
+        } catch (Exception e) {
+            Log.e(TAG, "While reading " + key + " from " + dataFile + " exception thrown: ", e);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, V val) {
+        pending.put(key, val);
+        if (pending.size() >= MAX_PENDING_WRITES)
+            flush();
+    }
+
+    /** Commits all pending writes: data records first, then their index entries. */
+    public synchronized void flush() {
+        if (pending.isEmpty())
+            return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(bytes);
+            List<String> keys = new ArrayList<>(pending.size());
+            List<Long> positions = new ArrayList<>(pending.size());
+            long offset = dataLength;
+            for (Map.Entry<String, V> entry : pending.entrySet()) {
+                int start = dataOut.size();
+                codec.write(entry.getValue(), dataOut);
+                int length = dataOut.size() - start;
+                keys.add(entry.getKey());
+                positions.add(position(offset, length));
+                offset += length;
+            }
+            dataOut.flush();
+            long indexLength = indexFile.length();
+            try {
+                try (FileOutputStream os = new FileOutputStream(dataFile, true)) {
+                    bytes.writeTo(os);
+                    os.getFD().sync();
+                }
+                try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)))) {
+                    for (int i = 0; i < keys.size(); ++i) {
+                        long pos = positions.get(i);
+                        os.writeUTF(keys.get(i));
+                        os.writeLong(offsetOf(pos));
+                        os.writeInt(lengthOf(pos));
+                    }
+                }
+            } catch (IOException e) {
+                // the records are kept pending, partially written tails must not shift the next offsets
+                truncate(dataFile, dataLength);
+                truncate(indexFile, indexLength);
+                throw e;
+            }
+            // the in-memory index is changed only when both files are written
+            for (int i = 0; i < keys.size(); ++i) {
+                Long prev = index.put(keys.get(i), positions.get(i));
+                if (prev != null)
+                    garbageLength += lengthOf(prev);
+            }
+            dataLength = offset;
+            pending.clear();
+        } catch (IOException e) {
+            Log.e(TAG, "While saving " + pending.size() + " results to " + dataFile + " exception thrown: ", e);
+        }
+        if (garbageLength > MAX_GARBAGE_RATIO * dataLength)
+            compact();
+    }
+
+    /** Removes the keys, e.g., the results of deleted photos. */
+    public synchronized void remove(Collection<String> keys) {
+        flush();
+        List<String> removed = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (index.containsKey(key))
+                removed.add(key);
+        }
+        if (removed.isEmpty())
+            return;
+        long indexLength = indexFile.length();
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)))) {
+            for (String key : removed) {
+                os.writeUTF(key);
+                os.writeLong(-1);
+                os.writeInt(0);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "While removing " + removed.size() + " results from " + dataFile + " exception thrown: ", e);
+            truncate(indexFile, indexLength);
+            return;
+        }
+        for (String key : removed)
+            garbageLength += lengthOf(index.remove(key));
+        if (garbageLength > MAX_GARBAGE_RATIO * dataLength)
+            compact();
+    }
+
+    /**
+     * Rewrites the store keeping only the latest record for each key.
+     * Both new files are synced before the data file and then the index file are renamed, see {@link #recoverCompaction()}.
+     */
+    public synchronized void compact() {
+        flush();
+        File tmpData = new File(dataFile.getPath() + ".tmp");
+        File tmpIndex = new File(indexFile.getPath() + ".tmp");
+        HashMap<String, Long> newIndex = new HashMap<>(index.size());
+        long offset = 0;
+        try {
+            ByteBuffer buf = mapData();
+            try (FileChannel dataOut = new FileOutputStream(tmpData).getChannel();
+                 FileOutputStream indexStream = new FileOutputStream(tmpIndex);
+                 DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(indexStream))) {
+                for (Map.Entry<String, Long> entry : index.entrySet()) {
+                    long pos = entry.getValue();
+                    int length = lengthOf(pos);
+                    buf.limit(buf.capacity());
+                    buf.position((int) offsetOf(pos));
+                    buf.limit((int) offsetOf(pos) + length);
+                    while (buf.hasRemaining())
+                        dataOut.write(buf);
+                    indexOut.writeUTF(entry.getKey());
+                    indexOut.writeLong(offset);
+                    indexOut.writeInt(length);
+                    newIndex.put(entry.getKey(), position(offset, length));
+                    offset += length;
+                }
+                dataOut.force(true);
+                indexOut.flush();
+                indexStream.getFD().sync();
+            }
+            closeData();
+            if (!tmpData.renameTo(dataFile))
+                throw new IOException("Cannot replace " + dataFile);
+            if (!tmpIndex.renameTo(indexFile)) {
+                // the old index does not match the new data
+                index.clear();
+                pending.clear();
+                dataLength = garbageLength = 0;
+                dataFile.delete();
+                indexFile.delete();
+                tmpIndex.delete();
+                throw new IOException("Cannot replace " + indexFile);
+            }
+            index.clear();
+            index.putAll(newIndex);
+            dataLength = offset;
+            garbageLength = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "While compacting " + dataFile + " exception thrown: ", e);
+            tmpData.delete();
+            tmpIndex.delete();
+        }
+    }
+
+    public synchronized void clear() {
+        pending.clear();
+        index.clear();
+        dataLength = garbageLength = 0;
+        closeData();
+        dataFile.delete();
+        indexFile.delete();
+    }
+
+    public synchronized void close() {
+        flush();
+        closeData();
+    }
+
+    private ByteBuffer mapData() throws IOException {
+        if (mappedData == null || mappedData.capacity() < dataLength) {
+            closeData();
+            dataRaf = new RandomAccessFile(dataFile, "r");
+            mappedData = dataRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataLength);
+        }
+        ByteBuffer buf = mappedData.duplicate();
+        buf.clear();
+        return buf;
+    }
+
+    private void closeData() {
+        mappedData = null;
+        if (dataRaf != null) {
+            try {
+                dataRaf.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            dataRaf = null;
+        }
+    }
+
+    /* Helpers for codecs */
+    public static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeShort(-1);
+        } else {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+    public static String readString(ByteBuffer buf) {
+        int len = buf.getShort();
+        if (len < 0)
+            return null;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    public static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        out.writeInt(values.length);
+        for (float v : values)
+            out.writeFloat(v);
+    }
+    public static float[] readFloats(ByteBuffer buf) {
+        float[] values = new float[buf.getInt()];
+        buf.asFloatBuffer().get(values);
+        buf.position(buf.position() + 4 * values.length);
+        return values;
+    }
+    public static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values)
+            out.writeInt(v);
+    }
+    public static int[] readInts(ByteBuffer buf) {
+        int[] values = new int[buf.getInt()];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + 4 * values.length);
+        return values;
+    }
+}
@@ -1,6 +1,9 @@
 package com.asav.android.db;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -17,13 +20,28 @@ public class SceneData implements ClassifierResult,Serializable {
     public static final float EVENT_DISPLAY_THRESHOLD = -0.3f;
     public static final float EVENT_CATEGORY_THRESHOLD = 0.1f;
 
+    public static final ResultStore.Codec<SceneData> CODEC=new ResultStore.Codec<SceneData>() {
+        @Override
+        public void write(SceneData val, DataOutputStream out) throws IOException {
+            val.scenes.write(out);
+            val.events.write(out);
+        }
+        @Override
+        public SceneData read(ByteBuffer buf) {
+            SceneData res=new SceneData();
+            res.scenes=ImageClassificationData.read(buf);
+            res.events=ImageClassificationData.read(buf);
+            return res;
+        }
+    };
+
     public SceneData(){
     }
 
-    public SceneData(TreeMap<String,Integer> sceneLabels2Index, TreeMap<String,Float> scene2Score,
-                     TreeMap<String,Integer> eventLabels2Index, TreeMap<String,Float> event2Score){
-        this.scenes =new ImageClassificationData(sceneLabels2Index,scene2Score,SCENE_DISPLAY_THRESHOLD);
-        this.events =new ImageClassificationData(eventLabels2Index,event2Score,EVENT_DISPLAY_THRESHOLD);
+    /** Scores are indexed by slots of the sorted label arrays and are kept without copying. */
+    public SceneData(String[] sceneLabels, float[] sceneScores, String[] eventLabels, float[] eventScores){
+        this.scenes =new ImageClassificationData(sceneLabels,sceneScores,SCENE_DISPLAY_THRESHOLD);
+        this.events =new ImageClassificationData(eventLabels,eventScores,EVENT_DISPLAY_THRESHOLD);
     }
 
     public List<String> getMostReliableCategories() {
@@ -0,0 +1,343 @@
+package com.hse.TfFaceRec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) for the nearest neighbour search of
+ * L2-normalized vectors, the distance is 1 minus their dot product.
+ * Vectors are not copied into the graph: every call gets the matrix of the gallery, in which the node i is the row i.
+ * Deleted nodes are still used to navigate the graph, but they are never returned.
+ * The projects do not share a module, so the same class is kept in FacialProcessing and TfFaceRec.
+ */
+class HnswIndex {
+    private final int maxNeighbors, maxNeighbors0, efConstruction;
+    private final double levelMultiplier;
+    private final Random random;
+
+    /** For every node the lists of neighbours at levels 0..level, every list is stored as count, neighbours. */
+    private int[][] links = new int[0][];
+    private int size = 0, entryPoint = -1, maxLevel = -1;
+
+    private int[] visited = new int[0];
+    private int visitMark = 0;
+    /** Candidates are ordered by distance, results by negated distance, so the farthest result is at the top. */
+    private final Heap candidates = new Heap(), results = new Heap();
+    private int[] resultNodes = new int[0], selected = new int[0];
+    private float[] resultDistances = new float[0];
+    private final Heap pruneHeap = new Heap();
+    private int[] pruneNodes = new int[0];
+    private float[] pruneDistances = new float[0];
+
+    public HnswIndex(int maxNeighbors, int efConstruction, long seed) {
+        this.maxNeighbors = maxNeighbors;
+        this.maxNeighbors0 = 2 * maxNeighbors;
+        this.efConstruction = efConstruction;
+        levelMultiplier = 1 / Math.log(maxNeighbors);
+        random = new Random(seed);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int offset(int level) {
+        return level == 0 ? 0 : (maxNeighbors0 + 1) + (level - 1) * (maxNeighbors + 1);
+    }
+
+    private static float distance(float[] vectors, int dimension, float[] query, int queryOffset, int node) {
+        return 1 - FaceGallery.dot(query, queryOffset, vectors, node * dimension, dimension);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (visited.length < capacity) {
+            capacity = Math.max(capacity, visited.length * 2);
+            links = Arrays.copyOf(links, capacity);
+            visited = Arrays.copyOf(visited, capacity);
+        }
+        int numResults = Math.max(efConstruction, maxNeighbors0) + 1;
+        if (resultNodes.length < numResults) {
+            resultNodes = new int[numResults];
+            resultDistances = new float[numResults];
+            selected = new int[numResults];
+        }
+    }
+
+    /** Adds the next row of vectors, so node must be equal to size(). */
+    public void add(float[] vectors, int dimension, int node) {
+        if (node != size)
+            throw new IllegalArgumentException("Nodes must be added in order");
+        ensureCapacity(node + 1);
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        links[node] = new int[offset(level + 1)];
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            ++size;
+            return;
+        }
+        int queryOffset = node * dimension;
+        int current = entryPoint;
+        float currentDistance = distance(vectors, dimension, vectors, queryOffset, current);
+        for (int l = maxLevel; l > level; --l) {
+            current = greedySearch(vectors, dimension, vectors, queryOffset, current, currentDistance, l);
+            currentDistance = distance(vectors, dimension, vectors, queryOffset, current);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; --l) {
+            searchLayer(vectors, dimension, vectors, queryOffset, current, currentDistance, efConstruction, l);
+            int numResults = drainResults();
+            current = resultNodes[0];
+            currentDistance = resultDistances[0];
+            int numSelected = selectNeighbors(vectors, dimension, resultNodes, resultDistances, numResults, maxNeighbors);
+            int offset = offset(l);
+            links[node][offset] = numSelected;
+            System.arraycopy(selected, 0, links[node], offset + 1, numSelected);
+            for (int i = 0; i < numSelected; ++i)
+                addLink(vectors, dimension, links[node][offset + 1 + i], node, l);
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        ++size;
+    }
+
+    /**
+     * Returns the number of found nodes, which are stored in nodes and distances in increasing order of distances.
+     * The search explores max(ef, k) nodes at the bottom level, so larger ef increases the recall.
+     */
+    public int search(float[] vectors, int dimension, float[] query, int k, int ef, boolean[] deleted, int[] nodes, float[] distances) {
+        if (entryPoint < 0)
+            return 0;
+        ensureCapacity(size);
+        if (resultNodes.length < Math.max(ef, k)) {
+            resultNodes = new int[Math.max(ef, k)];
+            resultDistances = new float[Math.max(ef, k)];
+        }
+        int current = entryPoint;
+        float currentDistance = distance(vectors, dimension, query, 0, current);
+        for (int l = maxLevel; l > 0; --l) {
+            current = greedySearch(vectors, dimension, query, 0, current, currentDistance, l);
+            currentDistance = distance(vectors, dimension, query, 0, current);
+        }
+        searchLayer(vectors, dimension, query, 0, current, currentDistance, Math.max(ef, k), 0);
+        int numResults = drainResults();
+        int numFound = 0;
+        for (int i = 0; i < numResults && numFound < k; ++i) {
+            if (!deleted[resultNodes[i]]) {
+                nodes[numFound] = resultNodes[i];
+                distances[numFound] = resultDistances[i];
+                ++numFound;
+            }
+        }
+        return numFound;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(entryPoint);
+        out.writeInt(maxLevel);
+        for (int node = 0; node < size; ++node) {
+            out.writeInt(links[node].length);
+            for (int value : links[node])
+                out.writeInt(value);
+        }
+    }
+
+    /** Reads the graph written by write into this empty index. */
+    public void read(DataInputStream in) throws IOException {
+        int numNodes = in.readInt();
+        ensureCapacity(numNodes);
+        entryPoint = in.readInt();
+        maxLevel = in.readInt();
+        for (int node = 0; node < numNodes; ++node) {
+            links[node] = new int[in.readInt()];
+            for (int i = 0; i < links[node].length; ++i)
+                links[node][i] = in.readInt();
+        }
+        size = numNodes;
+    }
+
+    /** Moves to the closest neighbour while the distance decreases. */
+    private int greedySearch(float[] vectors, int dimension, float[] query, int queryOffset, int current, float currentDistance, int level) {
+        boolean changed = true;
+        int offset = offset(level);
+        while (changed) {
+            changed = false;
+            int[] nodeLinks = links[current];
+            for (int i = 1; i <= nodeLinks[offset]; ++i) {
+                int neighbor = nodeLinks[offset + i];
+                float distance = distance(vectors, dimension, query, queryOffset, neighbor);
+                if (distance < currentDistance) {
+                    currentDistance = distance;
+                    current = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Beam search at one level, the ef nearest nodes are left in results. */
+    private void searchLayer(float[] vectors, int dimension, float[] query, int queryOffset, int entry, float entryDistance, int ef, int level) {
+        if (++visitMark == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitMark = 1;
+        }
+        candidates.clear();
+        results.clear();
+        visited[entry] = visitMark;
+        candidates.push(entryDistance, entry);
+        results.push(-entryDistance, entry);
+        int offset = offset(level);
+        while (candidates.size > 0) {
+            float candidateDistance = candidates.topKey();
+            if (results.size >= ef && candidateDistance > -results.topKey())
+                break;
+            int[] nodeLinks = links[candidates.topValue()];
+            candidates.pop();
+            for (int i = 1; i <= nodeLinks[offset]; ++i) {
+                int neighbor = nodeLinks[offset + i];
+                if (visited[neighbor] == visitMark)
+                    continue;
+                visited[neighbor] = visitMark;
+                float distance = distance(vectors, dimension, query, queryOffset, neighbor);
+                if (results.size < ef || distance < -results.topKey()) {
+                    candidates.push(distance, neighbor);
+                    results.push(-distance, neighbor);
+                    if (results.size > ef)
+                        results.pop();
+                }
+            }
+        }
+    }
+
+    /** Moves results into resultNodes and resultDistances in increasing order of distances. */
+    private int drainResults() {
+        int numResults = results.size;
+        for (int i = numResults - 1; i >= 0; --i) {
+            resultNodes[i] = results.topValue();
+            resultDistances[i] = -results.topKey();
+            results.pop();
+        }
+        return numResults;
+    }
+
+    /**
+     * Heuristic of HNSW: a candidate is selected if it is closer to the base than to all selected nodes,
+     * so links point in different directions. Remaining places are filled by the closest pruned candidates.
+     */
+    private int selectNeighbors(float[] vectors, int dimension, int[] nodes, float[] distances, int numCandidates, int maxSelected) {
+        int numSelected = 0;
+        for (int i = 0; i < numCandidates && numSelected < maxSelected; ++i) {
+            boolean good = true;
+            for (int j = 0; j < numSelected && good; ++j) {
+                if (distance(vectors, dimension, vectors, nodes[i] * dimension, selected[j]) < distances[i])
+                    good = false;
+            }
+            if (good)
+                selected[numSelected++] = nodes[i];
+        }
+        for (int i = 0; i < numCandidates && numSelected < maxSelected; ++i) {
+            boolean isSelected = false;
+            for (int j = 0; j < numSelected && !isSelected; ++j)
+                isSelected = selected[j] == nodes[i];
+            if (!isSelected)
+                selected[numSelected++] = nodes[i];
+        }
+        return numSelected;
+    }
+
+    /** Adds the link from node to neighbor, the neighbours of node are pruned by the heuristic if there are too many. */
+    private void addLink(float[] vectors, int dimension, int node, int neighbor, int level) {
+        int capacity = level == 0 ? maxNeighbors0 : maxNeighbors;
+        int offset = offset(level);
+        int[] nodeLinks = links[node];
+        int count = nodeLinks[offset];
+        if (count < capacity) {
+            nodeLinks[offset + 1 + count] = neighbor;
+            nodeLinks[offset] = count + 1;
+            return;
+        }
+        pruneHeap.clear();
+        int nodeOffset = node * dimension;
+        for (int i = 1; i <= count; ++i)
+            pruneHeap.push(distance(vectors, dimension, vectors, nodeOffset, nodeLinks[offset + i]), nodeLinks[offset + i]);
+        pruneHeap.push(distance(vectors, dimension, vectors, nodeOffset, neighbor), neighbor);
+        int numCandidates = pruneHeap.size;
+        if (pruneNodes.length < numCandidates) {
+            pruneNodes = new int[numCandidates];
+            pruneDistances = new float[numCandidates];
+        }
+        for (int i = 0; i < numCandidates; ++i) {
+            pruneNodes[i] = pruneHeap.topValue();
+            pruneDistances[i] = pruneHeap.topKey();
+            pruneHeap.pop();
+        }
+        int numSelected = selectNeighbors(vectors, dimension, pruneNodes, pruneDistances, numCandidates, capacity);
+        nodeLinks[offset] = numSelected;
+        System.arraycopy(selected, 0, nodeLinks, offset + 1, numSelected);
+    }
+
+    /** Binary min-heap of (key, value) pairs in primitive arrays. */
+    private static final class Heap {
+        float[] keys = new float[64];
+        int[] values = new int[64];
+        int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        float topKey() {
+            return keys[0];
+        }
+
+        int topValue() {
+            return values[0];
+        }
+
+        void push(float key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (keys[parent] <= key)
+                    break;
+                keys[i] = keys[parent];
+                values[i] = values[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void pop() {
+            if (--size == 0)
+                return;
+            float key = keys[size];
+            int value = values[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && keys[child + 1] < keys[child])
+                    ++child;
+                if (keys[child] >= key)
+                    break;
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.hse.TfFaceRec;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Runs a float model with the feed/run/fetch protocol of TensorFlowInferenceInterface,
+ * so the same network code works with TensorFlow graphs and TFLite models.
+ * Implementations keep their buffers between calls and must not be shared between threads.
+ */
+public interface InferenceBackend {
+    String getName();
+
+    /**
+     * Selects the state used by the following calls, e.g., the level of the image pyramid, whose input shape
+     * is the same in every detection. Backends that do not keep per-shape state ignore it. The default slot is 0.
+     */
+    void setSlot(int slot);
+
+    /** Copies the remaining values of input, shape is {batch, ...}. */
+    void feed(String inputName, FloatBuffer input, int... shape);
+
+    /**
+     * Returns the buffer of the input of the given shape, which is filled by the caller before run
+     * instead of feeding a copy. The buffer is positioned at 0 and is valid until the next call.
+     */
+    FloatBuffer getInputBuffer(String inputName, int... shape);
+
+    void run(String... outputNames);
+
+    /** Copies the first dst.length values of the output of the last run. */
+    void fetch(String outputName, float[] dst);
+
+    /** Number of values of the output for one element of the batch. */
+    int getOutputSize(String outputName);
+
+    void enableStatLogging(boolean logStats);
+
+    String getStatString();
+
+    void close();
+}
@@ -24,6 +24,7 @@ import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.os.*;
@@ -64,7 +65,18 @@ public class MainActivity extends CameraActivity implements CameraBridgeViewBase
     private static final String MODEL_FILE = "file:///android_asset/age_gender_tf2_new-01-0.14-0.92.pb";
     //private static final String MODEL_FILE = "file:///android_asset/quantized_graph.pb";
     private TensorFlowImageFeatureExtractor featureExtractor=null;
-    private float[] prevFeatures=null;
+    /** Faces enrolled in this session, the unknown face is enrolled as a new person when the results are tapped. */
+    private FaceGallery faceGallery=new FaceGallery(true);
+    /**
+     * Conservative threshold of the distance between normalized embeddings of the same person, it is not calibrated
+     * for these features, so the nearest distance of unknown faces is shown to tune it, e.g., at the equal error rate.
+     */
+    private static final float MAX_FACE_DISTANCE=0.8f;
+    /** Features of the largest unknown face of the last frame. */
+    private volatile float[] unknownFaceFeatures=null;
+    /** Compare TensorFlow and TFLite backends on the first detected face. */
+    private static final boolean BENCHMARK_BACKENDS = false;
+    private boolean backendsBenchmarked=false;
 
     private static final Scalar    FACE_RECT_COLOR     = new Scalar(0, 255, 0, 255);
 
@@ -175,6 +187,12 @@ public class MainActivity extends CameraActivity implements CameraBridgeViewBase
         imageViewResult = null;//(ImageView) findViewById(R.id.imageViewResult);
         textViewResult = (TextView) findViewById(R.id.textViewResult);
         textViewResult.setMovementMethod(new ScrollingMovementMethod());
+        textViewResult.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                enrollUnknownFace();
+            }
+        });
 
         if (!allPermissionsGranted()) {
             ActivityCompat.requestPermissions(this, getRequiredPermissions(), REQUEST_CODE_ASK_MULTIPLE_PERMISSIONS);
@@ -182,6 +200,17 @@ public class MainActivity extends CameraActivity implements CameraBridgeViewBase
         else
             init();
     }
+    private void enrollUnknownFace(){
+        float[] features=unknownFaceFeatures;
+        if(features==null){
+            Toast.makeText(this, "No unknown faces", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        unknownFaceFeatures=null;
+        String name="person "+(faceGallery.size()+1);
+        faceGallery.enroll(name,features);
+        Toast.makeText(this, name+" is enrolled", Toast.LENGTH_SHORT).show();
+    }
     private void init(){
         mOpenCvCameraView.setCameraIndex(0);
         mOpenCvCameraView.setVisibility(CameraBridgeViewBase.VISIBLE);
@@ -327,6 +356,8 @@ public class MainActivity extends CameraActivity implements CameraBridgeViewBase
             str.append("No faces found");
             //facesArray=new Rect[]{new Rect(10,10,mGray.cols()-20,mGray.rows()-20)};
         }
+        float[] unknownFeatures=null;
+        double unknownArea=0;
         for (int i = 0; i < facesArray.length; i++) {
             int dw=facesArray[i].width/8;
             int dh=facesArray[i].height/8;
@@ -360,18 +391,30 @@ public class MainActivity extends CameraActivity implements CameraBridgeViewBase
             /*final List<Classifier.Recognition> results = classifier.recognizeImage(resultBitmap);
             str.append(results.toString()).append("\n");*/
 
+            if(BENCHMARK_BACKENDS && !backendsBenchmarked){
+                backendsBenchmarked=true;
+                try {
+                    TensorFlowImageFeatureExtractor.benchmark(getAssets(), MODEL_FILE, INPUT_SIZE, INPUT_NAME, OUTPUT_NAMES, resultBitmap, 10);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to run benchmark. Exception thrown: " + e);
+                }
+            }
             float[][] cnn_outputs=featureExtractor.recognizeImage(resultBitmap);
             float[] features=cnn_outputs[0];
-            if(prevFeatures!=null){
-                float dist=0;
-                for(int fi=0;fi<features.length;++fi)
-                    dist+=(features[fi]-prevFeatures[fi])*(features[fi]-prevFeatures[fi]);
-                dist/=features.length;
-                str.append("distance=").append(dist).append("\n");
+            List<FaceGallery.Match> matches=faceGallery.search(features,1);
+            FaceGallery.Match match=matches.isEmpty()?null:matches.get(0);
+            if(match!=null && match.distance<=MAX_FACE_DISTANCE)
+                str.append(match.name).append(" distance=").append(match.distance).append("\n");
+            else {
+                str.append("unknown");
+                if(match!=null)
+                    str.append(" nearest distance=").append(match.distance);
+                str.append(", tap to enroll\n");
+                if(facesArray[i].area()>unknownArea){
+                    unknownArea=facesArray[i].area();
+                    unknownFeatures=features.clone();
+                }
             }
-            else
-                prevFeatures=new float[features.length];
-            System.arraycopy( features, 0, prevFeatures, 0, features.length );
 
             //age
             final float[] age_features=cnn_outputs[1];
@@ -411,6 +454,7 @@ public class MainActivity extends CameraActivity implements CameraBridgeViewBase
             Log.i(TAG,"age="+age+" gender="+gender);
 
         }
+        unknownFaceFeatures=unknownFeatures;
         final String result=str.toString();
         runOnUiThread(new Runnable() {
             @Override
@@ -20,11 +20,10 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.util.Log;
 
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -36,7 +35,7 @@ import java.util.Vector;
  */
 
 /**
- * A classifier specialized to label images using TensorFlow.
+ * A classifier specialized to label images using TensorFlow or TFLite.
  */
 public class TensorFlowImageClassifier implements Classifier {
 
@@ -56,13 +55,12 @@ public class TensorFlowImageClassifier implements Classifier {
     // Pre-allocated buffers.
     private Vector<String> labels = new Vector<String>();
     private int[] intValues;
-    private float[] floatValues;
     private float[] outputs;
     private String[] outputNames;
 
     private boolean logStats = false;
 
-    private TensorFlowInferenceInterface inferenceInterface;
+    private InferenceBackend inferenceBackend;
 
     private TensorFlowImageClassifier() {
     }
@@ -72,7 +70,8 @@ public class TensorFlowImageClassifier implements Classifier {
      * Initializes a native TensorFlow session for classifying images.
      *
      * @param assetManager  The asset manager to be used to load assets.
-     * @param modelFilename The filepath of the model GraphDef protocol buffer.
+     * @param modelFilename The filepath of the model GraphDef protocol buffer, the TFLite model
+     *                      with the same name and the .tflite extension is used if it is in assets.
      * @param labelFilename The filepath of label file for classes.
      * @param inputSize     The input size. A square image of inputSize x inputSize is assumed.
      * @param imageMean     The assumed mean of the image values.
@@ -107,10 +106,10 @@ public class TensorFlowImageClassifier implements Classifier {
         }
         br.close();
 
-        c.inferenceInterface = new TensorFlowInferenceInterface(assetManager,modelFilename);
+        c.inferenceBackend = TensorFlowImageFeatureExtractor.createBackend(
+                assetManager, modelFilename, inputName, new String[]{outputName}, true);
         // The shape of the output is [N, NUM_CLASSES], where N is the batch size.
-        int numClasses =
-                (int) c.inferenceInterface.graph().operation(outputName).output(0).shape().size(1);
+        int numClasses = c.inferenceBackend.getOutputSize(outputName);
         Log.i(TAG, "Read " + c.labels.size() + " labels, output layer size is " + numClasses);
 
         // Ideally, inputSize could have been retrieved from the shape of the input operation.  Alas,
@@ -123,7 +122,6 @@ public class TensorFlowImageClassifier implements Classifier {
         // Pre-allocate buffers.
         c.outputNames = new String[]{outputName};
         c.intValues = new int[inputSize * inputSize];
-        c.floatValues = new float[inputSize * inputSize * 3];
         c.outputs = new float[numClasses];
 
         return c;
@@ -136,23 +134,22 @@ public class TensorFlowImageClassifier implements Classifier {
         // Preprocess the image data from 0-255 int to normalized float based
         // on the provided parameters.
         bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        // The input is written directly into the buffer of the backend.
+        //Trace.beginSection("fillNodeFloat");
+        FloatBuffer floatValues = inferenceBackend.getInputBuffer(inputName, 1, inputSize, inputSize, 3);
         for (int i = 0; i < intValues.length; ++i) {
             final int val = intValues[i];
-            floatValues[i * 3 + 0] = (((val >> 16) & 0xFF) - imageMean) / imageStd;
-            floatValues[i * 3 + 1] = (((val >> 8) & 0xFF) - imageMean) / imageStd;
-            floatValues[i * 3 + 2] = ((val & 0xFF) - imageMean) / imageStd;
+            floatValues.put((((val >> 16) & 0xFF) - imageMean) / imageStd);
+            floatValues.put((((val >> 8) & 0xFF) - imageMean) / imageStd);
+            floatValues.put(((val & 0xFF) - imageMean) / imageStd);
         }
 
-        // Copy the input data into TensorFlow.
-        //Trace.beginSection("fillNodeFloat");
-        inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
-
         // Run the inference call.
         //Trace.beginSection("runInference");
-        inferenceInterface.run(outputNames, logStats);
+        inferenceBackend.run(outputNames);
 
         // Copy the output Tensor back into the output array.
-        inferenceInterface.fetch(outputName, outputs);
+        inferenceBackend.fetch(outputName, outputs);
 
         // Find the best classifications.
         PriorityQueue<Recognition> pq =
@@ -185,15 +182,16 @@ public class TensorFlowImageClassifier implements Classifier {
     @Override
     public void enableStatLogging(boolean logStats) {
         this.logStats = logStats;
+        inferenceBackend.enableStatLogging(logStats);
     }
 
     @Override
     public String getStatString() {
-        return inferenceInterface.getStatString();
+        return inferenceBackend.getStatString();
     }
 
     @Override
     public void close() {
-        inferenceInterface.close();
+        inferenceBackend.close();
     }
 }
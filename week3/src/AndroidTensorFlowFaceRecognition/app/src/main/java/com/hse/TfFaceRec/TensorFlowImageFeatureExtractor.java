@@ -5,13 +5,12 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.util.Log;
 
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
-
 import java.io.IOException;
+import java.nio.FloatBuffer;
 
 
 /**
- * A classifier specialized to extract image features using TensorFlow.
+ * A classifier specialized to extract image features using TensorFlow or TFLite.
  */
 public class TensorFlowImageFeatureExtractor {
 
@@ -25,23 +24,46 @@ public class TensorFlowImageFeatureExtractor {
     // Pre-allocated buffers.
     private int[] intValues;
     private boolean[] isTrainingValues;
-    private float[] floatValues;
     private float[][] outputs;
     private String[] outputNames;
 
     private boolean logStats = false;
 
-    private TensorFlowInferenceInterface inferenceInterface;
+    private InferenceBackend inferenceBackend;
+
+    /**
+     * Creates the TFLite backend if the model with the same name and the .tflite extension is in assets,
+     * otherwise the TensorFlow backend of the GraphDef.
+     */
+    static InferenceBackend createBackend(AssetManager assetManager,
+                                          String modelFilename,
+                                          String inputName,
+                                          String[] outputNames,
+                                          boolean useTfLite) throws IOException {
+        if (useTfLite) {
+            String tfliteFilename = modelFilename.replace("file:///android_asset/", "").replaceFirst("\\.pb$", ".tflite");
+            if (TfLiteBackend.hasModel(assetManager, tfliteFilename))
+                return new TfLiteBackend(TfLiteBackend.loadModel(assetManager, tfliteFilename), inputName, outputNames, 4);
+            Log.w(TAG, "TFLite model " + tfliteFilename + " is not found, TensorFlow graph is used");
+        }
+        return new TensorFlowBackend(assetManager, modelFilename);
+    }
 
     public TensorFlowImageFeatureExtractor(AssetManager assetManager,
                                             String modelFilename,
+                                            int inputSize,
+                                            String inputName,
+                                            String[] outputNames) throws IOException {
+        this(createBackend(assetManager, modelFilename, inputName, outputNames, true), inputSize, inputName, outputNames);
+    }
+
+    public TensorFlowImageFeatureExtractor(InferenceBackend inferenceBackend,
                                             int inputSize,
                                             String inputName,
                                             String[] outputNames) {
         this.inputName = inputName;
         this.outputNames = outputNames;
-
-        inferenceInterface = new TensorFlowInferenceInterface(assetManager,modelFilename);
+        this.inferenceBackend = inferenceBackend;
 
         // Ideally, inputSize could have been retrieved from the shape of the input operation.  Alas,
         // the placeholder node for input in the graphdef typically used does not specify a shape, so it
@@ -50,13 +72,12 @@ public class TensorFlowImageFeatureExtractor {
 
         // Pre-allocate buffers.
         intValues = new int[inputSize * inputSize];
-        floatValues = new float[inputSize * inputSize * 3];
 
         outputs = new float[outputNames.length][];
         for(int i=0;i<outputNames.length;++i) {
             String featureOutputName = outputNames[i];
             // The shape of the output is [N, NUM_OF_FEATURES], where N is the batch size.
-            int numOFFeatures = (int) inferenceInterface.graph().operation(featureOutputName).output(0).shape().size(1);
+            int numOFFeatures = inferenceBackend.getOutputSize(featureOutputName);
             Log.i(TAG, "Read output layer size is " + numOFFeatures);
             outputs[i] = new float[numOFFeatures];
         }
@@ -68,28 +89,27 @@ public class TensorFlowImageFeatureExtractor {
         // Preprocess the image data from 0-255 int to normalized float based
         // on the provided parameters.
         bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        // The input is written directly into the buffer of the backend.
+        //Trace.beginSection("fillNodeFloat");
+        FloatBuffer floatValues = inferenceBackend.getInputBuffer(inputName, 1, inputSize, inputSize, 3);
         for (int i = 0; i < intValues.length; ++i) {
             final int val = intValues[i];
             //'RGB'->'BGR'
-            floatValues[i * 3 + 0] = ((val & 0xFF) - 103.939f);
-            floatValues[i * 3 + 1] = (((val >> 8) & 0xFF) - 116.779f);
-            floatValues[i * 3 + 2] = (((val >> 16) & 0xFF) - 123.68f);
+            floatValues.put((val & 0xFF) - 103.939f);
+            floatValues.put(((val >> 8) & 0xFF) - 116.779f);
+            floatValues.put(((val >> 16) & 0xFF) - 123.68f);
         }
 
-        // Copy the input data into TensorFlow.
-        //Trace.beginSection("fillNodeFloat");
-        inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
-
         //Log.i(TAG,"2!!!!!!!!!!!!!!!!!!!!!!!!! start feature extraction");
 
         // Run the inference call.
         //Trace.beginSection("runInference");
-        inferenceInterface.run(outputNames);
+        inferenceBackend.run(outputNames);
         //Log.i(TAG,"3!!!!!!!!!!!!!!!!!!!!!!!!! start feature extraction");
 
         // Copy the output Tensor back into the output array.
         for(int i=0;i<outputNames.length;++i) {
-            inferenceInterface.fetch(outputNames[i], outputs[i]);
+            inferenceBackend.fetch(outputNames[i], outputs[i]);
         }
 
         long total=System.currentTimeMillis()-start;
@@ -105,15 +125,59 @@ public class TensorFlowImageFeatureExtractor {
         return outputs;
     }
 
+    /**
+     * Extracts features of the same bitmap by the TensorFlow and TFLite backends and compares mean latencies
+     * and the maximal absolute difference of every output. The first run of every backend is a warm-up.
+     */
+    public static String benchmark(AssetManager assetManager,
+                                   String modelFilename,
+                                   int inputSize,
+                                   String inputName,
+                                   String[] outputNames,
+                                   Bitmap bitmap,
+                                   int numRuns) throws IOException {
+        StringBuilder report = new StringBuilder();
+        float[][] reference = null;
+        for (boolean useTfLite : new boolean[]{false, true}) {
+            InferenceBackend backend = createBackend(assetManager, modelFilename, inputName, outputNames, useTfLite);
+            TensorFlowImageFeatureExtractor extractor = new TensorFlowImageFeatureExtractor(backend, inputSize, inputName, outputNames);
+            try {
+                float[][] outputs = extractor.recognizeImage(bitmap);
+                long startTime = System.nanoTime();
+                for (int run = 0; run < numRuns; ++run)
+                    outputs = extractor.recognizeImage(bitmap);
+                report.append(String.format("%s: %.1f ms", backend.getName(), (System.nanoTime() - startTime) / 1e6 / numRuns));
+                if (reference == null) {
+                    reference = new float[outputs.length][];
+                    for (int i = 0; i < outputs.length; ++i)
+                        reference[i] = outputs[i].clone();
+                } else {
+                    for (int i = 0; i < outputs.length; ++i) {
+                        float maxDifference = 0;
+                        for (int j = 0; j < outputs[i].length; ++j)
+                            maxDifference = Math.max(maxDifference, Math.abs(outputs[i][j] - reference[i][j]));
+                        report.append(String.format(", %s max difference %.5f", outputNames[i], maxDifference));
+                    }
+                }
+                report.append("\n");
+            } finally {
+                extractor.close();
+            }
+        }
+        Log.i(TAG, "Benchmark: " + report);
+        return report.toString();
+    }
+
     public void enableStatLogging(boolean logStats) {
         this.logStats = logStats;
+        inferenceBackend.enableStatLogging(logStats);
     }
 
     public String getStatString() {
-        return inferenceInterface.getStatString();
+        return inferenceBackend.getStatString();
     }
 
     public void close() {
-        inferenceInterface.close();
+        inferenceBackend.close();
     }
 }
@@ -0,0 +1,199 @@
+package com.hse.TfFaceRec;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backend of a TFLite model with one input, executed on CPU by XNNPACK kernels.
+ * Resizing the input of an interpreter reallocates all its tensors, so an interpreter with its own direct
+ * input and output buffers is kept for every slot, e.g., for every level of the image pyramid,
+ * and it is resized only if the input shape of its slot changes.
+ * The batch size is rounded up to a power of two, so the interpreter is rarely resized for a new number of boxes;
+ * values of the padding are not initialized and the corresponding outputs are never fetched.
+ */
+public class TfLiteBackend implements InferenceBackend {
+    private static class ShapedInterpreter {
+        final Interpreter interpreter;
+        int[] shape;
+        ByteBuffer input;
+        FloatBuffer inputValues;
+        final FloatBuffer[] outputValues;
+        final Map<Integer, Object> outputMap = new HashMap<>();
+
+        ShapedInterpreter(Interpreter interpreter) {
+            this.interpreter = interpreter;
+            outputValues = new FloatBuffer[interpreter.getOutputTensorCount()];
+            allocate();
+        }
+
+        /** TFLite copies inputs only from buffers of the exact size of the tensor. */
+        private void allocate() {
+            interpreter.allocateTensors();
+            shape = interpreter.getInputTensor(0).shape();
+            input = ByteBuffer.allocateDirect(interpreter.getInputTensor(0).numBytes()).order(ByteOrder.nativeOrder());
+            inputValues = input.asFloatBuffer();
+            for (int i = 0; i < outputValues.length; ++i) {
+                ByteBuffer output = ByteBuffer.allocateDirect(interpreter.getOutputTensor(i).numBytes()).order(ByteOrder.nativeOrder());
+                outputMap.put(i, output);
+                outputValues[i] = output.asFloatBuffer();
+            }
+        }
+
+        void resize(int[] newShape) {
+            if (Arrays.equals(shape, newShape))
+                return;
+            interpreter.resizeInput(0, newShape);
+            allocate();
+        }
+    }
+
+    private final ByteBuffer model;
+    private final Interpreter.Options options;
+    private final String inputName;
+    private final String[] outputNames;
+    private final Map<Integer, ShapedInterpreter> interpreters = new HashMap<>();
+    private int slot = 0;
+    private ShapedInterpreter current = null;
+
+    /** outputNames are the names of outputs in the order of output tensors of the model. */
+    public TfLiteBackend(ByteBuffer model, String inputName, String[] outputNames, int numThreads) {
+        this.model = model;
+        this.inputName = inputName;
+        this.outputNames = outputNames;
+        options = new Interpreter.Options().setNumThreads(numThreads).setUseXNNPACK(true);
+    }
+
+    public static MappedByteBuffer loadModel(AssetManager assetManager, String modelFilename) throws IOException {
+        try (AssetFileDescriptor fileDescriptor = assetManager.openFd(modelFilename);
+             FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = inputStream.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, fileDescriptor.getStartOffset(), fileDescriptor.getDeclaredLength());
+        }
+    }
+
+    public static boolean hasModel(AssetManager assetManager, String modelFilename) {
+        try (AssetFileDescriptor fileDescriptor = assetManager.openFd(modelFilename)) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "TFLite";
+    }
+
+    @Override
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    private ShapedInterpreter getSlotInterpreter() {
+        ShapedInterpreter interpreter = interpreters.get(slot);
+        if (interpreter == null) {
+            interpreter = new ShapedInterpreter(new Interpreter(model, options));
+            interpreters.put(slot, interpreter);
+        }
+        return interpreter;
+    }
+
+    private ShapedInterpreter select(String name, int[] shape) {
+        if (!inputName.equals(name))
+            throw new IllegalArgumentException("Unknown input " + name);
+        int[] roundedShape = shape.clone();
+        if (roundedShape[0] > 1)
+            roundedShape[0] = Integer.highestOneBit(roundedShape[0] - 1) << 1;
+        current = getSlotInterpreter();
+        current.resize(roundedShape);
+        return current;
+    }
+
+    @Override
+    public void feed(String inputName, FloatBuffer input, int... shape) {
+        FloatBuffer values = select(inputName, shape).inputValues;
+        values.clear();
+        if (input.hasArray())
+            values.put(input.array(), input.arrayOffset() + input.position(), input.remaining());
+        else
+            values.put(input.duplicate());
+    }
+
+    @Override
+    public FloatBuffer getInputBuffer(String inputName, int... shape) {
+        int size = 1;
+        for (int dim : shape)
+            size *= dim;
+        FloatBuffer values = select(inputName, shape).inputValues;
+        values.clear();
+        values.limit(size);
+        return values;
+    }
+
+    @Override
+    public void run(String... outputNames) {
+        if (current == null)
+            throw new IllegalStateException("No input is fed");
+        current.input.rewind();
+        current.interpreter.runForMultipleInputsOutputs(new Object[]{current.input}, current.outputMap);
+    }
+
+    private int getOutputIndex(String outputName) {
+        for (int i = 0; i < outputNames.length; ++i) {
+            if (outputNames[i].equals(outputName))
+                return i;
+        }
+        throw new IllegalArgumentException("Unknown output " + outputName);
+    }
+
+    @Override
+    public void fetch(String outputName, float[] dst) {
+        FloatBuffer values = current.outputValues[getOutputIndex(outputName)];
+        values.rewind();
+        values.get(dst, 0, Math.min(dst.length, values.capacity()));
+    }
+
+    @Override
+    public int getOutputSize(String outputName) {
+        if (current == null)
+            current = getSlotInterpreter();
+        int[] shape = current.interpreter.getOutputTensor(getOutputIndex(outputName)).shape();
+        int size = 1;
+        for (int i = 1; i < shape.length; ++i)
+            size *= shape[i];
+        return size;
+    }
+
+    @Override
+    public void enableStatLogging(boolean logStats) {
+        // the duration of the last inference is always available
+    }
+
+    @Override
+    public String getStatString() {
+        Long nanoseconds = (current != null) ? current.interpreter.getLastNativeInferenceDurationNanoseconds() : null;
+        return "TFLite interpreters: " + interpreters.size() +
+                (nanoseconds != null ? String.format(", last inference %.2f ms", nanoseconds / 1e6) : "");
+    }
+
+    @Override
+    public void close() {
+        for (ShapedInterpreter interpreter : interpreters.values())
+            interpreter.interpreter.close();
+        interpreters.clear();
+        current = null;
+    }
+}
@@ -0,0 +1,352 @@
+package com.asav.facialprocessing;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gallery of face embeddings of known identities for the nearest neighbour identification.
+ * Embeddings are L2-normalized and stored as rows of one flat float matrix, so the exact search is a scan
+ * of dot products. For large galleries an optional HNSW graph is maintained, and queries are answered by it
+ * if the gallery has at least MIN_GRAPH_SIZE faces. Deleted rows are only marked, the matrix and the graph are
+ * compacted when a quarter of rows is deleted. Distances are Euclidean distances between normalized embeddings.
+ * The gallery is saved into a binary file together with the graph, so the graph is not rebuilt when it is loaded.
+ * Otherwise, and after the compaction, the graph is rebuilt in a background thread, and queries use the flat scan
+ * until it is ready.
+ * The projects do not share a module, so the same class is kept in FacialProcessing and TfFaceRec.
+ */
+public class FaceGallery {
+    /** Tag for the {@link Log}. */
+    private static final String TAG = "FaceGallery";
+
+    private static final int FILE_MAGIC = 0x46474c31;
+    /** The flat scan is fast enough for small galleries and it is exact. */
+    private static final int MIN_GRAPH_SIZE = 2000;
+    private static final int GRAPH_NEIGHBORS = 12;
+    private static final int GRAPH_EF_CONSTRUCTION = 64;
+    private static final int GRAPH_EF_SEARCH = 32;
+    /** Number of rows between checks whether the graph being built is still needed. */
+    private static final int GRAPH_CANCEL_CHECK_ROWS = 256;
+
+    private static final ExecutorService graphExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "face-graph");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static class Match {
+        public final int id;
+        public final String name;
+        public final float distance;
+
+        Match(int id, String name, float distance) {
+            this.id = id;
+            this.name = name;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%.2f)", name, distance);
+        }
+    }
+
+    private final boolean useGraph;
+    private int dimension = 0;
+    private float[] embeddings = new float[0];
+    private int[] ids = new int[0];
+    private String[] names = new String[0];
+    private boolean[] deleted = new boolean[0];
+    private int numRows = 0, numDeleted = 0, nextId = 0;
+    private final Map<Integer, Integer> rowById = new HashMap<>();
+    private HnswIndex graph = null;
+    /** Incremented whenever rows are moved, so the graph built for the previous rows is dropped. */
+    private volatile int graphGeneration = 0;
+    private boolean graphPending = false;
+
+    // buffers of queries
+    private float[] query = new float[0];
+    private int[] topRows = new int[0];
+    private float[] topScores = new float[0];
+
+    public FaceGallery(boolean useGraph) {
+        this.useGraph = useGraph;
+    }
+
+    public synchronized int size() {
+        return numRows - numDeleted;
+    }
+
+    public synchronized int getDimension() {
+        return dimension;
+    }
+
+    /** Dot product unrolled by 4 independent sums, so the loop may be vectorized. */
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; ++i)
+            s0 += a[aOffset + i] * b[bOffset + i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Copies the L2-normalized features into dst at offset. */
+    private static void normalize(float[] features, float[] dst, int offset) {
+        float norm = (float) Math.sqrt(dot(features, 0, features, 0, features.length));
+        float scale = norm > 0 ? 1 / norm : 0;
+        for (int i = 0; i < features.length; ++i)
+            dst[offset + i] = features[i] * scale;
+    }
+
+    private static float toDistance(float score) {
+        return (float) Math.sqrt(Math.max(0, 2 - 2 * score));
+    }
+
+    private void checkDimension(float[] features) {
+        if (dimension == 0)
+            dimension = features.length;
+        else if (features.length != dimension)
+            throw new IllegalArgumentException("Expected " + dimension + " features, got " + features.length);
+    }
+
+    /** Returns the identifier of the new face, several faces may have the same name. */
+    public synchronized int enroll(String name, float[] features) {
+        checkDimension(features);
+        if (numRows == ids.length) {
+            int capacity = Math.max(64, numRows * 2);
+            embeddings = Arrays.copyOf(embeddings, capacity * dimension);
+            ids = Arrays.copyOf(ids, capacity);
+            names = Arrays.copyOf(names, capacity);
+            deleted = Arrays.copyOf(deleted, capacity);
+        }
+        int row = numRows++;
+        normalize(features, embeddings, row * dimension);
+        int id = nextId++;
+        ids[row] = id;
+        names[row] = name;
+        deleted[row] = false;
+        rowById.put(id, row);
+        // rows enrolled while the graph is rebuilt are added to it when it is ready
+        if (useGraph && !graphPending) {
+            if (graph == null)
+                graph = new HnswIndex(GRAPH_NEIGHBORS, GRAPH_EF_CONSTRUCTION, 0);
+            graph.add(embeddings, dimension, row);
+        }
+        return id;
+    }
+
+    public synchronized boolean delete(int id) {
+        Integer row = rowById.remove(id);
+        if (row == null)
+            return false;
+        deleted[row] = true;
+        names[row] = null;
+        ++numDeleted;
+        if (numDeleted * 4 > numRows)
+            compact();
+        return true;
+    }
+
+    /** Deletes all faces with the name, returns the number of deleted faces. */
+    public synchronized int deleteByName(String name) {
+        List<Integer> idsToDelete = new ArrayList<>();
+        for (int row = 0; row < numRows; ++row) {
+            if (!deleted[row] && name.equals(names[row]))
+                idsToDelete.add(ids[row]);
+        }
+        for (int id : idsToDelete)
+            delete(id);
+        return idsToDelete.size();
+    }
+
+    /** Removes deleted rows and rebuilds the graph in the background. */
+    private void compact() {
+        int dst = 0;
+        rowById.clear();
+        for (int row = 0; row < numRows; ++row) {
+            if (deleted[row])
+                continue;
+            if (dst != row) {
+                System.arraycopy(embeddings, row * dimension, embeddings, dst * dimension, dimension);
+                ids[dst] = ids[row];
+                names[dst] = names[row];
+                deleted[dst] = false;
+            }
+            rowById.put(ids[dst], dst);
+            ++dst;
+        }
+        Arrays.fill(names, dst, numRows, null);
+        numRows = dst;
+        numDeleted = 0;
+        rebuildGraph();
+    }
+
+    /**
+     * Schedules the build of the graph of current rows. Rows of the embeddings below numRows are moved only by the
+     * compaction, which starts the next generation, so the builder reads them without the lock.
+     */
+    private void rebuildGraph() {
+        graph = null;
+        final int generation = ++graphGeneration;
+        graphPending = useGraph && numRows > 0;
+        if (!graphPending)
+            return;
+        final float[] vectors = embeddings;
+        final int count = numRows, dim = dimension;
+        graphExecutor.execute(() -> {
+            long startTime = System.nanoTime();
+            HnswIndex newGraph = new HnswIndex(GRAPH_NEIGHBORS, GRAPH_EF_CONSTRUCTION, 0);
+            for (int row = 0; row < count; ++row) {
+                if (row % GRAPH_CANCEL_CHECK_ROWS == 0 && generation != graphGeneration)
+                    return;
+                newGraph.add(vectors, dim, row);
+            }
+            synchronized (this) {
+                if (generation != graphGeneration)
+                    return;
+                for (int row = count; row < numRows; ++row)
+                    newGraph.add(embeddings, dimension, row);
+                graph = newGraph;
+                graphPending = false;
+                Log.i(TAG, "Graph of " + numRows + " faces is built in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+            }
+        });
+    }
+
+    /** Returns the nearest face if its distance is not greater than maxDistance, otherwise null. */
+    public synchronized Match identify(float[] features, float maxDistance) {
+        List<Match> matches = search(features, 1);
+        if (matches.isEmpty() || matches.get(0).distance > maxDistance)
+            return null;
+        return matches.get(0);
+    }
+
+    /** Returns at most k nearest faces in increasing order of distances. */
+    public synchronized List<Match> search(float[] features, int k) {
+        List<Match> matches = new ArrayList<>();
+        if (size() == 0 || k <= 0)
+            return matches;
+        checkDimension(features);
+        if (query.length != dimension)
+            query = new float[dimension];
+        normalize(features, query, 0);
+        if (topRows.length < Math.max(k, GRAPH_EF_SEARCH)) {
+            topRows = new int[Math.max(k, GRAPH_EF_SEARCH)];
+            topScores = new float[Math.max(k, GRAPH_EF_SEARCH)];
+        }
+
+        if (graph != null && size() >= MIN_GRAPH_SIZE) {
+            int numFound = graph.search(embeddings, dimension, query, k, GRAPH_EF_SEARCH, deleted, topRows, topScores);
+            for (int i = 0; i < numFound; ++i)
+                matches.add(new Match(ids[topRows[i]], names[topRows[i]], toDistance(1 - topScores[i])));
+            return matches;
+        }
+
+        // the k best scores in decreasing order
+        int numFound = 0;
+        for (int row = 0, offset = 0; row < numRows; ++row, offset += dimension) {
+            if (deleted[row])
+                continue;
+            float score = dot(query, 0, embeddings, offset, dimension);
+            if (numFound < k || score > topScores[numFound - 1]) {
+                int i = (numFound < k) ? numFound++ : numFound - 1;
+                for (; i > 0 && topScores[i - 1] < score; --i) {
+                    topScores[i] = topScores[i - 1];
+                    topRows[i] = topRows[i - 1];
+                }
+                topScores[i] = score;
+                topRows[i] = row;
+            }
+        }
+        for (int i = 0; i < numFound; ++i)
+            matches.add(new Match(ids[topRows[i]], names[topRows[i]], toDistance(topScores[i])));
+        return matches;
+    }
+
+    /** Writes the gallery into a temporary file and renames it, so the previous file is kept if writing fails. */
+    public synchronized void save(File file) throws IOException {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(dimension);
+            out.writeInt(nextId);
+            // deleted rows are written too, so that the nodes of the graph are not changed
+            out.writeInt(numRows);
+            for (int row = 0; row < numRows; ++row) {
+                out.writeInt(ids[row]);
+                out.writeBoolean(deleted[row]);
+                out.writeUTF(deleted[row] ? "" : names[row]);
+                for (int i = 0, offset = row * dimension; i < dimension; ++i)
+                    out.writeFloat(embeddings[offset + i]);
+            }
+            out.writeBoolean(graph != null);
+            if (graph != null)
+                graph.write(out);
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+    }
+
+    public static FaceGallery load(File file, boolean useGraph) throws IOException {
+        FaceGallery gallery = new FaceGallery(useGraph);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Unknown format of " + file);
+            int dimension = in.readInt();
+            int nextId = in.readInt();
+            int count = in.readInt();
+            gallery.dimension = dimension;
+            gallery.embeddings = new float[Math.max(1, count) * dimension];
+            gallery.ids = new int[Math.max(1, count)];
+            gallery.names = new String[Math.max(1, count)];
+            gallery.deleted = new boolean[Math.max(1, count)];
+            for (int row = 0; row < count; ++row) {
+                gallery.ids[row] = in.readInt();
+                gallery.deleted[row] = in.readBoolean();
+                String name = in.readUTF();
+                for (int i = 0, offset = row * dimension; i < dimension; ++i)
+                    gallery.embeddings[offset + i] = in.readFloat();
+                if (gallery.deleted[row]) {
+                    ++gallery.numDeleted;
+                } else {
+                    gallery.names[row] = name;
+                    gallery.rowById.put(gallery.ids[row], row);
+                }
+            }
+            gallery.numRows = count;
+            gallery.nextId = nextId;
+            if (in.readBoolean() && useGraph) {
+                gallery.graph = new HnswIndex(GRAPH_NEIGHBORS, GRAPH_EF_CONSTRUCTION, 0);
+                gallery.graph.read(in);
+            }
+        }
+        if (useGraph && gallery.graph == null) {
+            synchronized (gallery) {
+                gallery.rebuildGraph();
+            }
+        }
+        return gallery;
+    }
+}
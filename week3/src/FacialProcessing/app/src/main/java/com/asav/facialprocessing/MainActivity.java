@@ -1,5 +1,6 @@
 package com.asav.facialprocessing;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -42,6 +43,10 @@ public class MainActivity extends AppCompatActivity {
     private AgeGenderEthnicityTfLiteClassifier facialAttributeClassifier=null;
     private EmotionTfLiteClassifier emotionClassifierTfLite =null;
     private EmotionPyTorchClassifier emotionClassifierPyTorch = null;
+    private static final String GALLERY_FILE="face_gallery.bin";
+    /** Maximal Euclidean distance between normalized features of the same person. */
+    private static final float MAX_FACE_DISTANCE=1.0f;
+    private FaceGallery faceGallery=null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -144,6 +149,14 @@ public class MainActivity extends AppCompatActivity {
         } catch (final Exception e) {
             Log.e(TAG, "Exception initializing EmotionPyTorchClassifier!", e);
         }
+        File galleryFile=new File(getFilesDir(),GALLERY_FILE);
+        try {
+            faceGallery=galleryFile.exists()?FaceGallery.load(galleryFile,true):new FaceGallery(true);
+            Log.i(TAG, "Face gallery contains "+faceGallery.size()+" faces");
+        } catch (final Exception e) {
+            Log.e(TAG, "Exception loading face gallery!", e);
+            faceGallery=new FaceGallery(true);
+        }
 
     }
     @Override
@@ -258,6 +271,21 @@ public class MainActivity extends AppCompatActivity {
                     openImageFile(SELECT_TEMPLATE_PICTURE_MATCH);
                 }
                 return true;
+            case R.id.action_enroll:
+                if(isImageLoaded()) {
+                    enrollFace();
+                }
+                return true;
+            case R.id.action_identify:
+                if(isImageLoaded()) {
+                    identifyFaces();
+                }
+                return true;
+            case R.id.action_benchmark_mtcnn:
+                if(isImageLoaded()) {
+                    benchmarkMTCNN();
+                }
+                return true;
             default:
                 // If we got here, the user's action was not recognized.
                 // Invoke the superclass to handle it.
@@ -451,6 +479,33 @@ public class MainActivity extends AppCompatActivity {
         }
         imageView.setImageBitmap(tempBmp);
     }
+    private void benchmarkMTCNN(){
+        Bitmap bmp = Bitmap.createBitmap(sampledImage.cols(), sampledImage.rows(),Bitmap.Config.RGB_565);
+        Utils.matToBitmap(sampledImage, bmp);
+        double minSize=600.0;
+        double scale=Math.min(bmp.getWidth(),bmp.getHeight())/minSize;
+        final Bitmap resizedBitmap=(scale>1.0)?Bitmap.createScaledBitmap(bmp, (int)(bmp.getWidth()/scale), (int)(bmp.getHeight()/scale), false):bmp;
+        Toast.makeText(getApplicationContext(), "Benchmark started", Toast.LENGTH_SHORT).show();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String report;
+                try {
+                    report = MTCNNModel.Companion.benchmark(getAssets(), resizedBitmap, minFaceSize, 10);
+                } catch (final Exception e) {
+                    Log.e(TAG, "Exception running MTCNN benchmark!", e);
+                    report = "Benchmark failed: " + e;
+                }
+                final String result = report;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(getApplicationContext(), result, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "mtcnn-benchmark").start();
+    }
     private void mtcnnDetectionAndEmotionPyTorchRecognition(){
         Bitmap bmp = Bitmap.createBitmap(sampledImage.cols(), sampledImage.rows(),Bitmap.Config.RGB_565);
         Utils.matToBitmap(sampledImage, bmp);
@@ -514,30 +569,78 @@ public class MainActivity extends AppCompatActivity {
         Core.hconcat(src, resImage);
         List<FaceFeatures> features1=getFacesFeatures(img1);
         List<FaceFeatures> features2=getFacesFeatures(img2);
+        // faces of the second image are the gallery, identifiers are their indices
+        FaceGallery gallery=new FaceGallery(false);
+        for(FaceFeatures face2 : features2)
+            gallery.enroll("",face2.features);
         for(FaceFeatures face1 : features1){
-            double minDist=10000;
-            FaceFeatures bestFace=null;
-            for(FaceFeatures face2 : features2){
-                double dist = 0;
-                for (int i = 0; i < face1.features.length; ++i) {
-                    dist += (face1.features[i] - face2.features[i]) * (face1.features[i] - face2.features[i]);
-                }
-                dist = Math.sqrt(dist);
-                if(dist<minDist){
-                    minDist=dist;
-                    bestFace=face2;
-                }
-            }
-            if(bestFace!=null && minDist<1){
-                float x=bestFace.centerX;
+            FaceGallery.Match match=gallery.identify(face1.features,MAX_FACE_DISTANCE);
+            if(match!=null){
+                FaceFeatures bestFace=features2.get(match.id);
                 Imgproc.line(resImage,new Point(face1.centerX*img1.cols(),face1.centerY*img1.rows()),
                         new Point(img1.cols()+bestFace.centerX*img2.cols(),bestFace.centerY*img2.rows()),
                         new Scalar(255,0,0),5);
-                Log.i(TAG,"distance "+minDist);
+                Log.i(TAG,"distance "+match.distance);
             }
         }
         displayImage(resImage);
     }
+    /** Adds the largest face of the image into the gallery with the name entered by user. */
+    private void enrollFace(){
+        List<FaceFeatures> faces=getFacesFeatures(sampledImage);
+        FaceFeatures largestFace=null;
+        for(FaceFeatures face : faces){
+            if(largestFace==null || face.width>largestFace.width)
+                largestFace=face;
+        }
+        if(largestFace==null){
+            Toast.makeText(getApplicationContext(), "No faces are detected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final float[] features=largestFace.features;
+        final EditText nameEdit=new EditText(this);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_EnrollFace)
+                .setView(nameEdit)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String name=nameEdit.getText().toString().trim();
+                        if(name.isEmpty())
+                            return;
+                        faceGallery.enroll(name,features);
+                        try {
+                            faceGallery.save(new File(getFilesDir(),GALLERY_FILE));
+                        } catch (IOException e) {
+                            Log.e(TAG, "Exception saving face gallery!", e);
+                        }
+                        Toast.makeText(getApplicationContext(),
+                                name+" is enrolled, gallery contains "+faceGallery.size()+" faces",
+                                Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+    private void identifyFaces(){
+        Mat resImage=new Mat();
+        sampledImage.copyTo(resImage);
+        long startTime = SystemClock.uptimeMillis();
+        List<FaceFeatures> faces=getFacesFeatures(sampledImage);
+        long identifyTime=0;
+        for(FaceFeatures face : faces){
+            long identifyStartTime=SystemClock.elapsedRealtimeNanos();
+            FaceGallery.Match match=faceGallery.identify(face.features,MAX_FACE_DISTANCE);
+            identifyTime+=SystemClock.elapsedRealtimeNanos()-identifyStartTime;
+            String name=(match!=null)?match.toString():"unknown";
+            Point center=new Point(face.centerX*resImage.cols(),face.centerY*resImage.rows());
+            Imgproc.putText(resImage,name,center,Imgproc.FONT_HERSHEY_SIMPLEX,Math.max(1,resImage.cols()/600.0),new Scalar(0,255,0),2);
+            Log.i(TAG,"identified "+name);
+        }
+        Log.i(TAG, "Timecost to identify faces: " + Long.toString(SystemClock.uptimeMillis() - startTime)+
+                " ms, gallery search of "+faceGallery.size()+" faces: "+(identifyTime/1000)+" us");
+        displayImage(resImage);
+    }
     private List<FaceFeatures> getFacesFeatures(Mat img){
         Bitmap bmp = Bitmap.createBitmap(img.cols(), img.rows(),Bitmap.Config.RGB_565);
         Utils.matToBitmap(img, bmp);
@@ -563,18 +666,20 @@ public class MainActivity extends AppCompatActivity {
             Bitmap faceBitmap = Bitmap.createBitmap(bmp, bbox.left, bbox.top, bbox.width(), bbox.height());
             Bitmap resultBitmap = Bitmap.createScaledBitmap(faceBitmap, facialAttributeClassifier.getImageSizeX(), facialAttributeClassifier.getImageSizeY(), false);
             FaceData res=(FaceData)facialAttributeClassifier.classifyFrame(resultBitmap);
-            facesInfo.add(new FaceFeatures(res.features,0.5f*(box.left()+box.right()) / resizedBitmap.getWidth(),0.5f*(box.top()+box.bottom()) / resizedBitmap.getHeight()));
+            facesInfo.add(new FaceFeatures(res.features,0.5f*(box.left()+box.right()) / resizedBitmap.getWidth(),0.5f*(box.top()+box.bottom()) / resizedBitmap.getHeight(),
+                    (float)box.width() / resizedBitmap.getWidth()));
         }
         return facesInfo;
     }
     private class FaceFeatures{
-        public FaceFeatures(float[] feat, float x, float y){
+        public FaceFeatures(float[] feat, float x, float y, float w){
             features=feat;
             centerX=x;
             centerY=y;
+            width=w;
         }
         public float[] features;
-        public float centerX,centerY;
+        public float centerX,centerY,width;
     }
 
 }
\ No newline at end of file
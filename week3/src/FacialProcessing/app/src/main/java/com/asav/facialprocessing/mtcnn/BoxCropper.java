@@ -0,0 +1,66 @@
+package com.asav.facialprocessing.mtcnn;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Crops boxes for RNet and ONet directly from the normalized plane of the image pyramid.
+ * Every box is bilinearly resized into its slot of one contiguous batch buffer, transposed as
+ * the networks expect, so no bitmaps are created. The buffer is reused between calls.
+ */
+public class BoxCropper {
+    private float[] batch = new float[0];
+    private int[] srcIdx0 = new int[0], srcIdx1 = new int[0];
+    private float[] srcWeights = new float[0];
+
+    /** Returns the batch of size x size crops of all boxes, the buffer is valid until the next call. */
+    public FloatBuffer crop(ImagePyramid pyramid, List<Box> boxes, int size) {
+        int cropLength = size * size * 3;
+        int length = boxes.size() * cropLength;
+        if (batch.length < length)
+            batch = new float[length];
+        if (srcIdx0.length < 2 * size) {
+            srcIdx0 = new int[2 * size];
+            srcIdx1 = new int[2 * size];
+            srcWeights = new float[2 * size];
+        }
+        float[] src = pyramid.getBase();
+        int srcWidth = pyramid.getBaseWidth(), srcHeight = pyramid.getBaseHeight();
+        for (int i = 0; i < boxes.size(); ++i) {
+            Box box = boxes.get(i);
+            fillTable(box.left(), box.width(), srcWidth, size, 0);
+            fillTable(box.top(), box.height(), srcHeight, size, size);
+            int dstIdx = i * cropLength;
+            for (int x = 0; x < size; ++x) {
+                int col0 = srcIdx0[x] * srcHeight, col1 = srcIdx1[x] * srcHeight;
+                float fx = srcWeights[x];
+                for (int y = 0; y < size; ++y) {
+                    int y0 = srcIdx0[size + y], y1 = srcIdx1[size + y];
+                    float fy = srcWeights[size + y];
+                    int i00 = (col0 + y0) * 3, i01 = (col0 + y1) * 3, i10 = (col1 + y0) * 3, i11 = (col1 + y1) * 3;
+                    for (int c = 0; c < 3; ++c) {
+                        float left = src[i00 + c] + fy * (src[i01 + c] - src[i00 + c]);
+                        float right = src[i10 + c] + fy * (src[i11 + c] - src[i10 + c]);
+                        batch[dstIdx++] = left + fx * (right - left);
+                    }
+                }
+            }
+        }
+        return FloatBuffer.wrap(batch, 0, length);
+    }
+
+    /** Source coordinates of pixel centers of the range [start, start+length) scaled to dstSize, clamped to the image. */
+    private void fillTable(int start, int length, int srcSize, int dstSize, int offset) {
+        float ratio = (float) length / dstSize;
+        int first = Math.max(0, start), last = Math.min(srcSize - 1, start + length - 1);
+        if (last < first)
+            first = last = Math.max(0, Math.min(srcSize - 1, start));
+        for (int i = 0; i < dstSize; ++i) {
+            float src = Math.max(first, Math.min(last, start + (i + 0.5f) * ratio - 0.5f));
+            int i0 = (int) src;
+            srcIdx0[offset + i] = i0;
+            srcIdx1[offset + i] = Math.min(i0 + 1, last);
+            srcWeights[offset + i] = src - i0;
+        }
+    }
+}
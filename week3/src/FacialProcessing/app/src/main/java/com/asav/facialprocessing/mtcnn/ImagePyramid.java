@@ -0,0 +1,212 @@
+package com.asav.facialprocessing.mtcnn;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Image pyramid for PNet. Pixels are read and normalized once into a float plane, every next level
+ * is bilinearly downsampled from the previous one. All planes are stored transposed (x-major), as PNet expects,
+ * and the buffers of levels and PNet outputs are reused while the image size does not change.
+ * If parallel, levels are computed in a background thread, so PNet may run on a level while the next one is prepared.
+ */
+public class ImagePyramid {
+    private static final float IMAGE_MEAN = 127.5f;
+    private static final float IMAGE_STD = 128f;
+    private static final float[] NORMALIZED = new float[256];
+    static {
+        for (int v = 0; v < 256; ++v)
+            NORMALIZED[v] = (v - IMAGE_MEAN) / IMAGE_STD;
+    }
+
+    public static class Level {
+        public float scale;
+        public int width, height;
+        /** Normalized RGB values at (x*height+y)*3+c. */
+        public float[] data = new float[0];
+        /** PNet outputs of size outWidth x outHeight stored x-major. */
+        public int outWidth, outHeight;
+        public float[] prob = new float[0], bias = new float[0];
+
+        private void resize(float scale, int width, int height) {
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+            if (data.length != width * height * 3)
+                data = new float[width * height * 3];
+            outWidth = (int) (Math.ceil(width * 0.5 - 5) + 0.5);
+            outHeight = (int) (Math.ceil(height * 0.5 - 5) + 0.5);
+            int numOutputs = Math.max(0, outWidth * outHeight);
+            if (prob.length != numOutputs * 2) {
+                prob = new float[numOutputs * 2];
+                bias = new float[numOutputs * 4];
+            }
+        }
+    }
+
+    private final List<Level> levels = new ArrayList<>();
+    private final List<Future<?>> pendingLevels = new ArrayList<>();
+    private int numLevels = 0;
+    private int[] pixels = new int[0];
+    private float[] base = new float[0];
+    private int baseWidth, baseHeight;
+    private final boolean parallel;
+    private ExecutorService executor = null;
+    // bilinear interpolation tables, used only by the thread which computes levels
+    private int[] srcIdx0 = new int[0], srcIdx1 = new int[0];
+    private float[] srcWeights = new float[0];
+
+    public ImagePyramid(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /** Prepares levels with scales 12/minFaceSize*factor^k while the scaled smaller side is at least 12 pixels. */
+    public int build(Bitmap bitmap, int minFaceSize, float factor) {
+        waitPendingLevels();
+        baseWidth = bitmap.getWidth();
+        baseHeight = bitmap.getHeight();
+        int numPixels = baseWidth * baseHeight;
+        if (pixels.length != numPixels) {
+            pixels = new int[numPixels];
+            base = new float[numPixels * 3];
+        }
+        bitmap.getPixels(pixels, 0, baseWidth, 0, 0, baseWidth, baseHeight);
+        for (int y = 0; y < baseHeight; ++y) {
+            for (int x = 0; x < baseWidth; ++x) {
+                int val = pixels[y * baseWidth + x];
+                int idx = (x * baseHeight + y) * 3;
+                base[idx] = NORMALIZED[(val >> 16) & 0xFF];
+                base[idx + 1] = NORMALIZED[(val >> 8) & 0xFF];
+                base[idx + 2] = NORMALIZED[val & 0xFF];
+            }
+        }
+
+        numLevels = 0;
+        int whMin = Math.min(baseWidth, baseHeight);
+        for (float faceSize = minFaceSize; faceSize <= whMin; faceSize /= factor) {
+            float scale = 12.0f / faceSize;
+            if (levels.size() <= numLevels)
+                levels.add(new Level());
+            levels.get(numLevels).resize(scale, Math.round(baseWidth * scale), Math.round(baseHeight * scale));
+            ++numLevels;
+        }
+
+        if (parallel) {
+            if (executor == null)
+                executor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "mtcnn-pyramid");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            for (int i = 0; i < numLevels; ++i) {
+                final int level = i;
+                pendingLevels.add(executor.submit(() -> computeLevel(level)));
+            }
+        } else {
+            for (int i = 0; i < numLevels; ++i)
+                computeLevel(i);
+        }
+        return numLevels;
+    }
+
+    /** Normalized transposed plane of the whole image. */
+    public float[] getBase() {
+        return base;
+    }
+
+    public int getBaseWidth() {
+        return baseWidth;
+    }
+
+    public int getBaseHeight() {
+        return baseHeight;
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    /** Waits until the level is computed. */
+    public Level getLevel(int index) {
+        if (index < pendingLevels.size()) {
+            try {
+                pendingLevels.get(index).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return levels.get(index);
+    }
+
+    private void waitPendingLevels() {
+        for (Future<?> future : pendingLevels) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                // the level is not used anymore
+            }
+        }
+        pendingLevels.clear();
+    }
+
+    public void close() {
+        waitPendingLevels();
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private void computeLevel(int index) {
+        Level level = levels.get(index);
+        if (index == 0)
+            resize(base, baseWidth, baseHeight, level.data, level.width, level.height);
+        else {
+            Level prev = levels.get(index - 1);
+            resize(prev.data, prev.width, prev.height, level.data, level.width, level.height);
+        }
+    }
+
+    private void fillTable(int srcSize, int dstSize, int offset) {
+        float ratio = (float) srcSize / dstSize;
+        for (int i = 0; i < dstSize; ++i) {
+            float src = Math.max(0, Math.min(srcSize - 1, (i + 0.5f) * ratio - 0.5f));
+            int i0 = (int) src;
+            srcIdx0[offset + i] = i0;
+            srcIdx1[offset + i] = Math.min(i0 + 1, srcSize - 1);
+            srcWeights[offset + i] = src - i0;
+        }
+    }
+
+    /** Bilinear resize of transposed RGB planes. */
+    private void resize(float[] src, int srcWidth, int srcHeight, float[] dst, int dstWidth, int dstHeight) {
+        int tableSize = dstWidth + dstHeight;
+        if (srcIdx0.length < tableSize) {
+            srcIdx0 = new int[tableSize];
+            srcIdx1 = new int[tableSize];
+            srcWeights = new float[tableSize];
+        }
+        fillTable(srcWidth, dstWidth, 0);
+        fillTable(srcHeight, dstHeight, dstWidth);
+        int dstIdx = 0;
+        for (int x = 0; x < dstWidth; ++x) {
+            int col0 = srcIdx0[x] * srcHeight, col1 = srcIdx1[x] * srcHeight;
+            float fx = srcWeights[x];
+            for (int y = 0; y < dstHeight; ++y) {
+                int y0 = srcIdx0[dstWidth + y], y1 = srcIdx1[dstWidth + y];
+                float fy = srcWeights[dstWidth + y];
+                int i00 = (col0 + y0) * 3, i01 = (col0 + y1) * 3, i10 = (col1 + y0) * 3, i11 = (col1 + y1) * 3;
+                for (int c = 0; c < 3; ++c) {
+                    float left = src[i00 + c] + fy * (src[i01 + c] - src[i00 + c]);
+                    float right = src[i10 + c] + fy * (src[i11 + c] - src[i10 + c]);
+                    dst[dstIdx++] = left + fx * (right - left);
+                }
+            }
+        }
+    }
+}
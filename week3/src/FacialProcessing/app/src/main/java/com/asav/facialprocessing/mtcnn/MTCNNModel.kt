@@ -1,19 +1,100 @@
 package com.asav.facialprocessing.mtcnn
 
 import android.graphics.Bitmap
-import android.graphics.Matrix
 import android.graphics.Point
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface
+import android.util.Log
+import java.nio.FloatBuffer
 import java.util.*
 import android.content.res.AssetManager
-import kotlin.math.max
-import kotlin.math.min
 
 
-class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)  {
+/**
+ * PNet, RNet and ONet may be executed by different backends, the TensorFlow backend runs all of them in one graph.
+ */
+class MTCNNModel(private val pNet: InferenceBackend, private val rNet: InferenceBackend, private val oNet: InferenceBackend)  {
     companion object {
-        fun create (assetManager : AssetManager) : MTCNNModel {
-            return MTCNNModel(TensorFlowInferenceInterface(assetManager, "file:///android_asset/mtcnn_model.pb"))
+        private const val TAG = "MTCNNModel"
+        private const val MODEL_FILE = "file:///android_asset/mtcnn_model.pb"
+        private const val PNET_TFLITE_FILE = "pnet.tflite"
+        private const val RNET_TFLITE_FILE = "rnet.tflite"
+        private const val ONET_TFLITE_FILE = "onet.tflite"
+        private const val NUM_THREADS = 4
+
+        private const val pNetInputName = "pnet/input:0"
+        private val pNetOutputName = arrayOf("pnet/prob1:0", "pnet/conv4-2/BiasAdd:0")
+        private const val rNetInputName = "rnet/input:0"
+        private val rNetOutputName = arrayOf("rnet/prob1:0", "rnet/conv5-2/conv5-2:0")
+        private const val oNetInputName = "onet/input:0"
+        private val oNetOutputName = arrayOf("onet/prob1:0", "onet/conv6-2/conv6-2:0", "onet/conv6-3/conv6-3:0")
+
+        fun create(assetManager: AssetManager): MTCNNModel {
+            return create(assetManager, true)
+        }
+
+        /** TFLite models of the three networks are used if all of them are in assets, otherwise the TensorFlow graph. */
+        fun create(assetManager: AssetManager, useTfLite: Boolean): MTCNNModel {
+            if (useTfLite) {
+                if (TfLiteBackend.hasModel(assetManager, PNET_TFLITE_FILE) && TfLiteBackend.hasModel(assetManager, RNET_TFLITE_FILE) &&
+                        TfLiteBackend.hasModel(assetManager, ONET_TFLITE_FILE)) {
+                    return MTCNNModel(
+                            TfLiteBackend(TfLiteBackend.loadModel(assetManager, PNET_TFLITE_FILE), pNetInputName, pNetOutputName, NUM_THREADS),
+                            TfLiteBackend(TfLiteBackend.loadModel(assetManager, RNET_TFLITE_FILE), rNetInputName, rNetOutputName, NUM_THREADS),
+                            TfLiteBackend(TfLiteBackend.loadModel(assetManager, ONET_TFLITE_FILE), oNetInputName, oNetOutputName, NUM_THREADS))
+                }
+                Log.w(TAG, "TFLite models of MTCNN are not found, TensorFlow graph is used")
+            }
+            val backend = TensorFlowBackend(assetManager, MODEL_FILE)
+            return MTCNNModel(backend, backend, backend)
+        }
+
+        /**
+         * Runs detection by the TensorFlow and TFLite backends on the same image and compares mean latencies
+         * of every network and the detected boxes. The first run of every backend is a warm-up.
+         */
+        fun benchmark(assetManager: AssetManager, bitmap: Bitmap, minFaceSize: Int, numRuns: Int): String {
+            val report = StringBuilder()
+            var reference: Vector<Box>? = null
+            for (useTfLite in arrayOf(false, true)) {
+                val model = create(assetManager, useTfLite)
+                try {
+                    var boxes = model.detectFaces(bitmap, minFaceSize)
+                    val stageMs = DoubleArray(model.stageTimeNs.size)
+                    for (run in 0 until numRuns) {
+                        boxes = model.detectFaces(bitmap, minFaceSize)
+                        for (s in stageMs.indices)
+                            stageMs[s] += model.stageTimeNs[s] / 1e6 / numRuns
+                    }
+                    report.append(String.format("%s: PNet %.1f ms, RNet %.1f ms, ONet %.1f ms, total %.1f ms, %d faces",
+                            model.getBackendName(), stageMs[0], stageMs[1], stageMs[2], stageMs.sum(), boxes.size))
+                    if (reference == null)
+                        reference = boxes
+                    else
+                        report.append(String.format(", max box difference %d px", maxBoxDifference(reference, boxes)))
+                    report.append("\n")
+                } finally {
+                    model.close()
+                }
+            }
+            Log.i(TAG, "Benchmark: $report")
+            return report.toString()
+        }
+
+        /** Maximal distance between the sides of every box and the nearest box of other detections. */
+        private fun maxBoxDifference(boxes: Vector<Box>, otherBoxes: Vector<Box>): Int {
+            if (boxes.size != otherBoxes.size)
+                return Int.MAX_VALUE
+            var maxDifference = 0
+            for (box in boxes) {
+                var minDifference = Int.MAX_VALUE
+                for (other in otherBoxes) {
+                    var difference = 0
+                    for (i in 0..3)
+                        difference = Math.max(difference, Math.abs(box.box[i] - other.box[i]))
+                    minDifference = Math.min(minDifference, difference)
+                }
+                maxDifference = Math.max(maxDifference, minDifference)
+            }
+            return maxDifference
         }
     }
 
@@ -21,105 +102,54 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
     private val PNetThreshold = 0.6f
     private val RNetThreshold = 0.7f
     private val ONetThreshold = 0.7f
-    private val pNetInputName = "pnet/input:0"
-    private val pNetOutputName = arrayOf("pnet/prob1:0", "pnet/conv4-2/BiasAdd:0")
-    private val rNetInputName = "rnet/input:0"
-    private val rNetOutputName = arrayOf("rnet/prob1:0", "rnet/conv5-2/conv5-2:0")
-    private val oNetInputName = "onet/input:0"
-    private val oNetOutputName = arrayOf("onet/prob1:0", "onet/conv6-2/conv6-2:0", "onet/conv6-3/conv6-3:0")
-    private val numOfChannels = 3L
+    private val numOfChannels = 3
+    /** Durations of PNet (with the pyramid), RNet and ONet stages of the last detection. */
+    private val stageTimeNs = LongArray(3)
 
-     private fun bitmapResize(bm: Bitmap, scale: Float): Bitmap {
-         val width = bm.width
-         val height = bm.height
-         // CREATE A MATRIX FOR THE MANIPULATION。matrix
-         val matrix = Matrix()
-         // RESIZE THE BIT MAP
-         matrix.postScale(scale, scale)
-         return Bitmap.createBitmap(
-                 bm, 0, 0, width, height, matrix, true)
-    }
-    fun normalizeImage(bitmap: Bitmap): FloatArray {
-        val w = bitmap.width
-        val h = bitmap.height
-        val floatValues = FloatArray(w * h * 3)
-        val intValues = IntArray(w * h)
-        bitmap.getPixels(intValues, 0, bitmap.width, 0, 0, bitmap.width, bitmap.height)
-        val imageMean = 127.5f
-        val imageStd = 128f
+    /** Levels are prepared in a background thread while PNet runs on the previous ones. */
+    private val pyramid = ImagePyramid(true)
+    private val boxCropper = BoxCropper()
 
-        for (i in intValues.indices) {
-            val `val` = intValues[i]
-            floatValues[i * 3 + 0] = ((`val` shr 16 and 0xFF) - imageMean) / imageStd
-            floatValues[i * 3 + 1] = ((`val` shr 8 and 0xFF) - imageMean) / imageStd
-            floatValues[i * 3 + 2] = ((`val` and 0xFF) - imageMean) / imageStd
-        }
-        return floatValues
+    private fun PNetForward(slot: Int, level: ImagePyramid.Level) {
+        // the level is already transposed, its shape is the same in every detection of images of the same size
+        pNet.setSlot(slot)
+        pNet.feed(pNetInputName, FloatBuffer.wrap(level.data), 1, level.width, level.height, numOfChannels)
+        pNet.run(*pNetOutputName)
+        pNet.fetch(pNetOutputName[0], level.prob)
+        pNet.fetch(pNetOutputName[1], level.bias)
     }
 
-    private fun PNetForward(bitmap: Bitmap, PNetOutProb: Array<FloatArray>, PNetOutBias: Array<Array<FloatArray>>): Int {
-        val w = bitmap.width
-        val h = bitmap.height
-
-        val PNetIn = normalizeImage(bitmap)
-        Utils.flip_diag(PNetIn, h, w, 3) //沿着对角线翻转
-        tensorFlowInferenceInterface.feed(pNetInputName, PNetIn, 1L, w.toLong(), h.toLong(), numOfChannels)
-        tensorFlowInferenceInterface.run(pNetOutputName, false)
-        val PNetOutSizeW = Math.ceil(w * 0.5 - 5).toInt()
-        val PNetOutSizeH = Math.ceil(h * 0.5 - 5).toInt()
-        val PNetOutP = FloatArray(PNetOutSizeW * PNetOutSizeH * 2)
-        val PNetOutB = FloatArray(PNetOutSizeW * PNetOutSizeH * 4)
-        tensorFlowInferenceInterface.fetch(pNetOutputName[0], PNetOutP)
-        tensorFlowInferenceInterface.fetch(pNetOutputName[1], PNetOutB)
+    private val nonMaxSuppression = NonMaxSuppression(true, true)
+    private val candidates = ArrayList<Int>()
 
-        Utils.flip_diag(PNetOutP, PNetOutSizeW, PNetOutSizeH, 2)
-        Utils.flip_diag(PNetOutB, PNetOutSizeW, PNetOutSizeH, 4)
-        Utils.expand(PNetOutB, PNetOutBias)
-        Utils.expandProb(PNetOutP, PNetOutProb)
-        return 0
+    //Non-Maximum Suppression, deleted boxes are ignored
+    private fun nms(boxes: Vector<Box>, threshold: Float, method: NonMaxSuppression.Method) {
+        nonMaxSuppression.clear()
+        candidates.clear()
+        for (i in boxes.indices) {
+            val box = boxes[i]
+            if (!box.deleted) {
+                nonMaxSuppression.add(box.box[0].toFloat(), box.box[1].toFloat(), box.box[2].toFloat(), box.box[3].toFloat(), box.score)
+                candidates.add(i)
+                box.deleted = true
+            }
+        }
+        val numKept = nonMaxSuppression.run(method, threshold, Int.MAX_VALUE)
+        val kept = nonMaxSuppression.getKept()
+        for (k in 0 until numKept)
+            boxes[candidates[kept[k]]].deleted = false
     }
 
- //Non-Maximum Suppression
-     private fun nms(boxes: Vector<Box>, threshold: Float, method: String) {
-         val cnt = 0
-         for (i in boxes.indices) {
-             val box = boxes[i]
-             if (!box.deleted) {
-                 for (j in i + 1 until boxes.size) {
-                 val box2 = boxes[j]
-                 if (!box2.deleted) {
-                     val x1 = max(box.box[0], box2.box[0])
-                     val y1 = max(box.box[1], box2.box[1])
-                     val x2 = min(box.box[2], box2.box[2])
-                     val y2 = min(box.box[3], box2.box[3])
-                     if (x2 < x1 || y2 < y1) continue
-                     val areaIoU = (x2 - x1 + 1) * (y2 - y1 + 1)
-                     var iou = 0f
-                     if (method == "Union")
-                     iou = 1.0f * areaIoU / (box.area() + box2.area() - areaIoU)
-                     else if (method == "Min") {
-                     iou = 1.0f * areaIoU / min(box.area(), box2.area())
-                     }
-                     if (iou >= threshold) { //删除prob小的那个框
-                         if (box.score > box2.score)
-                             box2.deleted = true
-                         else
-                             box.deleted = true
-                         //delete_cnt++;
-                     }
-                     }
-                 }
-             }
-         }
-     }
-
-    private fun generateBoxes(prob: Array<FloatArray>, bias: Array<Array<FloatArray>>, scale: Float, threshold: Float, boxes: Vector<Box>): Int {
-         val h = prob.size
-         val w = prob[0].size
+    private fun generateBoxes(level: ImagePyramid.Level, threshold: Float, boxes: Vector<Box>): Int {
+         val h = level.outHeight
+         val w = level.outWidth
+         val scale = level.scale
 
          for (y in 0 until h)
              for (x in 0 until w) {
-                 val score = prob[y][x]
+                 //outputs are transposed
+                 val idx = x * h + y
+                 val score = level.prob[idx * 2 + 1]
                  //only accept prob >threadshold(0.6 here)
                  if (score > threshold) {
                       val box = Box()
@@ -132,7 +162,7 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
                       box.box[3] = Math.round((y * 2 + 11) / scale)
                       //bbr
                       for (i in 0..3)
-                       box.bbr[i] = bias[y][x][i]
+                       box.bbr[i] = level.bias[idx * 4 + i]
                       //add
                       boxes.addElement(box)
                  }
@@ -148,71 +178,40 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
     //Pnet + Bounding Box Regression + Non-Maximum Regression
 
     private fun PNet(bitmap: Bitmap, minSize: Int): Vector<Box> {
-        val whMin = min(bitmap.width, bitmap.height)
-        var currentFaceSize = minSize.toFloat()  //currentFaceSize=minSize/(factor^k) k=0,1,2... until excced whMin
         val totalBoxes = Vector<Box>()
         //【1】Image Paramid and Feed to Pnet
-        while (currentFaceSize <= whMin) {
-            val scale = 12.0f / currentFaceSize
-            //(1)Image Resize
-            val bm = bitmapResize(bitmap, scale)
-            val w = bm.width
-            val h = bm.height
-            //(2)RUN CNN
-            val PNetOutSizeW = (Math.ceil(w * 0.5 - 5) + 0.5).toInt()
-            val PNetOutSizeH = (Math.ceil(h * 0.5 - 5) + 0.5).toInt()
-            val PNetOutProb = Array(PNetOutSizeH) { FloatArray(PNetOutSizeW) }
-            val PNetOutBias = Array(PNetOutSizeH) { Array(PNetOutSizeW) { FloatArray(4) } }
-            PNetForward(bm, PNetOutProb, PNetOutBias)
+        val numLevels = pyramid.build(bitmap, minSize, factor)
+        for (l in 0 until numLevels) {
+            val level = pyramid.getLevel(l)
+            PNetForward(l, level)
 
             val curBoxes = Vector<Box>()
-            generateBoxes(PNetOutProb, PNetOutBias, scale, PNetThreshold, curBoxes)
+            generateBoxes(level, PNetThreshold, curBoxes)
             //Log.i(TAG,"[*]CNN Output Box number:"+curBoxes.size()+" Scale:"+scale);
             //(4)nms 0.5
-            nms(curBoxes, 0.5f, "Union")
+            nms(curBoxes, 0.5f, NonMaxSuppression.Method.UNION)
             //(5)add to totalBoxes
             for (i in curBoxes.indices)
                 if (!curBoxes[i].deleted)
                     totalBoxes.addElement(curBoxes[i])
-            //Face Size等比递增
-            currentFaceSize /= factor
         }
         //NMS 0.7
-        nms(totalBoxes, 0.7f, "Union")
+        nms(totalBoxes, 0.7f, NonMaxSuppression.Method.UNION)
         //BBR
         BoundingBoxReggression(totalBoxes)
         return Utils.updateBoxes(totalBoxes)
     }
 
-    private fun crop_and_resize(bitmap: Bitmap, box: Box, size: Int, data: FloatArray) {
-         //(2)crop and resize
-         val matrix = Matrix()
-         val scale = 1.0f * size / box.width()
-         matrix.postScale(scale, scale)
-         val croped = Bitmap.createBitmap(bitmap, box.left(), box.top(), box.width(), box.height(), matrix, true)
-         //(3)save
-         val pixels_buf = IntArray(size * size)
-         croped.getPixels(pixels_buf, 0, croped.width, 0, 0, croped.width, croped.height)
-         val imageMean = 127.5f
-         val imageStd = 128f
-         for (i in pixels_buf.indices) {
-             val `val` = pixels_buf[i]
-             data[i * 3 + 0] = ((`val` shr 16 and 0xFF) - imageMean) / imageStd
-             data[i * 3 + 1] = ((`val` shr 8 and 0xFF) - imageMean) / imageStd
-             data[i * 3 + 2] = ((`val` and 0xFF) - imageMean) / imageStd
-         }
-    }
-
-    private fun RNetForward(RNetIn: FloatArray, boxes: Vector<Box>) {
-        val num = RNetIn.size / 24 / 24 / 3
+    private fun RNetForward(RNetIn: FloatBuffer, boxes: Vector<Box>) {
+        val num = boxes.size
         //feed & run
-        tensorFlowInferenceInterface.feed(rNetInputName, RNetIn, num.toLong(), 24L, 24L, numOfChannels)
-        tensorFlowInferenceInterface.run(rNetOutputName, false)
+        rNet.feed(rNetInputName, RNetIn, num, 24, 24, numOfChannels)
+        rNet.run(*rNetOutputName)
         //fetch
         val RNetP = FloatArray(num * 2)
         val RNetB = FloatArray(num * 4)
-        tensorFlowInferenceInterface.fetch(rNetOutputName[0], RNetP)
-        tensorFlowInferenceInterface.fetch(rNetOutputName[1], RNetB)
+        rNet.fetch(rNetOutputName[0], RNetP)
+        rNet.fetch(rNetOutputName[1], RNetB)
         for (i in 0 until num) {
             boxes[i].score = RNetP[i * 2 + 1]
             for (j in 0..3)
@@ -221,17 +220,10 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
     }
 
     //Refine Net
-    private fun RNet(bitmap: Bitmap, boxes: Vector<Box>): Vector<Box> {
-        //RNet Input Init
+    private fun RNet(boxes: Vector<Box>): Vector<Box> {
+        //RNet Input Init, crops are taken from the pyramid of the same image
         val num = boxes.size
-        val RNetIn = FloatArray(num * 24 * 24 * 3)
-        val curCrop = FloatArray(24 * 24 * 3)
-        var RNetInIdx = 0
-        for (i in 0 until num) {
-            crop_and_resize(bitmap, boxes[i], 24, curCrop)
-            Utils.flip_diag(curCrop, 24, 24, 3)
-            for (j in curCrop.indices) RNetIn[RNetInIdx++] = curCrop[j]
-        }
+        val RNetIn = boxCropper.crop(pyramid, boxes, 24)
         //Run RNet
         RNetForward(RNetIn, boxes)
         //RNetThreshold
@@ -239,23 +231,23 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
             if (boxes[i].score < RNetThreshold)
                 boxes[i].deleted = true
         //Nms
-        nms(boxes, 0.7f, "Union")
+        nms(boxes, 0.7f, NonMaxSuppression.Method.UNION)
         BoundingBoxReggression(boxes)
         return Utils.updateBoxes(boxes)
     }
 
-    private fun ONetForward(ONetIn: FloatArray, boxes: Vector<Box>) {
-        val num = ONetIn.size / 48 / 48 / 3
+    private fun ONetForward(ONetIn: FloatBuffer, boxes: Vector<Box>) {
+        val num = boxes.size
         //feed & run
-        tensorFlowInferenceInterface.feed(oNetInputName, ONetIn, num.toLong(), 48L, 48L, numOfChannels)
-        tensorFlowInferenceInterface.run(oNetOutputName, false)
+        oNet.feed(oNetInputName, ONetIn, num, 48, 48, numOfChannels)
+        oNet.run(*oNetOutputName)
         //fetch
         val ONetP = FloatArray(num * 2) //prob
         val ONetB = FloatArray(num * 4) //bias
         val ONetL = FloatArray(num * 10) //landmark
-        tensorFlowInferenceInterface.fetch(oNetOutputName[0], ONetP)
-        tensorFlowInferenceInterface.fetch(oNetOutputName[1], ONetB)
-        tensorFlowInferenceInterface.fetch(oNetOutputName[2], ONetL)
+        oNet.fetch(oNetOutputName[0], ONetP)
+        oNet.fetch(oNetOutputName[1], ONetB)
+        oNet.fetch(oNetOutputName[2], ONetL)
 
         for (i in 0 until num) {
             //prob
@@ -274,17 +266,10 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
     }
 
  //ONet
-    private fun ONet(bitmap: Bitmap, boxes: Vector<Box>): Vector<Box> {
+    private fun ONet(boxes: Vector<Box>): Vector<Box> {
         //ONet Input Init
         val num = boxes.size
-        val ONetIn = FloatArray(num * 48 * 48 * 3)
-        val curCrop = FloatArray(48 * 48 * 3)
-        var ONetInIdx = 0
-        for (i in 0 until num) {
-            crop_and_resize(bitmap, boxes[i], 48, curCrop)
-            Utils.flip_diag(curCrop, 48, 48, 3)
-            for (j in curCrop.indices) ONetIn[ONetInIdx++] = curCrop[j]
-        }
+        val ONetIn = boxCropper.crop(pyramid, boxes, 48)
         //Run ONet
         ONetForward(ONetIn, boxes)
         //ONetThreshold
@@ -293,7 +278,7 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
           boxes[i].deleted = true
         BoundingBoxReggression(boxes)
         //Nms
-        nms(boxes, 0.7f, "Min")
+        nms(boxes, 0.7f, NonMaxSuppression.Method.MIN)
         return Utils.updateBoxes(boxes)
     }
 
@@ -307,14 +292,32 @@ class MTCNNModel(val tensorFlowInferenceInterface: TensorFlowInferenceInterface)
 
     fun detectFaces(bitmap: Bitmap, minFaceSize: Int): Vector<Box> {
         //【1】PNet generate candidate boxes
+        var startTime = System.nanoTime()
         var boxes = PNet(bitmap, minFaceSize)
         square_limit(boxes, bitmap.width, bitmap.height)
+        stageTimeNs[0] = System.nanoTime() - startTime
         //【2】RNet
-        boxes = RNet(bitmap, boxes)
+        startTime = System.nanoTime()
+        if (boxes.size > 0)
+            boxes = RNet(boxes)
         square_limit(boxes, bitmap.width, bitmap.height)
+        stageTimeNs[1] = System.nanoTime() - startTime
         //【3】ONet
-        boxes = ONet(bitmap, boxes)
+        startTime = System.nanoTime()
+        if (boxes.size > 0)
+            boxes = ONet(boxes)
+        stageTimeNs[2] = System.nanoTime() - startTime
         //return
         return boxes
     }
-}
\ No newline at end of file
+
+    fun getBackendName(): String {
+        return if (pNet === rNet && rNet === oNet) pNet.getName() else "${pNet.getName()}/${rNet.getName()}/${oNet.getName()}"
+    }
+
+    fun close() {
+        pyramid.close()
+        for (backend in setOf(pNet, rNet, oNet))
+            backend.close()
+    }
+}
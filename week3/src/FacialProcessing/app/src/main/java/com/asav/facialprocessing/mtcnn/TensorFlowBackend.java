@@ -0,0 +1,110 @@
+package com.asav.facialprocessing.mtcnn;
+
+import android.content.res.AssetManager;
+
+import org.tensorflow.Operation;
+import org.tensorflow.Shape;
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backend of a frozen TensorFlow graph, every feed and fetch copies values between Java arrays and tensors.
+ */
+public class TensorFlowBackend implements InferenceBackend {
+    private final TensorFlowInferenceInterface inferenceInterface;
+    private final Map<String, FloatBuffer> inputBuffers = new HashMap<>();
+    private final Map<String, long[]> inputShapes = new HashMap<>();
+    private boolean logStats = false;
+
+    public TensorFlowBackend(AssetManager assetManager, String modelFilename) {
+        inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
+    }
+
+    @Override
+    public String getName() {
+        return "TensorFlow";
+    }
+
+    @Override
+    public void setSlot(int slot) {
+        // the graph accepts any shape without reallocation
+    }
+
+    private static long[] toDims(int[] shape) {
+        long[] dims = new long[shape.length];
+        for (int i = 0; i < shape.length; ++i)
+            dims[i] = shape[i];
+        return dims;
+    }
+
+    @Override
+    public void feed(String inputName, FloatBuffer input, int... shape) {
+        inputShapes.remove(inputName);
+        inferenceInterface.feed(inputName, input, toDims(shape));
+    }
+
+    @Override
+    public FloatBuffer getInputBuffer(String inputName, int... shape) {
+        int size = 1;
+        for (int dim : shape)
+            size *= dim;
+        FloatBuffer buffer = inputBuffers.get(inputName);
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = FloatBuffer.allocate(size);
+            inputBuffers.put(inputName, buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        inputShapes.put(inputName, toDims(shape));
+        return buffer;
+    }
+
+    @Override
+    public void run(String... outputNames) {
+        // inputs returned by getInputBuffer are fed only now, when they are filled
+        for (Map.Entry<String, long[]> input : inputShapes.entrySet()) {
+            FloatBuffer buffer = inputBuffers.get(input.getKey());
+            buffer.rewind();
+            inferenceInterface.feed(input.getKey(), buffer, input.getValue());
+        }
+        inputShapes.clear();
+        inferenceInterface.run(outputNames, logStats);
+    }
+
+    @Override
+    public void fetch(String outputName, float[] dst) {
+        inferenceInterface.fetch(outputName, dst);
+    }
+
+    @Override
+    public int getOutputSize(String outputName) {
+        int colon = outputName.lastIndexOf(':');
+        Operation operation = inferenceInterface.graph().operation(colon > 0 ? outputName.substring(0, colon) : outputName);
+        Shape shape = operation.output(0).shape();
+        int size = 1;
+        for (int i = 1; i < shape.numDimensions(); ++i) {
+            if (shape.size(i) < 0)
+                return -1;
+            size *= shape.size(i);
+        }
+        return size;
+    }
+
+    @Override
+    public void enableStatLogging(boolean logStats) {
+        this.logStats = logStats;
+    }
+
+    @Override
+    public String getStatString() {
+        return inferenceInterface.getStatString();
+    }
+
+    @Override
+    public void close() {
+        inferenceInterface.close();
+    }
+}
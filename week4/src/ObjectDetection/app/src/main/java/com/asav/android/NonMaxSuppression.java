@@ -0,0 +1,217 @@
+package com.asav.android;
+
+import java.util.Arrays;
+
+/**
+ * Non-maximum suppression over boxes stored in primitive arrays (structure of arrays).
+ * Boxes are sorted by score once, then every kept box suppresses the remaining boxes which overlap it,
+ * and the loop stops as soon as the limit of kept boxes is reached or no boxes remain.
+ * Soft NMS selects the maximal decayed score in every iteration, so it is quadratic and intended for small sets.
+ * Instances keep their buffers between calls and must not be shared between threads.
+ */
+public class NonMaxSuppression {
+    public enum Method {
+        /** Intersection over union. */
+        UNION,
+        /** Intersection over the area of the smaller box. */
+        MIN,
+        /** Scores of overlapping boxes are multiplied by exp(-IoU^2/sigma) instead of suppression. */
+        SOFT
+    }
+
+    /** 1 if coordinates are inclusive pixel indices, so the width of a box is right-left+1. */
+    private final float sizeOffset;
+    /** True if boxes with the overlap equal to the threshold are suppressed, as in the original MTCNN implementation. */
+    private final boolean suppressEqualOverlap;
+    private float[] left = new float[0], top = new float[0], right = new float[0], bottom = new float[0];
+    private float[] scores = new float[0], areas = new float[0];
+    private long[] sortKeys = new long[0];
+    private int[] order = new int[0], rank = new int[0], byLeft = new int[0], kept = new int[0];
+    private float[] sortedLeft = new float[0];
+    private boolean[] suppressed = new boolean[0];
+    private int size = 0;
+
+    public NonMaxSuppression(boolean inclusiveCoordinates, boolean suppressEqualOverlap) {
+        sizeOffset = inclusiveCoordinates ? 1 : 0;
+        this.suppressEqualOverlap = suppressEqualOverlap;
+    }
+
+    public NonMaxSuppression(boolean inclusiveCoordinates) {
+        this(inclusiveCoordinates, false);
+    }
+
+    public NonMaxSuppression() {
+        this(false);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the index of the added box. */
+    public int add(float boxLeft, float boxTop, float boxRight, float boxBottom, float score) {
+        if (size == left.length) {
+            int capacity = Math.max(64, size * 2);
+            left = Arrays.copyOf(left, capacity);
+            top = Arrays.copyOf(top, capacity);
+            right = Arrays.copyOf(right, capacity);
+            bottom = Arrays.copyOf(bottom, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            areas = Arrays.copyOf(areas, capacity);
+        }
+        left[size] = boxLeft;
+        top[size] = boxTop;
+        right[size] = boxRight;
+        bottom[size] = boxBottom;
+        scores[size] = score;
+        areas[size] = Math.max(0, boxRight - boxLeft + sizeOffset) * Math.max(0, boxBottom - boxTop + sizeOffset);
+        return size++;
+    }
+
+    /** Score of the box, it is decreased by soft NMS. */
+    public float getScore(int index) {
+        return scores[index];
+    }
+
+    /** Order of the float values is preserved by signed comparison of the returned integers. */
+    private static int sortable(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /** Sorts indices by one primitive sort of (value, index) keys. */
+    private void sortIndices(float[] values, boolean decreasing, int[] indices) {
+        for (int i = 0; i < size; ++i) {
+            int key = sortable(values[i]);
+            sortKeys[i] = ((long) (decreasing ? ~key : key) << 32) | i;
+        }
+        Arrays.sort(sortKeys, 0, size);
+        for (int i = 0; i < size; ++i)
+            indices[i] = (int) sortKeys[i];
+    }
+
+    private void ensureCapacity() {
+        if (sortKeys.length < size) {
+            int capacity = left.length;
+            sortKeys = new long[capacity];
+            order = new int[capacity];
+            rank = new int[capacity];
+            byLeft = new int[capacity];
+            sortedLeft = new float[capacity];
+            suppressed = new boolean[capacity];
+            kept = new int[capacity];
+        }
+    }
+
+    private float overlap(int a, int b, Method method) {
+        float w = Math.min(right[a], right[b]) - Math.max(left[a], left[b]) + sizeOffset;
+        if (w <= 0)
+            return 0;
+        float h = Math.min(bottom[a], bottom[b]) - Math.max(top[a], top[b]) + sizeOffset;
+        if (h <= 0)
+            return 0;
+        float intersection = w * h;
+        float denominator = (method == Method.MIN) ? Math.min(areas[a], areas[b]) : areas[a] + areas[b] - intersection;
+        return denominator > 0 ? intersection / denominator : 0;
+    }
+
+    private boolean isSuppressed(float overlap, float threshold) {
+        return suppressEqualOverlap ? overlap >= threshold : overlap > threshold;
+    }
+
+    /**
+     * Runs hard NMS with UNION or MIN overlap, boxes with overlap above threshold are suppressed,
+     * or not less than threshold if suppressEqualOverlap is set.
+     * Boxes are also sorted by their left sides, so every kept box is compared only with boxes which
+     * may intersect it horizontally.
+     * Returns the number of kept boxes, their indices in decreasing order of scores are available with getKept.
+     */
+    public int run(Method method, float threshold, int limit) {
+        if (method == Method.SOFT)
+            return runSoft(0.5f, threshold, limit);
+        ensureCapacity();
+        sortIndices(scores, true, order);
+        sortIndices(left, false, byLeft);
+        float maxWidth = 0;
+        for (int i = 0; i < size; ++i) {
+            rank[order[i]] = i;
+            sortedLeft[i] = left[byLeft[i]];
+            suppressed[i] = false;
+            maxWidth = Math.max(maxWidth, right[i] - left[i]);
+        }
+        int numKept = 0, numActive = size;
+        for (int i = 0; i < size && numKept < limit && numActive > 0; ++i) {
+            int a = order[i];
+            if (suppressed[a])
+                continue;
+            kept[numKept++] = a;
+            --numActive;
+            float maxLeft = right[a] + sizeOffset;
+            for (int p = lowerBound(left[a] - maxWidth - sizeOffset); p < size && sortedLeft[p] < maxLeft; ++p) {
+                int b = byLeft[p];
+                if (!suppressed[b] && rank[b] > i && isSuppressed(overlap(a, b, method), threshold)) {
+                    suppressed[b] = true;
+                    --numActive;
+                }
+            }
+        }
+        return numKept;
+    }
+
+    /** The first position with sortedLeft not less than value. */
+    private int lowerBound(float value) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedLeft[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Soft NMS with the Gaussian penalty: the box with the highest remaining score is kept, and scores of
+     * other boxes are decayed by their overlap with it. Boxes with decayed scores below scoreThreshold are dropped.
+     */
+    public int runSoft(float sigma, float scoreThreshold, int limit) {
+        ensureCapacity();
+        int numActive = 0;
+        for (int i = 0; i < size; ++i) {
+            if (scores[i] >= scoreThreshold)
+                order[numActive++] = i;
+        }
+        int numKept = 0;
+        while (numActive > 0 && numKept < limit) {
+            int best = 0;
+            for (int i = 1; i < numActive; ++i) {
+                if (scores[order[i]] > scores[order[best]])
+                    best = i;
+            }
+            int a = order[best];
+            kept[numKept++] = a;
+            order[best] = order[--numActive];
+            for (int i = 0; i < numActive; ) {
+                int b = order[i];
+                float iou = overlap(a, b, Method.UNION);
+                if (iou > 0)
+                    scores[b] *= (float) Math.exp(-iou * iou / sigma);
+                if (scores[b] < scoreThreshold)
+                    order[i] = order[--numActive];
+                else
+                    ++i;
+            }
+        }
+        return numKept;
+    }
+
+    /** Indices of boxes kept by the last run, only the first values returned by the run are valid. */
+    public int[] getKept() {
+        return kept;
+    }
+}
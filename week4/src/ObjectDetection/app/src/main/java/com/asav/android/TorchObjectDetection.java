@@ -8,9 +8,6 @@ import org.pytorch.torchvision.TensorImageUtils;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -66,7 +63,6 @@ public class TorchObjectDetection implements ObjectDetector{
         }
     }
 
-    // The two methods nonMaxSuppression and IOU below are ported from https://github.com/hollance/YOLO-CoreML-MPSNNGraph/blob/master/Common/Helpers.swift
     /**
      Removes bounding boxes that overlap too much with other boxes that have
      a higher score.
@@ -76,70 +72,17 @@ public class TorchObjectDetection implements ObjectDetector{
      - threshold: used to decide whether boxes overlap too much
      */
     static ArrayList<DetectorData> nonMaxSuppression(ArrayList<DetectorData> boxes, int limit, float threshold) {
-
-        // Do an argsort on the confidence scores, from high to low.
-        Collections.sort(boxes,
-                new Comparator<DetectorData>() {
-                    @Override
-                    public int compare(DetectorData o1, DetectorData o2) {
-                        return o1.confidence.compareTo(o2.confidence);
-                    }
-                });
-
-        ArrayList<DetectorData> selected = new ArrayList<>();
-        boolean[] active = new boolean[boxes.size()];
-        Arrays.fill(active, true);
-        int numActive = active.length;
-
-        // The algorithm is simple: Start with the box that has the highest score.
-        // Remove any remaining boxes that overlap it more than the given threshold
-        // amount. If there are any boxes left (i.e. these did not overlap with any
-        // previous boxes), then repeat this procedure, until no more boxes remain
-        // or the limit has been reached.
-        boolean done = false;
-        for (int i=0; i<boxes.size() && !done; i++) {
-            if (active[i]) {
-                DetectorData boxA = boxes.get(i);
-                selected.add(boxA);
-                if (selected.size() >= limit) break;
-
-                for (int j=i+1; j<boxes.size(); j++) {
-                    if (active[j]) {
-                        DetectorData boxB = boxes.get(j);
-                        if (IOU(boxA.location, boxB.location) > threshold) {
-                            active[j] = false;
-                            numActive -= 1;
-                            if (numActive <= 0) {
-                                done = true;
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
-        }
+        NonMaxSuppression nms=new NonMaxSuppression();
+        for (DetectorData box : boxes)
+            nms.add(box.location.left, box.location.top, box.location.right, box.location.bottom, box.confidence);
+        int numKept=nms.run(NonMaxSuppression.Method.UNION, threshold, limit);
+        int[] kept=nms.getKept();
+        ArrayList<DetectorData> selected = new ArrayList<>(numKept);
+        for (int i=0; i<numKept; i++)
+            selected.add(boxes.get(kept[i]));
         return selected;
     }
 
-    /**
-     Computes intersection-over-union overlap between two bounding boxes.
-     */
-    private static float IOU(RectFloat a, RectFloat b) {
-        float areaA = (a.right - a.left) * (a.bottom - a.top);
-        if (areaA <= 0.0) return 0.0f;
-
-        float areaB = (b.right - b.left) * (b.bottom - b.top);
-        if (areaB <= 0.0) return 0.0f;
-
-        float intersectionMinX = Math.max(a.left, b.left);
-        float intersectionMinY = Math.max(a.top, b.top);
-        float intersectionMaxX = Math.min(a.right, b.right);
-        float intersectionMaxY = Math.min(a.bottom, b.bottom);
-        float intersectionArea = Math.max(intersectionMaxY - intersectionMinY, 0) *
-                Math.max(intersectionMaxX - intersectionMinX, 0);
-        return intersectionArea / (areaA + areaB - intersectionArea);
-    }
-
     private ArrayList<DetectorData> outputsToNMSPredictions(float[] outputs, float imgScaleX, float imgScaleY, float ivScaleX, float ivScaleY, float startX, float startY) {
         ArrayList<DetectorData> DetectorDatas = new ArrayList<>();
         for (int i = 0; i< mOutputRow; i++) {